@@ -17,34 +17,54 @@ package com.directmediatips.twitter;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.text.Normalizer;
 import java.util.Properties;
 import java.util.Random;
 
-import com.directmediatips.database.AbstractDatabaseMachine;
+import com.directmediatips.twitter.data.EmbeddedDatabase;
+import com.directmediatips.twitter.data.MySqlDatabase;
+import com.directmediatips.twitter.data.TwitterDao;
+import com.directmediatips.twitter.sim.PacingPolicy;
 
 import twitter4j.RateLimitStatus;
 import twitter4j.Twitter;
 import twitter4j.TwitterException;
 import twitter4j.TwitterFactory;
+import twitter4j.User;
 import twitter4j.conf.ConfigurationBuilder;
 
 /**
  * Superclass for all the machines that need access to a Twitter object,
- * as well as to a database.
+ * as well as to a database. The MySQL connection is only opened if the
+ * machine doesn't use the embedded database.
  */
-public abstract class AbstractTwitterMachine extends AbstractDatabaseMachine {
+public abstract class AbstractTwitterMachine {
 	
     /**  Randomizer. */
 	public static final Random RANDOM = new Random();
 
 	/** Our twitter4j instance. */
 	protected Twitter twitter;
+	/** The MySQL database, or null if the embedded database is used. */
+	protected MySqlDatabase database;
+	/** Access to the data of the machines. */
+	protected TwitterDao dao;
+	/** The log of the machine. */
+	protected MachineLog log;
+	/** The pacing of the write actions of the account. */
+	protected PacingController pacer;
+	/** Asynchronous access to our twitter4j instance (created when needed). */
+	protected RateAwareTwitter async;
+	/** Shares the API budget with the other machines of the account (created when needed). */
+	protected WorkloadPlanner planner;
 	/** The screen name of a Twitter account. */
 	protected String account;
 	/** The account properties. */
 	protected Properties properties;
 	/** Counts how many times we've performed a Twitter request. */
 	protected int count = 0;
+	/** The factor applied to every pause (e.g. to speed up replayed runs). */
+	protected double sleepScale = 1;
 	
 	/**
 	 * Initializes the Twitter client.
@@ -54,10 +74,54 @@ public abstract class AbstractTwitterMachine extends AbstractDatabaseMachine {
 	 * @throws SQLException the SQL exception
 	 */
 	public AbstractTwitterMachine(String account) throws IOException, SQLException {
-		super();
 		this.account = account;
-		properties = new Properties();
-		properties.load(new FileInputStream(String.format("twitter/%s.properties", account)));
+		properties = loadProperties(account);
+		twitter = createTwitter(account, properties);
+		log = new MachineLog(String.format("%s %s", getClass().getSimpleName(), account));
+		pacer = new PacingController(account, properties);
+		if (EmbeddedDatabase.isEmbedded()) {
+			EmbeddedDatabase embedded = new EmbeddedDatabase();
+			embedded.createTables(account);
+			dao = new TwitterDao(embedded);
+		}
+		else {
+			database = new MySqlDatabase();
+			dao = new TwitterDao(database);
+		}
+		sleepScale = Double.parseDouble(System.getProperty(TwitterCassette.SLEEP,
+			properties.getProperty(TwitterCassette.SLEEP, "1")));
+	}
+	
+	/**
+	 * Loads the properties of an account.
+	 *
+	 * @param account the screen name of a Twitter account
+	 * @return the account properties
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static Properties loadProperties(String account) throws IOException {
+		Properties properties = new Properties();
+		FileInputStream in = new FileInputStream(String.format("twitter/%s.properties", account));
+		try {
+			properties.load(in);
+		}
+		finally {
+			in.close();
+		}
+		return properties;
+	}
+	
+	/**
+	 * Creates a Twitter object for an account; if the properties ask for
+	 * a cassette, the object records or replays its API calls.
+	 *
+	 * @param account the screen name of a Twitter account
+	 * @param properties the account properties
+	 * @return a Twitter instance
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @see TwitterCassette
+	 */
+	public static Twitter createTwitter(String account, Properties properties) throws IOException {
 		ConfigurationBuilder cb = new ConfigurationBuilder();
 		cb.setDebugEnabled("true".equals(properties.getProperty("debug")))
 		  .setOAuthConsumerKey(properties.getProperty("oauth.consumerKey"))
@@ -65,7 +129,74 @@ public abstract class AbstractTwitterMachine extends AbstractDatabaseMachine {
 		  .setOAuthAccessToken(properties.getProperty("oauth.accessToken"))
 		  .setOAuthAccessTokenSecret(properties.getProperty("oauth.accessTokenSecret"));
 		TwitterFactory tf = new TwitterFactory(cb.build());
-		twitter = tf.getInstance();
+		return TwitterCassette.wrap(tf.getInstance(), account, properties);
+	}
+	
+	/**
+	 * Gets asynchronous access to the Twitter instance.
+	 *
+	 * @return a RateAwareTwitter instance
+	 */
+	public RateAwareTwitter getAsync() {
+		if (async == null)
+			async = new RateAwareTwitter(twitter, properties);
+		return async;
+	}
+	
+	/**
+	 * Stores a Twitter profile as a new account.
+	 *
+	 * @param user the Twitter profile
+	 * @throws SQLException the SQL exception
+	 */
+	public void insertUser(User user) throws SQLException {
+		dao.insertAccount(user.getId(), user.getScreenName(), makeASCII(user.getName()),
+			makeASCII(user.getLocation()), user.getLang(), makeASCII(user.getDescription()),
+			user.getURL(), user.getFollowersCount(), user.getFriendsCount(),
+			user.getStatusesCount(), user.getFavouritesCount(), user.isProtected());
+	}
+	
+	/**
+	 * Updates the account of a Twitter profile, unless it is banned.
+	 *
+	 * @param user the Twitter profile
+	 * @return the number of updated rows
+	 * @throws SQLException the SQL exception
+	 */
+	public int updateUser(User user) throws SQLException {
+		return dao.updateAccount(user.getId(), user.getScreenName(), makeASCII(user.getName()),
+			makeASCII(user.getLocation()), user.getLang(), makeASCII(user.getDescription()),
+			user.getURL(), user.getFollowersCount(), user.getFriendsCount(),
+			user.getStatusesCount(), user.getFavouritesCount(), user.isProtected());
+	}
+	
+	/**
+	 * Replaces the characters that aren't ASCII; with MySQL, this is done
+	 * the way dmt-data does it, otherwise accents are stripped and the
+	 * other characters are removed.
+	 *
+	 * @param s a text
+	 * @return the text with ASCII characters only
+	 */
+	public String makeASCII(String s) {
+		if (database != null)
+			return database.makeASCII(s);
+		if (s == null)
+			return null;
+		return Normalizer.normalize(s, Normalizer.Form.NFD).replaceAll("[^\\p{ASCII}]", "");
+	}
+	
+	/**
+	 * Waits for pending asynchronous calls, saves the pacing, and closes
+	 * the prepared statements and the database connection.
+	 */
+	public void close() {
+		if (async != null)
+			async.shutdown();
+		if (planner != null)
+			planner.release();
+		pacer.save();
+		dao.close();
 	}
 	
 	/**
@@ -76,14 +207,41 @@ public abstract class AbstractTwitterMachine extends AbstractDatabaseMachine {
 	 */
 	public abstract void go() throws SQLException, TwitterException;
 
+	/**
+	 * Checks if the API calls are planned together with the other machines
+	 * of the account; this can be switched off with <code>Planner=false</code>.
+	 *
+	 * @return true if the calls are planned
+	 */
+	public boolean isPlanned() {
+		return !"false".equals(properties.getProperty("Planner"));
+	}
+	
+	/**
+	 * Waits until the workload planner allows us to call an endpoint.
+	 *
+	 * @param endpoint the endpoint, e.g. {@link RateAwareTwitter#SHOW_USER}
+	 * @see WorkloadPlanner
+	 */
+	public void acquire(String endpoint) {
+		if (!isPlanned())
+			return;
+		if (planner == null)
+			planner = new WorkloadPlanner(account, getClass().getSimpleName(), properties);
+		planner.acquire(endpoint);
+	}
+
 	/**
 	 * Check the counter to find out if we're in danger of surpassing
 	 * the Twitter limits for getting user information; if so, sleep for
-	 * about five minutes.
+	 * about five minutes. When the calls are planned, the planner
+	 * takes care of this.
 	 *
 	 * @param maxCount the max count
 	 */
 	public void needsSleep(int maxCount) {
+		if (isPlanned())
+			return;
 		if (count++ > maxCount) {
 			count = 0;
 	    	sleepRandom(300, 30);
@@ -126,6 +284,29 @@ public abstract class AbstractTwitterMachine extends AbstractDatabaseMachine {
 		return isPleaseWait(e);
 	}
 	
+	/**
+	 * Sleeps for the pause the pacing asks for.
+	 *
+	 * @param pacing the pacing
+	 */
+	public void sleep(PacingPolicy pacing) {
+		sleep(pacing.pause(RANDOM));
+	}
+	
+	/**
+	 * Sleeps for a number of seconds.
+	 *
+	 * @param seconds the number of seconds
+	 */
+	public void sleep(double seconds) {
+		log.info("Will sleep for %.0f seconds...", seconds);
+		try {
+			Thread.sleep((long) (1000l * seconds * sleepScale));
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+	
 	/**
 	 * Checks if the rate limit was exceeded.
 	 * @param e	the Twitter exception
@@ -134,7 +315,7 @@ public abstract class AbstractTwitterMachine extends AbstractDatabaseMachine {
 	public boolean isPleaseWait(TwitterException e) {
 		RateLimitStatus rls = e.getRateLimitStatus();
 		if (rls != null && rls.getRemaining() == 0) {
-			System.out.println("Rate Limit Status exceeded");
+			log.info("Rate Limit Status exceeded");
 			sleepRandom(rls.getSecondsUntilReset(), 20);
 		}
 		return false;
@@ -158,9 +339,9 @@ public abstract class AbstractTwitterMachine extends AbstractDatabaseMachine {
 	 */
 	public void sleepRandom(int minimum, int extra) {
 		int seconds = minimum + RANDOM.nextInt(extra);
-		System.out.println(String.format("Will sleep for %s seconds...", seconds));
+		log.info("Will sleep for %s seconds...", seconds);
 		try {
-			Thread.sleep(1000l * seconds);
+			Thread.sleep((long) (1000l * seconds * sleepScale));
     	} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
@@ -15,22 +15,32 @@ package com.directmediatips.twitter;
  */
 
 import java.io.IOException;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import com.directmediatips.twitter.data.TwitterDao;
+import com.directmediatips.twitter.sim.PacingPolicy;
+
+import twitter4j.Friendship;
 import twitter4j.TwitterException;
+import twitter4j.User;
 
 /**
  * Follows back all the account that follow you, and that aren't banned or protected.
+ * Before following anyone, the candidates are checked in bulk, so that we don't
+ * waste a write (and a pause) on accounts whose state changed since the last sync.
  */
 public class FollowBackMachine extends AbstractTwitterMachine {
 
 	/** SQL statement to find out who follows us that we didn't follow back yet. */
-	public static final String FOLLOW_BACK = "SELECT aa.id, a.screenname"
-			+ " FROM %s_accounts aa, accounts a "
-			+ " WHERE aa.theyfollow = 1 AND aa.wefollow = 0"
-			+ " AND aa.wefollowedon IS NULL AND aa.id = a.id"
-			+ " AND a.banned = 0 AND a.protected = 'N'";
+	public static final String FOLLOW_BACK = TwitterDao.FOLLOW_BACK;
+	/** The maximum number of accounts per friendships or users lookup. */
+	public static final int LOOKUP = 100;
 	
 	/**
 	 * Creates an FollowBackMachine instance.
@@ -52,19 +62,88 @@ public class FollowBackMachine extends AbstractTwitterMachine {
 	 */
 	@Override
 	public void go() throws SQLException, TwitterException {
-		ResultSet rs = connection.execute(String.format(FOLLOW_BACK, account));
-		while (rs.next()) {
+		PacingPolicy pacing = pacer.get("FollowBack", 15, 15);
+		for (Map.Entry<Long, String> entry : precheck(dao.getFollowBack(account)).entrySet()) {
 			try {
-				twitter.createFriendship(rs.getLong("id"));
-				System.out.println(String.format("Following %s (%s)", rs.getLong("id"), rs.getString("screenname")));
-				sleepRandom(15, 15);
+				twitter.createFriendship(entry.getKey());
+				pacing.onSuccess();
+				log.info("Following %s (%s)", entry.getKey(), entry.getValue());
+				sleep(pacing);
 			}
 			catch (TwitterException e) {
-				System.out.println(e.getMessage());
+				log.warn("User %s caused exception: %s (%s)", entry.getKey(), e.getMessage(), e.getStatusCode());
+				PacingController.onRefused(pacing, e);
 				if (isBreakingError(e))
 					break;
+				sleep(pacing);
+			}
+		}
+	}
+	
+	/**
+	 * Checks the candidates in batches of {@link #LOOKUP} accounts, with
+	 * one friendships lookup and one users lookup per batch. Accounts we
+	 * already follow, accounts with a pending follow request, accounts that
+	 * no longer follow us, protected accounts and accounts that are missing
+	 * from the lookups are removed from the candidates. Only the pending
+	 * requests and the protected accounts are stored in the database, so
+	 * that they aren't selected again; who follows whom is left to the
+	 * {@link com.directmediatips.twitter.data.AccountInfoMachine}, and
+	 * accounts that are missing (e.g. temporarily suspended) are simply
+	 * skipped during this run. If a lookup fails, the remaining candidates
+	 * are returned unchecked.
+	 *
+	 * @param candidates the ids and screen names of the accounts to follow back
+	 * @return the candidates that can be followed back
+	 * @throws SQLException the SQL exception
+	 */
+	public Map<Long, String> precheck(Map<Long, String> candidates) throws SQLException {
+		Map<Long, String> checked = new LinkedHashMap<Long, String>();
+		List<Long> ids = new ArrayList<Long>(candidates.keySet());
+		for (int start = 0; start < ids.size(); start += LOOKUP) {
+			long[] batch = new long[Math.min(LOOKUP, ids.size() - start)];
+			for (int i = 0; i < batch.length; i++)
+				batch[i] = ids.get(start + i);
+			Map<Long, Friendship> friendships = new HashMap<Long, Friendship>();
+			Map<Long, User> users = new HashMap<Long, User>();
+			try {
+				for (Friendship friendship : twitter.lookupFriendships(batch))
+					friendships.put(friendship.getId(), friendship);
+				for (User user : twitter.lookupUsers(batch))
+					users.put(user.getId(), user);
+			}
+			catch (TwitterException e) {
+				log.warn("Lookup failed, %s candidates remain unchecked: %s", ids.size() - start, e.getMessage());
+				for (long id : ids.subList(start, ids.size()))
+					checked.put(id, candidates.get(id));
+				break;
+			}
+			long[] requested = new long[batch.length];
+			long[] locked = new long[batch.length];
+			int g = 0, f = 0, r = 0, u = 0, l = 0;
+			for (long id : batch) {
+				Friendship friendship = friendships.get(id);
+				User user = users.get(id);
+				if (friendship == null || user == null)
+					g++;
+				else if (friendship.isFollowing())
+					f++;
+				else if (user.isFollowRequestSent())
+					requested[r++] = id;
+				else if (!friendship.isFollowedBy())
+					u++;
+				else if (user.isProtected())
+					locked[l++] = id;
+				else
+					checked.put(id, candidates.get(id));
 			}
+			dao.setRequested(account, Arrays.copyOf(requested, r));
+			dao.setProtected(Arrays.copyOf(locked, l));
+			log.debug("Checked %s candidates: %s missing, %s followed, %s requested, %s unfollowed, %s protected",
+				batch.length, g, f, r, u, l);
 		}
+		log.info("%s of %s candidates can be followed back", checked.size(), candidates.size());
+		return checked;
 	}
 	
 	/**
@@ -14,43 +14,56 @@ package com.directmediatips.twitter;
  * limitations under the License.
  */
 
+import java.io.File;
 import java.io.IOException;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.directmediatips.twitter.data.TwitterDao;
+import com.directmediatips.twitter.sim.PacingPolicy;
+import com.directmediatips.twitter.store.MinHashSketch;
+import com.directmediatips.twitter.store.SeedIdCache;
 
 import twitter4j.IDs;
 import twitter4j.TwitterException;
 
 /**
  * Looks at the friends and followers of your account, and follows a selection of
- * those accounts.
+ * those accounts. Seeds whose audience mostly overlaps with our own audience, or
+ * with the audience of the seeds that are harvested first, aren't fetched again:
+ * the overlap is estimated with the {@link MinHashSketch} of every seed list.
+ * Such a seed is still harvested if its list is in the cache, and its list is
+ * fetched again once its sketch is older than <code>SeedRefreshDays</code>
+ * (7 by default), so that the sketch follows the audience of the seed.
  */
 public class FollowMachine extends AbstractTwitterMachine {
 
 	/** SQL to get follow information. */
-	public static final String SELECT_FRIENDS_TO_FOLLOW =
-		"SELECT id FROM %s_accounts WHERE followfriends = 1";
+	public static final String SELECT_FRIENDS_TO_FOLLOW = TwitterDao.SELECT_FRIENDS_TO_FOLLOW;
 	/** SQL to get follow information. */
-	public static final String SELECT_FOLLOWERS_TO_FOLLOW =
-		"SELECT id FROM %s_accounts WHERE followfollowers = 1";
+	public static final String SELECT_FOLLOWERS_TO_FOLLOW = TwitterDao.SELECT_FOLLOWERS_TO_FOLLOW;
 	/** SQL to get follow information. */
-	public static final String ACCOUNT_DO_WE_FOLLOW =
-		"SELECT wefollow FROM %s_accounts WHERE id = ?";
+	public static final String ACCOUNT_DO_WE_FOLLOW = TwitterDao.ACCOUNT_DO_WE_FOLLOW;
 	/** SQL checking if an account is banned. */
-	public static final String ACCOUNT_BANNED =
-		"SELECT banned FROM accounts WHERE id = ?";
+	public static final String ACCOUNT_BANNED = TwitterDao.ACCOUNT_BANNED;
 
-    /** Prepared statement to check if we follow an account. */
-	protected PreparedStatement doWeFollow;
-	/** Prepared statement to check if an account is banned. */
-	protected PreparedStatement isBanned;
-	
 	/** The maximum number of accounts to follow in one go. */
 	protected int maximum;
+	/** The cache with the ID lists of the seed accounts. */
+	protected SeedIdCache seeds;
+	/** The percentage of new accounts a seed needs to reach to be harvested (0 harvests all seeds). */
+	protected int minReach;
+	/** The seeds that aren't worth fetching, as returned by {@link #getKey(String, long)}. */
+	protected Set<String> skipped = new HashSet<String>();
+	/** The age in ms after which the list of a skipped seed is fetched again. */
+	protected long refresh;
 	
 	/**
 	 * Creates an FollowMachine instance.
@@ -67,8 +80,35 @@ public class FollowMachine extends AbstractTwitterMachine {
 		catch (Exception e) {
 			maximum = 50;
 		}
-		doWeFollow = connection.prepare(String.format(ACCOUNT_DO_WE_FOLLOW, account));
-		isBanned = connection.prepare(ACCOUNT_BANNED);
+		long hours;
+		try {
+			hours = Long.parseLong(properties.getProperty("SeedCacheHours"));
+		}
+		catch (Exception e) {
+			hours = 12;
+		}
+		long mb;
+		try {
+			mb = Long.parseLong(properties.getProperty("SeedCacheMB"));
+		}
+		catch (Exception e) {
+			mb = 64;
+		}
+		seeds = new SeedIdCache(new File(SeedIdCache.DIRECTORY), hours * 3600000l, mb << 20);
+		try {
+			minReach = Integer.parseInt(properties.getProperty("MinSeedReach"));
+		}
+		catch (Exception e) {
+			minReach = 10;
+		}
+		long days;
+		try {
+			days = Long.parseLong(properties.getProperty("SeedRefreshDays"));
+		}
+		catch (Exception e) {
+			days = 7;
+		}
+		refresh = days * 86400000l;
 	}
 
 	/**
@@ -81,6 +121,8 @@ public class FollowMachine extends AbstractTwitterMachine {
 	@Override
 	public void go() throws SQLException, TwitterException {
 		List<Long> list = new ArrayList<Long>();
+		if (minReach > 0)
+			selectSeeds();
 		harvestFromFriends(list);
 		harvestFromFollowers(list);
 		process(list);
@@ -93,11 +135,11 @@ public class FollowMachine extends AbstractTwitterMachine {
 	 * @throws SQLException the SQL exception
 	 */
 	public void harvestFromFriends(List<Long> list) throws SQLException {
-		ResultSet rs = connection.execute(String.format(SELECT_FRIENDS_TO_FOLLOW, account));
-		while (rs.next()) {
+		for (long seed : dao.getFriendsToFollow(account)) {
+			if (isSkipped(SeedIdCache.FRIENDS, seed))
+				continue;
 			try {
-				IDs ids = twitter.getFriendsIDs(rs.getLong(1), -1);
-				addToList(list, ids);
+				addToList(list, getSeedIds(SeedIdCache.FRIENDS, seed));
 			} catch (TwitterException e) {
 				showErrorIfNecessary(e);
 				if (isBreakingError(e)) return;
@@ -112,11 +154,11 @@ public class FollowMachine extends AbstractTwitterMachine {
 	 * @throws SQLException the SQL exception
 	 */
 	public void harvestFromFollowers(List<Long> list) throws SQLException {
-		ResultSet rs = connection.execute(String.format(SELECT_FOLLOWERS_TO_FOLLOW, account));
-		while (rs.next()) {
+		for (long seed : dao.getFollowersToFollow(account)) {
+			if (isSkipped(SeedIdCache.FOLLOWERS, seed))
+				continue;
 			try {
-				IDs ids = twitter.getFollowersIDs(rs.getLong(1), -1);
-				addToList(list, ids);
+				addToList(list, getSeedIds(SeedIdCache.FOLLOWERS, seed));
 			} catch (TwitterException e) {
 				showErrorIfNecessary(e);
 				if (isBreakingError(e)) { return; };
@@ -124,6 +166,163 @@ public class FollowMachine extends AbstractTwitterMachine {
 		}
 	}	
 	
+	/**
+	 * Checks if a seed list isn't harvested: only seeds that aren't worth
+	 * fetching are skipped, and only if their list would have to be fetched
+	 * and their sketch isn't older than {@link #refresh}.
+	 *
+	 * @param kind {@link SeedIdCache#FRIENDS} or {@link SeedIdCache#FOLLOWERS}
+	 * @param id the ID of the seed account
+	 * @return true if the seed list isn't harvested
+	 */
+	public boolean isSkipped(String kind, long id) {
+		if (!skipped.contains(getKey(kind, id)) || seeds.isFresh(kind, id))
+			return false;
+		return seeds.getSketchAge(kind, id) < refresh;
+	}
+	
+	/**
+	 * Gets the key of a seed list.
+	 *
+	 * @param kind {@link SeedIdCache#FRIENDS} or {@link SeedIdCache#FOLLOWERS}
+	 * @param id the ID of the seed account
+	 * @return a key such as <code>followers-12345</code>
+	 */
+	public static String getKey(String kind, long id) {
+		return String.format("%s-%s", kind, id);
+	}
+	
+	/**
+	 * Gets the sketches of the seed lists that were harvested before.
+	 * Seeds that were never harvested don't have a sketch.
+	 *
+	 * @return the sketches by key
+	 * @throws SQLException the SQL exception
+	 */
+	public Map<String, MinHashSketch> getSeedSketches() throws SQLException {
+		Map<String, MinHashSketch> sketches = new LinkedHashMap<String, MinHashSketch>();
+		addSketches(sketches, SeedIdCache.FRIENDS, dao.getFriendsToFollow(account));
+		addSketches(sketches, SeedIdCache.FOLLOWERS, dao.getFollowersToFollow(account));
+		return sketches;
+	}
+	
+	/**
+	 * Adds the sketches of a series of seed lists of the same kind.
+	 *
+	 * @param sketches the sketches by key
+	 * @param kind {@link SeedIdCache#FRIENDS} or {@link SeedIdCache#FOLLOWERS}
+	 * @param ids the IDs of the seed accounts
+	 */
+	protected void addSketches(Map<String, MinHashSketch> sketches, String kind, long[] ids) {
+		for (long id : ids) {
+			try {
+				MinHashSketch sketch = seeds.getSketch(kind, id);
+				if (sketch != null)
+					sketches.put(getKey(kind, id), sketch);
+			}
+			catch (IOException e) {
+				log.warn("Can't read the sketch of %s: %s", getKey(kind, id), e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Creates the sketch of our own audience: the accounts that follow us
+	 * and the accounts we follow. None of those are new candidates.
+	 *
+	 * @return the sketch of our audience
+	 * @throws SQLException the SQL exception
+	 */
+	public MinHashSketch getAudience() throws SQLException {
+		long[] followers = dao.getFollowerIds(account);
+		long[] friends = dao.getWeFollow(account);
+		long[] ids = Arrays.copyOf(followers, followers.length + friends.length);
+		System.arraycopy(friends, 0, ids, followers.length, friends.length);
+		Arrays.sort(ids);
+		MinHashSketch audience = new MinHashSketch();
+		for (int i = 0; i < ids.length; i++) {
+			if (i == 0 || ids[i] != ids[i - 1])
+				audience.add(ids[i]);
+		}
+		return audience;
+	}
+	
+	/**
+	 * Ranks the seeds greedily: every round, the seed that reaches the most
+	 * accounts that aren't in our audience nor in the audience of the seeds
+	 * ranked before, is ranked next. A seed that reaches less than
+	 * {@link #minReach} percent new accounts is added to the skipped seeds,
+	 * and its audience isn't added to the audience we already reach.
+	 *
+	 * @param sketches the sketches of the seeds by key
+	 * @param audience the sketch of our own audience
+	 * @param skipped the set to which the seeds that aren't worth harvesting are added
+	 * @return the estimated number of new accounts per seed, in the order of the ranking
+	 */
+	public Map<String, Long> rankSeeds(Map<String, MinHashSketch> sketches, MinHashSketch audience, Set<String> skipped) {
+		Map<String, Long> ranking = new LinkedHashMap<String, Long>();
+		Map<String, MinHashSketch> remaining = new LinkedHashMap<String, MinHashSketch>(sketches);
+		MinHashSketch reached = audience;
+		while (!remaining.isEmpty()) {
+			String best = null;
+			long most = -1;
+			for (Map.Entry<String, MinHashSketch> entry : remaining.entrySet()) {
+				long reach = entry.getValue().reach(reached);
+				if (reach > most) {
+					best = entry.getKey();
+					most = reach;
+				}
+			}
+			MinHashSketch sketch = remaining.remove(best);
+			ranking.put(best, most);
+			if (most * 100 < minReach * sketch.size())
+				skipped.add(best);
+			else
+				reached = reached.union(sketch);
+		}
+		return ranking;
+	}
+	
+	/**
+	 * Selects the seeds that will be harvested; seeds without a sketch are always harvested.
+	 *
+	 * @throws SQLException the SQL exception
+	 */
+	public void selectSeeds() throws SQLException {
+		Map<String, MinHashSketch> sketches = getSeedSketches();
+		rankSeeds(sketches, getAudience(), skipped);
+		log.info("%s of %s sketched seeds reach less than %s%% new accounts",
+			skipped.size(), sketches.size(), minReach);
+	}
+	
+	/**
+	 * Gets the friends or followers of a seed account; the list is only
+	 * fetched from Twitter if the cached version is missing or stale.
+	 *
+	 * @param kind {@link SeedIdCache#FRIENDS} or {@link SeedIdCache#FOLLOWERS}
+	 * @param id the ID of the seed account
+	 * @return the IDs of the friends or followers
+	 * @throws TwitterException the twitter exception
+	 */
+	public long[] getSeedIds(String kind, long id) throws TwitterException {
+		try {
+			long[] ids = seeds.get(kind, id);
+			if (ids != null)
+				return ids;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		IDs ids = SeedIdCache.FRIENDS.equals(kind) ? twitter.getFriendsIDs(id, -1) : twitter.getFollowersIDs(id, -1);
+		try {
+			seeds.put(kind, id, ids.getIDs());
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		return ids.getIDs();
+	}
+	
 	/**
 	 * Tries to add a series of IDs to the list of possible accounts to follow.
 	 *
@@ -132,7 +331,18 @@ public class FollowMachine extends AbstractTwitterMachine {
 	 * @throws SQLException the SQL exception
 	 */
 	public void addToList(List<Long> list, IDs ids) throws SQLException {
-		for (long id : ids.getIDs()) {
+		addToList(list, ids.getIDs());
+	}
+	
+	/**
+	 * Tries to add a series of IDs to the list of possible accounts to follow.
+	 *
+	 * @param list the list that will be populated
+	 * @param ids an array of IDs
+	 * @throws SQLException the SQL exception
+	 */
+	public void addToList(List<Long> list, long[] ids) throws SQLException {
+		for (long id : ids) {
 			if (!doWeFollow(id) && !isBanned(id)) list.add(id);
 		}
 	}
@@ -145,12 +355,7 @@ public class FollowMachine extends AbstractTwitterMachine {
 	 * @throws SQLException the SQL exception
 	 */
 	public boolean doWeFollow(long id) throws SQLException {
-		doWeFollow.setLong(1, id);
-		ResultSet rs = doWeFollow.executeQuery();
-		if (rs.next()) {
-			return (rs.getInt(1) == 1);
-		}
-		return false;
+		return dao.doWeFollow(account, id);
 	}
 	
 	/**
@@ -161,12 +366,7 @@ public class FollowMachine extends AbstractTwitterMachine {
 	 * @throws SQLException the SQL exception
 	 */
 	public boolean isBanned(long id) throws SQLException {
-		isBanned.setLong(1, id);
-		ResultSet rs = isBanned.executeQuery();
-		if (rs.next()) {
-			return (rs.getInt(1) == 1);
-		}
-		return false;
+		return dao.isBanned(id);
 	}
 	
 	/**
@@ -177,22 +377,26 @@ public class FollowMachine extends AbstractTwitterMachine {
 	 */
 	public void process(List<Long> list) throws SQLException {
 		int followed = 0;
+		PacingPolicy pacing = pacer.get("Follow", 45, 15);
 		Collections.shuffle(list);
-		System.out.println(String.format("Picking %s accounts from %s candidates", maximum, list.size()));
+		log.info("Picking %s accounts from %s candidates", maximum, list.size());
 		for (long id : list) {
-			System.out.println(String.format("Examining %s (%s of %s)", id, followed + 1, maximum));
+			log.debug("Examining %s (%s of %s)", id, followed + 1, maximum);
 			try {
 				if (!isBanned(id)) {
 					twitter.createFriendship(id);
+					pacing.onSuccess();
 					if (++followed == maximum)
 						break;
-					sleepRandom(45, 15);
+					sleep(pacing);
 				}
 			}
 			catch(TwitterException e) {
-				System.out.println(String.format("User %s caused exception: %s (%s)", id, e.getMessage(), e.getStatusCode()));
+				log.warn("User %s caused exception: %s (%s)", id, e.getMessage(), e.getStatusCode());
+				PacingController.onRefused(pacing, e);
 				if (e.exceededRateLimitation() || isBreakingError(e))
 					break;
+				sleep(pacing);
 			}
 		}
 	}
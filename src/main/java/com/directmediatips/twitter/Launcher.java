@@ -0,0 +1,183 @@
+package com.directmediatips.twitter;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A single entry point for all the machines, so that a cron job can run
+ * several machines for several accounts in one JVM:
+ * <pre>
+ * java -jar dmt-twitter.jar quote,retweet account1 account2
+ * </pre>
+ * Machines that need an account run once for every account, unless
+ * they can process several accounts at once (the quote, retweet and
+ * update-metrics machines); the other machines get the arguments as they are.
+ * <p>
+ * Building with <code>-Dcds="machine[,machine...] account"</code> (Java 13
+ * or higher) creates a class-data sharing archive at the end of a dry run
+ * of those machines, e.g. against an account that replays a cassette; start
+ * the jobs with <code>-XX:SharedArchiveFile=target/dmt-twitter.jsa</code>
+ * to skip the loading of the classes such a run needs.
+ * @see TwitterCassette
+ */
+public class Launcher {
+	
+	/** How a machine uses the arguments of the launcher. */
+	public enum Mode {
+		/** The machine runs once for every account. */
+		ACCOUNT,
+		/** The machine runs once for all the accounts. */
+		ACCOUNTS,
+		/** The machine gets the arguments as they are. */
+		ARGS
+	}
+	
+	/**
+	 * A machine that can be launched.
+	 */
+	protected static class Command {
+		/** The name of the class with the main method. */
+		protected final String className;
+		/** How the machine uses the arguments. */
+		protected final Mode mode;
+		
+		/**
+		 * Creates a Command instance.
+		 *
+		 * @param className the name of the class with the main method
+		 * @param mode how the machine uses the arguments
+		 */
+		protected Command(String className, Mode mode) {
+			this.className = className;
+			this.mode = mode;
+		}
+	}
+	
+	/** The machines by command name. */
+	protected static final Map<String, Command> COMMANDS = new LinkedHashMap<String, Command>();
+	
+	static {
+		put("follow", "com.directmediatips.twitter.FollowMachine", Mode.ACCOUNT);
+		put("follow-back", "com.directmediatips.twitter.FollowBackMachine", Mode.ACCOUNT);
+		put("seed-overlap", "com.directmediatips.twitter.SeedOverlapMachine", Mode.ACCOUNT);
+		put("unfriend", "com.directmediatips.twitter.UnfriendMachine", Mode.ACCOUNT);
+		put("remove-inactive", "com.directmediatips.twitter.RemoveInactiveMachine", Mode.ACCOUNT);
+		put("quote", "com.directmediatips.twitter.QuoteMachine", Mode.ACCOUNTS);
+		put("retweet", "com.directmediatips.twitter.RetweetMachine", Mode.ACCOUNTS);
+		put("budget", "com.directmediatips.twitter.WorkloadPlanner", Mode.ACCOUNT);
+		put("account-info", "com.directmediatips.twitter.data.AccountInfoMachine", Mode.ACCOUNT);
+		put("account-update", "com.directmediatips.twitter.data.AccountUpdateMachine", Mode.ACCOUNT);
+		put("ban-blocked", "com.directmediatips.twitter.data.BanBlockedMachine", Mode.ACCOUNT);
+		put("migrate-relationships", "com.directmediatips.twitter.data.RelationshipMigrationMachine", Mode.ARGS);
+		put("harvest-info", "com.directmediatips.twitter.google.HarvestInfoMachine", Mode.ACCOUNT);
+		put("update-klout", "com.directmediatips.twitter.google.UpdateKloutMachine", Mode.ACCOUNT);
+		put("update-metrics", "com.directmediatips.twitter.google.UpdateMetricsMachine", Mode.ACCOUNTS);
+		put("direct-messages", "com.directmediatips.twitter.dm.DirectMessageMachine", Mode.ARGS);
+		put("remove-dm", "com.directmediatips.twitter.dm.RemoveDMMachine", Mode.ACCOUNT);
+		put("select-data", "com.directmediatips.twitter.dm.SelectDataMachine", Mode.ARGS);
+		put("synthetic-data", "com.directmediatips.twitter.bench.SyntheticDataMachine", Mode.ARGS);
+		put("benchmark", "com.directmediatips.twitter.bench.DatabaseBenchmarkMachine", Mode.ARGS);
+		put("simulate-pacing", "com.directmediatips.twitter.sim.PacingSimulator", Mode.ARGS);
+	}
+	
+	/**
+	 * Registers a machine.
+	 *
+	 * @param name the name of the command
+	 * @param className the name of the class with the main method
+	 * @param mode how the machine uses the arguments
+	 */
+	protected static void put(String name, String className, Mode mode) {
+		COMMANDS.put(name, new Command(className, mode));
+	}
+	
+	/**
+	 * Runs a machine.
+	 *
+	 * @param name the name of the command
+	 * @param args the arguments of the launcher, without the command
+	 * @return false if the machine doesn't exist
+	 */
+	public static boolean run(String name, String[] args) {
+		Command command = COMMANDS.get(name);
+		if (command == null) {
+			System.out.println(String.format("Unknown machine: %s", name));
+			return false;
+		}
+		try {
+			Method main = Class.forName(command.className).getMethod("main", String[].class);
+			switch (command.mode) {
+			case ACCOUNT:
+				if (args.length == 0)
+					main.invoke(null, (Object) args);
+				for (String account : args) {
+					main.invoke(null, (Object) new String[] { account });
+				}
+				break;
+			default:
+				main.invoke(null, (Object) args);
+			}
+		}
+		catch (InvocationTargetException e) {
+			e.getCause().printStackTrace();
+		}
+		catch (ReflectiveOperationException e) {
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Prints the available machines.
+	 */
+	protected static void usage() {
+		System.out.println("Usage: Launcher machine[,machine...] [account...|args...]");
+		for (Map.Entry<String, Command> entry : COMMANDS.entrySet()) {
+			System.out.println(String.format("  %-22s %s (%s)", entry.getKey(),
+				entry.getValue().className, entry.getValue().mode.toString().toLowerCase()));
+		}
+	}
+	
+	/**
+	 * Runs one or more machines.
+	 *
+	 * @param args a comma-separated list of machines, followed by
+	 * the accounts or the arguments of the machines
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			usage();
+			return;
+		}
+		String[] names = args[0].split(",");
+		for (String name : names) {
+			if (!COMMANDS.containsKey(name)) {
+				System.out.println(String.format("Unknown machine: %s", name));
+				usage();
+				return;
+			}
+		}
+		String[] rest = Arrays.copyOfRange(args, 1, args.length);
+		for (String name : names) {
+			run(name, rest);
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package com.directmediatips.twitter;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leveled, parameterized logging for the machines. A message is only
+ * formatted if its level is enabled, and it is formatted and written by
+ * a background thread: the machine only puts the format and the arguments
+ * in a ring buffer, so that logging doesn't slow down the loops that
+ * process thousands of accounts.
+ * <p>
+ * The level is set with <code>-Dlog.level</code> (DEBUG, INFO, WARN or ERROR;
+ * INFO by default). Debug messages are sampled: only the first message of
+ * every <code>-Dlog.sample</code> messages (100 by default) with the same
+ * format is written. When the buffer is full, debug messages are dropped;
+ * other messages wait for room in the buffer.
+ */
+public class MachineLog {
+	
+	/** The levels of the messages. */
+	public enum Level { DEBUG, INFO, WARN, ERROR }
+	
+	/**
+	 * A message waiting to be written.
+	 */
+	protected static class Entry {
+		/** The time the message was logged. */
+		protected final long time;
+		/** The level of the message. */
+		protected final Level level;
+		/** The source of the message. */
+		protected final String source;
+		/** The format of the message. */
+		protected final String format;
+		/** The arguments of the message. */
+		protected final Object[] args;
+		
+		/**
+		 * Creates an Entry instance.
+		 *
+		 * @param level the level of the message
+		 * @param source the source of the message
+		 * @param format the format of the message
+		 * @param args the arguments of the message
+		 */
+		protected Entry(Level level, String source, String format, Object[] args) {
+			this.time = System.currentTimeMillis();
+			this.level = level;
+			this.source = source;
+			this.format = format;
+			this.args = args;
+		}
+	}
+	
+	/** The number of messages the ring buffer can hold. */
+	public static final int CAPACITY = 8192;
+	
+	/** The lowest level that is written. */
+	protected static final Level LEVEL;
+	/** One of this number of debug messages with the same format is written. */
+	protected static final int SAMPLE = Integer.getInteger("log.sample", 100);
+	/** The ring buffer with the messages that need to be written. */
+	protected static final BlockingQueue<Entry> BUFFER = new ArrayBlockingQueue<Entry>(CAPACITY);
+	/** The number of debug messages per format. */
+	protected static final ConcurrentMap<String, AtomicLong> COUNTS = new ConcurrentHashMap<String, AtomicLong>();
+	/** The number of debug messages that were dropped because the buffer was full. */
+	protected static final AtomicLong DROPPED = new AtomicLong();
+	/** The output. */
+	protected static final Writer OUT = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+	/** The thread that writes the messages. */
+	protected static final Thread WRITER;
+	/** True once the JVM is shutting down. */
+	protected static volatile boolean closed = false;
+	
+	static {
+		Level level;
+		try {
+			level = Level.valueOf(System.getProperty("log.level").toUpperCase());
+		}
+		catch (Exception e) {
+			level = Level.INFO;
+		}
+		LEVEL = level;
+		WRITER = new Thread(new Runnable() {
+			public void run() {
+				List<Entry> entries = new ArrayList<Entry>();
+				try {
+					while (!closed || !BUFFER.isEmpty()) {
+						Entry entry = BUFFER.poll(100, TimeUnit.MILLISECONDS);
+						if (entry == null)
+							continue;
+						entries.add(entry);
+						BUFFER.drainTo(entries);
+						write(entries);
+						entries.clear();
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "machine-log");
+		WRITER.setDaemon(true);
+		WRITER.start();
+		// write what is left in the buffer before the JVM exits
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				closed = true;
+				try {
+					WRITER.join(1000);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}));
+	}
+	
+	/**
+	 * Writes a series of messages, and flushes the output.
+	 *
+	 * @param entries the messages
+	 */
+	protected static synchronized void write(List<Entry> entries) {
+		SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		try {
+			for (Entry entry : entries) {
+				String message;
+				try {
+					message = String.format(entry.format, entry.args);
+				}
+				catch (RuntimeException e) {
+					// a bad format or a failing toString() mustn't kill the writer thread
+					message = String.format("%s (%s)", entry.format, e);
+				}
+				OUT.write(String.format("%s %-5s [%s] %s%n", date.format(new Date(entry.time)),
+					entry.level, entry.source, message));
+			}
+			long dropped = DROPPED.getAndSet(0);
+			if (dropped > 0)
+				OUT.write(String.format("%s %-5s [log] %s debug messages dropped%n", date.format(new Date()), Level.WARN, dropped));
+			OUT.flush();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/** The source of the messages, usually a machine and an account. */
+	protected final String source;
+	
+	/**
+	 * Creates a MachineLog instance.
+	 *
+	 * @param source the source of the messages, usually a machine and an account
+	 */
+	public MachineLog(String source) {
+		this.source = source;
+	}
+	
+	/**
+	 * Checks if a level is written.
+	 *
+	 * @param level a level
+	 * @return true if messages of this level are written
+	 */
+	public boolean isEnabled(Level level) {
+		return level.compareTo(LEVEL) >= 0;
+	}
+	
+	/**
+	 * Logs a message about a single item; only a sample of these messages is written.
+	 *
+	 * @param format the format of the message
+	 * @param args the arguments of the message
+	 */
+	public void debug(String format, Object... args) {
+		if (!isEnabled(Level.DEBUG))
+			return;
+		AtomicLong count = COUNTS.get(format);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = COUNTS.putIfAbsent(format, created);
+			if (count == null)
+				count = created;
+		}
+		if (count.getAndIncrement() % SAMPLE != 0)
+			return;
+		if (!BUFFER.offer(new Entry(Level.DEBUG, source, format, args)))
+			DROPPED.incrementAndGet();
+	}
+	
+	/**
+	 * Logs an informational message.
+	 *
+	 * @param format the format of the message
+	 * @param args the arguments of the message
+	 */
+	public void info(String format, Object... args) {
+		log(Level.INFO, format, args);
+	}
+	
+	/**
+	 * Logs a warning, for instance an item that couldn't be processed.
+	 *
+	 * @param format the format of the message
+	 * @param args the arguments of the message
+	 */
+	public void warn(String format, Object... args) {
+		log(Level.WARN, format, args);
+	}
+	
+	/**
+	 * Logs an error.
+	 *
+	 * @param format the format of the message
+	 * @param args the arguments of the message
+	 */
+	public void error(String format, Object... args) {
+		log(Level.ERROR, format, args);
+	}
+	
+	/**
+	 * Logs a message, waiting for room in the buffer if necessary.
+	 *
+	 * @param level the level of the message
+	 * @param format the format of the message
+	 * @param args the arguments of the message
+	 */
+	protected void log(Level level, String format, Object... args) {
+		if (!isEnabled(level))
+			return;
+		try {
+			BUFFER.put(new Entry(level, source, format, args));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
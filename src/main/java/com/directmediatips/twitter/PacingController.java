@@ -0,0 +1,204 @@
+package com.directmediatips.twitter;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import com.directmediatips.twitter.sim.AdaptivePacing;
+import com.directmediatips.twitter.sim.FixedPacing;
+import com.directmediatips.twitter.sim.PacingPolicy;
+
+import twitter4j.TwitterException;
+
+/**
+ * Paces the write actions of an account (follows, retweets, DMs) based on
+ * what Twitter tells us. Every action gets an {@link AdaptivePacing} that
+ * speeds up while the responses are clean, and backs off after rate limits,
+ * soft errors and lock signals. What the pacing learned is kept in
+ * <code>twitter/pacing/[account].properties</code>, so that the next run
+ * starts where this one stopped.
+ * <p>
+ * The pacing of an action can be configured in the account properties:
+ * <ul>
+ * <li><code>[action]Pacing</code>: <code>fixed</code> for the old random pauses,</li>
+ * <li><code>[action]PacingMin</code>: the shortest mean pause in seconds; by default
+ * the mean of the old random pause, so that the machines never go faster than
+ * before unless you ask for it. A floor that was raised by a lock is only kept
+ * as long as this minimum doesn't change,</li>
+ * <li><code>[action]PacingMax</code>: the longest mean pause in seconds; ten times
+ * the mean of the old random pause by default.</li>
+ * </ul>
+ * The actions are <code>Follow</code>, <code>FollowBack</code>,
+ * <code>Retweet</code> and <code>DM</code>.
+ */
+public class PacingController {
+	
+	/** The file with the state of the pacing of an account. */
+	public static final String STATE = "twitter/pacing/%s.properties";
+	
+	/** The screen name of the account. */
+	protected String account;
+	/** The properties of the account. */
+	protected Properties properties;
+	/** The state of the pacing as it was saved by the previous run. */
+	protected Properties state = new Properties();
+	/** The pacing of every action. */
+	protected Map<String, PacingPolicy> policies = new LinkedHashMap<String, PacingPolicy>();
+	
+	/**
+	 * Creates a PacingController instance, and reads
+	 * the state of the previous run if there is one.
+	 *
+	 * @param account the screen name of a Twitter account
+	 * @param properties the properties of the account
+	 */
+	public PacingController(String account, Properties properties) {
+		this.account = account;
+		this.properties = properties;
+		File file = new File(String.format(STATE, account));
+		if (file.exists()) {
+			try {
+				FileInputStream in = new FileInputStream(file);
+				try {
+					state.load(in);
+				}
+				finally {
+					in.close();
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Gets the pacing of an action.
+	 *
+	 * @param name the name of the action, e.g. <code>Follow</code>
+	 * @param minimum the minimum number of seconds of the old random pause
+	 * @param extra the maximum of extra seconds of the old random pause
+	 * @return the pacing
+	 */
+	public PacingPolicy get(String name, int minimum, int extra) {
+		PacingPolicy pacing = policies.get(name);
+		if (pacing != null)
+			return pacing;
+		if ("fixed".equals(properties.getProperty(name + "Pacing"))) {
+			pacing = new FixedPacing(minimum, extra, 0, 0, 1);
+		}
+		else {
+			double mean = minimum + extra / 2.0;
+			double min = get(properties, name + "PacingMin", mean);
+			double max = get(properties, name + "PacingMax", 10 * mean);
+			// start from what the previous run learned, unless the minimum was changed since
+			double floor = get(state, name + ".min", min) == min ? get(state, name + ".floor", min) : min;
+			pacing = new AdaptivePacing(min, floor, get(state, name + ".mean", mean), max);
+		}
+		policies.put(name, pacing);
+		return pacing;
+	}
+	
+	/**
+	 * Gets a number from a set of properties.
+	 *
+	 * @param properties the properties
+	 * @param key the key
+	 * @param defaultValue the value if the key is missing or invalid
+	 * @return the number
+	 */
+	protected static double get(Properties properties, String key, double defaultValue) {
+		try {
+			return Double.parseDouble(properties.getProperty(key));
+		}
+		catch (Exception e) {
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * Informs the pacing of an action that was refused.
+	 * Errors about a single item (e.g. a user that doesn't exist)
+	 * don't change the pacing.
+	 *
+	 * @param pacing the pacing
+	 * @param e the Twitter exception
+	 */
+	public static void onRefused(PacingPolicy pacing, TwitterException e) {
+		if (isLockSignal(e))
+			pacing.onRefused(true);
+		else if (e.exceededRateLimitation() || e.getStatusCode() == 429 || e.getStatusCode() >= 500)
+			pacing.onRefused(false);
+	}
+	
+	/**
+	 * Checks if an exception tells us to slow down the write actions
+	 * of the whole account, rather than being about a single item.
+	 *
+	 * @param e the Twitter exception
+	 * @return true if Twitter refuses more actions of this kind for now
+	 */
+	public static boolean isLockSignal(TwitterException e) {
+		switch (e.getErrorCode()) {
+		case 161:	// unable to follow more people
+		case 185:	// over the daily status update limit
+		case 226:	// this request looks like it might be automated
+		case 326:	// account temporarily locked
+			return true;
+		default:
+			String msg = e.getErrorMessage();
+			return msg != null && (msg.contains("You are unable to follow more people at this time.")
+				|| msg.contains("this account is temporarily locked."));
+		}
+	}
+	
+	/**
+	 * Saves what the adaptive pacings learned.
+	 */
+	public void save() {
+		boolean changed = false;
+		for (Map.Entry<String, PacingPolicy> entry : policies.entrySet()) {
+			if (!(entry.getValue() instanceof AdaptivePacing))
+				continue;
+			AdaptivePacing pacing = (AdaptivePacing) entry.getValue();
+			state.setProperty(entry.getKey() + ".mean", String.valueOf(pacing.getMean()));
+			state.setProperty(entry.getKey() + ".floor", String.valueOf(pacing.getFloor()));
+			state.setProperty(entry.getKey() + ".min", String.valueOf(pacing.getMinimum()));
+			changed = true;
+		}
+		if (!changed)
+			return;
+		File file = new File(String.format(STATE, account));
+		file.getParentFile().mkdirs();
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				state.store(out, String.format("Pacing of %s", account));
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -15,26 +15,70 @@ package com.directmediatips.twitter;
  */
 
 import java.io.IOException;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import com.directmediatips.twitter.data.TwitterDao;
+
+import twitter4j.Twitter;
 import twitter4j.TwitterException;
 
 /**
  * Creates tweets based on pre-canned quotes stored in a database.
+ * A single run can publish a quote for every account that is passed
+ * to {@link #main(String[])}: the next quote of every account is fetched
+ * with one query, and claimed with one prepared update per account. A quote
+ * is only claimed if its status is still 0, so two runs never post the same quote.
  */
 public class QuoteMachine extends AbstractTwitterMachine {
 
-	/** SQL statement to get a quote from the database. */
-	public static final String QUOTES = "SELECT id, quote, author FROM %s_quotes WHERE status = 0 LIMIT 0, 1";
 	/** SQL statement to reset the status of all the quotes. */
-	public static final String RESET = "UPDATE %s_quotes SET status = 0;";
-	/** SQL statement to set the status of a single quote to 1. */
-	public static final String USE = "UPDATE %s_quotes SET status = 1 WHERE id = ?";
+	public static final String RESET = TwitterDao.RESET_QUOTES;
+	/** SQL statement to get the upcoming quotes of an account (combined with UNION ALL). */
+	public static final String UPCOMING = TwitterDao.UPCOMING_QUOTES;
+	/** SQL statement to claim a quote, unless somebody else claimed it first. */
+	public static final String CLAIM = TwitterDao.CLAIM_QUOTE;
+	/** SQL statement to lock the next available quote, so that it can be claimed. */
+	public static final String NEXT = TwitterDao.NEXT_QUOTE;
+	/** SQL statement to get a quote. */
+	public static final String QUOTE = TwitterDao.SELECT_QUOTE;
+	/** SQL statement to give back a quote that couldn't be tweeted. */
+	public static final String RELEASE = TwitterDao.RELEASE_QUOTE;
+	
+	/**
+	 * A quote that will be tweeted by an account.
+	 */
+	public static class Quote {
+		/** The account that will tweet the quote. */
+		public final String account;
+		/** The id of the quote. */
+		public final int id;
+		/** The status that will be tweeted. */
+		public final String status;
+		
+		/**
+		 * Creates a Quote instance, rendering the status.
+		 *
+		 * @param account the screen name of a Twitter account
+		 * @param id the id of the quote
+		 * @param quote the quote
+		 * @param author the author of the quote
+		 */
+		public Quote(String account, int id, String quote, String author) {
+			this.account = account;
+			this.id = id;
+			this.status = String.format("\"%s\" - %s", quote, author);
+		}
+	}
 
-	/** Prepared statement to mark a quote as used. */
-	protected PreparedStatement setUsed;
+	/** The number of upcoming quotes we look at per account. */
+	protected int queueSize;
 	
 	/**
 	 * Creates a QuoteMachine instance.
@@ -45,7 +89,12 @@ public class QuoteMachine extends AbstractTwitterMachine {
 	 */
 	public QuoteMachine(String account) throws SQLException, IOException {
 		super(account);
-		setUsed = connection.prepare(String.format(USE, account));
+		try {
+			queueSize = Integer.parseInt(properties.getProperty("QuoteQueue"));
+		}
+		catch (Exception e) {
+			queueSize = 5;
+		}
 	}
 	
 	/**
@@ -57,23 +106,147 @@ public class QuoteMachine extends AbstractTwitterMachine {
 	 */
 	@Override
 	public void go() throws SQLException, TwitterException {
-		ResultSet rs = connection.execute(String.format(QUOTES, account));
-		if (!rs.next()) {
-			System.out.println("Resetting the status of all quotes.");
-			connection.execute(String.format(RESET, account));
-		}
-		rs = connection.execute(String.format(QUOTES, account));
-		if (rs.next()) {
-			setUsed.setInt(1, rs.getInt("id"));
-			setUsed.execute();
-			String status = String.format("\"%s\" - %s", rs.getString("quote"), rs.getString("author"));
-			twitter.updateStatus(status);
-			System.out.println(String.format("Tweeted: %s", status));
+		Quote quote = claim(Collections.singletonList(account)).get(account);
+		if (quote != null) {
+			tweet(twitter, quote);
+		}
+	}
+	
+	/**
+	 * Tweets a quote for a series of accounts.
+	 *
+	 * @param accounts the screen names of our Twitter accounts
+	 * @throws SQLException the SQL exception
+	 */
+	public void publish(List<String> accounts) throws SQLException {
+		for (Quote quote : claim(accounts).values()) {
+			try {
+				Twitter twitter = quote.account.equals(account) ? this.twitter
+					: createTwitter(quote.account, loadProperties(quote.account));
+				tweet(twitter, quote);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+			catch (TwitterException e) {
+				showErrorIfNecessary(e);
+			}
+		}
+	}
+	
+	/**
+	 * Tweets a quote; if that fails, the quote is given back.
+	 *
+	 * @param twitter the Twitter instance of the account
+	 * @param quote the quote
+	 * @throws SQLException the SQL exception
+	 * @throws TwitterException the twitter exception
+	 */
+	protected void tweet(Twitter twitter, Quote quote) throws SQLException, TwitterException {
+		try {
+			twitter.updateStatus(quote.status);
+		}
+		catch (TwitterException e) {
+			dao.releaseQuote(quote.account, quote.id);
+			throw e;
+		}
+		log.info("Tweeted for %s: %s", quote.account, quote.status);
+	}
+	
+	/**
+	 * Claims the next quote of a series of accounts. The upcoming quotes
+	 * are fetched with a single query; accounts that ran out of quotes are
+	 * reset, and the first quote of every account is claimed. Only if another
+	 * run claimed the same quote, we fall back to claiming the next available
+	 * quote of that account.
+	 *
+	 * @param accounts the screen names of our Twitter accounts
+	 * @return the claimed quote per account
+	 * @throws SQLException the SQL exception
+	 */
+	public Map<String, Quote> claim(List<String> accounts) throws SQLException {
+		Map<String, List<Quote>> upcoming = getUpcoming(accounts);
+		List<String> empty = new ArrayList<String>();
+		for (String account : accounts) {
+			if (upcoming.get(account).isEmpty())
+				empty.add(account);
+		}
+		if (!empty.isEmpty()) {
+			for (String account : empty) {
+				log.info("Resetting the status of all quotes of %s.", account);
+				dao.resetQuotes(account);
+			}
+			upcoming.putAll(getUpcoming(empty));
+		}
+		Map<String, Quote> claimed = new LinkedHashMap<String, Quote>();
+		for (List<Quote> queue : upcoming.values()) {
+			if (queue.isEmpty())
+				continue;
+			Quote quote = queue.get(0);
+			if (!dao.claimQuote(quote.account, quote.id))
+				quote = claimNext(quote.account);
+			if (quote != null)
+				claimed.put(quote.account, quote);
+		}
+		return claimed;
+	}
+	
+	/**
+	 * Claims the next available quote of an account.
+	 *
+	 * @param account the screen name of a Twitter account
+	 * @return the claimed quote, or null if no quote is available
+	 * @throws SQLException the SQL exception
+	 */
+	protected Quote claimNext(String account) throws SQLException {
+		int id = dao.claimNextQuote(account);
+		if (id == 0)
+			return null;
+		ResultSet rs = dao.getQuote(account, id);
+		try {
+			if (rs.next())
+				return new Quote(account, rs.getInt("id"), rs.getString("quote"), rs.getString("author"));
+			return null;
+		}
+		finally {
+			rs.close();
+		}
+	}
+	
+	/**
+	 * Gets the queue of upcoming quotes for a series of accounts,
+	 * with the statuses rendered the way they will be tweeted.
+	 *
+	 * @param accounts the screen names of our Twitter accounts
+	 * @return the upcoming quotes per account
+	 * @throws SQLException the SQL exception
+	 */
+	public Map<String, List<Quote>> getUpcoming(List<String> accounts) throws SQLException {
+		Map<String, List<Quote>> upcoming = new LinkedHashMap<String, List<Quote>>();
+		StringBuilder sql = new StringBuilder();
+		for (String account : accounts) {
+			upcoming.put(account, new ArrayList<Quote>());
+			if (sql.length() > 0)
+				sql.append(" UNION ALL ");
+			sql.append(String.format(UPCOMING, account, queueSize));
+		}
+		ResultSet rs = dao.execute(sql.toString());
+		try {
+			while (rs.next()) {
+				upcoming.get(rs.getString("account")).add(
+					new Quote(rs.getString("account"), rs.getInt("id"), rs.getString("quote"), rs.getString("author")));
+			}
+		}
+		finally {
+			rs.close();
 		}
+		return upcoming;
 	}
 	
 	/**
-	 * Starts and runs the Twitter machine.
+	 * Starts and runs the Twitter machine. With more than one argument,
+	 * a quote is published for every account, using a single process
+	 * and a single database connection.
 	 *
 	 * @param args the arguments
 	 */
@@ -82,11 +255,14 @@ public class QuoteMachine extends AbstractTwitterMachine {
 			System.out.println("An argument is required...");
 			return;
 		}
-		System.out.println(String.format("Running QuoteMachine for %s...", args[0]));
-		AbstractTwitterMachine app = null;
+		System.out.println(String.format("Running QuoteMachine for %s...", String.join(", ", args)));
+		QuoteMachine app = null;
 		try {
 			app = new QuoteMachine(args[0]);
-			app.go();
+			if (args.length == 1)
+				app.go();
+			else
+				app.publish(Arrays.asList(args));
 		}
 		catch(Exception e) {
 			e.printStackTrace();
@@ -0,0 +1,472 @@
+package com.directmediatips.twitter;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import twitter4j.DirectMessage;
+import twitter4j.IDs;
+import twitter4j.RateLimitStatus;
+import twitter4j.ResponseList;
+import twitter4j.Status;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.TwitterResponse;
+import twitter4j.User;
+
+/**
+ * Asynchronous variants of the Twitter calls the machines use. Every call
+ * returns a CompletableFuture, so that a machine can keep fetching from
+ * Twitter while it writes to the database. Each endpoint has its own limit
+ * on the number of concurrent calls, and once Twitter reports that the
+ * rate window of an endpoint is used up, new calls to that endpoint wait
+ * for the reset instead of failing. Calls wait in a queue per endpoint,
+ * not on the threads: the threads only make the actual calls, so an
+ * exhausted endpoint never holds up the calls to other endpoints.
+ * <p>
+ * The limits are read from the account properties, e.g.
+ * <code>async.threads=8</code> or <code>async.users/show=4</code>.
+ * Calls that fail complete exceptionally with a CompletionException
+ * wrapping the TwitterException.
+ */
+public class RateAwareTwitter {
+	
+	/** The endpoint to get a user. */
+	public static final String SHOW_USER = "users/show";
+	/** The endpoint to look up users. */
+	public static final String LOOKUP_USERS = "users/lookup";
+	/** The endpoint to get the IDs of the accounts somebody follows. */
+	public static final String FRIENDS_IDS = "friends/ids";
+	/** The endpoint to get the IDs of the followers of an account. */
+	public static final String FOLLOWERS_IDS = "followers/ids";
+	/** The endpoint to get the timeline of a user. */
+	public static final String USER_TIMELINE = "statuses/user_timeline";
+	/** The endpoint to follow an account. */
+	public static final String CREATE_FRIENDSHIP = "friendships/create";
+	/** The endpoint to unfollow an account. */
+	public static final String DESTROY_FRIENDSHIP = "friendships/destroy";
+	/** The endpoint to retweet a tweet. */
+	public static final String RETWEET_STATUS = "statuses/retweet";
+	/** The endpoint to delete a direct message. */
+	public static final String DESTROY_DIRECT_MESSAGE = "direct_messages/destroy";
+	/** The default number of concurrent calls for each endpoint. */
+	public static final String[][] PERMITS = {
+		{ SHOW_USER, "4" }, { LOOKUP_USERS, "2" }, { FRIENDS_IDS, "1" }, { FOLLOWERS_IDS, "1" },
+		{ USER_TIMELINE, "4" }, { CREATE_FRIENDSHIP, "1" }, { DESTROY_FRIENDSHIP, "1" }, { RETWEET_STATUS, "1" },
+		{ DESTROY_DIRECT_MESSAGE, "4" }
+	};
+	/** The number of times a call is retried after waiting for a new rate window. */
+	public static final int RETRIES = 2;
+	/** The extra seconds we wait after a reset, to be on the safe side. */
+	public static final int MARGIN = 5;
+	/** The seconds we wait after a rate limit error that doesn't tell us when the window resets. */
+	public static final int BACK_OFF = 60;
+	
+	/**
+	 * A call that is waiting for its turn, or that is being made.
+	 *
+	 * @param <T> the type of the response
+	 */
+	protected static class Task<T extends TwitterResponse> {
+		/** The call to Twitter. */
+		protected final Callable<T> call;
+		/** The future that is completed with the response. */
+		protected final CompletableFuture<T> future = new CompletableFuture<T>();
+		/** The number of times the call was retried. */
+		protected int retries;
+		
+		/**
+		 * Creates a Task instance.
+		 *
+		 * @param call the call to Twitter
+		 */
+		protected Task(Callable<T> call) {
+			this.call = call;
+		}
+	}
+	
+	/**
+	 * Keeps track of the state of an endpoint.
+	 */
+	protected static class Endpoint {
+		/** The name of the endpoint. */
+		protected final String name;
+		/** The maximum number of concurrent calls. */
+		protected final int permits;
+		/** The calls that are waiting for their turn. */
+		protected final Deque<Task<?>> queue = new ArrayDeque<Task<?>>();
+		/** The number of calls that are being made. */
+		protected int active;
+		/** Is true if the queue will be dispatched when the rate window is reset. */
+		protected boolean scheduled;
+		/** The time (in ms) until which the endpoint is exhausted. */
+		protected volatile long blockedUntil;
+		
+		/**
+		 * Creates an Endpoint instance.
+		 *
+		 * @param name the name of the endpoint
+		 * @param permits the number of concurrent calls
+		 */
+		protected Endpoint(String name, int permits) {
+			this.name = name;
+			this.permits = permits;
+		}
+		
+		/**
+		 * Remembers the rate limit status returned by Twitter.
+		 *
+		 * @param rls the rate limit status (can be null)
+		 */
+		protected void update(RateLimitStatus rls) {
+			if (rls != null && rls.getRemaining() == 0)
+				block(rls.getSecondsUntilReset());
+		}
+		
+		/**
+		 * Blocks the endpoint for a number of seconds, plus the {@link #MARGIN}.
+		 *
+		 * @param seconds the number of seconds
+		 */
+		protected void block(int seconds) {
+			blockedUntil = Math.max(blockedUntil, System.currentTimeMillis() + 1000l * (seconds + MARGIN));
+		}
+	}
+	
+	/** The synchronous Twitter instance. */
+	protected final Twitter twitter;
+	/** The threads that make the calls. */
+	protected final ExecutorService executor;
+	/** The thread that dispatches the calls to exhausted endpoints after a reset. */
+	protected final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+	/** The log of the calls. */
+	protected final MachineLog log = new MachineLog(getClass().getSimpleName());
+	/** The number of calls that didn't complete yet. */
+	protected int pending;
+	/** The state of each endpoint. */
+	protected final Map<String, Endpoint> endpoints = new HashMap<String, Endpoint>();
+	
+	/**
+	 * Creates a RateAwareTwitter instance.
+	 *
+	 * @param twitter a Twitter instance
+	 * @param properties the account properties
+	 */
+	public RateAwareTwitter(Twitter twitter, Properties properties) {
+		this.twitter = twitter;
+		int threads;
+		try {
+			threads = Integer.parseInt(properties.getProperty("async.threads"));
+		}
+		catch (Exception e) {
+			threads = 8;
+		}
+		executor = Executors.newFixedThreadPool(threads);
+		for (String[] permits : PERMITS) {
+			endpoints.put(permits[0], new Endpoint(permits[0],
+				Integer.parseInt(properties.getProperty("async." + permits[0], permits[1]))));
+		}
+	}
+	
+	/**
+	 * Gets the synchronous Twitter instance.
+	 *
+	 * @return the Twitter instance
+	 */
+	public Twitter getTwitter() {
+		return twitter;
+	}
+	
+	/**
+	 * Gets a user.
+	 *
+	 * @param id the ID of the user
+	 * @return the user in the future
+	 */
+	public CompletableFuture<User> showUser(final long id) {
+		return call(SHOW_USER, new Callable<User>() {
+			public User call() throws TwitterException {
+				return twitter.showUser(id);
+			}
+		});
+	}
+	
+	/**
+	 * Looks up to 100 users.
+	 *
+	 * @param ids the IDs of the users
+	 * @return the users in the future
+	 */
+	public CompletableFuture<ResponseList<User>> lookupUsers(final long... ids) {
+		return call(LOOKUP_USERS, new Callable<ResponseList<User>>() {
+			public ResponseList<User> call() throws TwitterException {
+				return twitter.lookupUsers(ids);
+			}
+		});
+	}
+	
+	/**
+	 * Gets a page of IDs of the accounts a user follows.
+	 *
+	 * @param id the ID of the user
+	 * @param cursor the cursor (-1 for the first page)
+	 * @return the IDs in the future
+	 */
+	public CompletableFuture<IDs> getFriendsIDs(final long id, final long cursor) {
+		return call(FRIENDS_IDS, new Callable<IDs>() {
+			public IDs call() throws TwitterException {
+				return twitter.getFriendsIDs(id, cursor);
+			}
+		});
+	}
+	
+	/**
+	 * Gets a page of IDs of the followers of a user.
+	 *
+	 * @param id the ID of the user
+	 * @param cursor the cursor (-1 for the first page)
+	 * @return the IDs in the future
+	 */
+	public CompletableFuture<IDs> getFollowersIDs(final long id, final long cursor) {
+		return call(FOLLOWERS_IDS, new Callable<IDs>() {
+			public IDs call() throws TwitterException {
+				return twitter.getFollowersIDs(id, cursor);
+			}
+		});
+	}
+	
+	/**
+	 * Gets the most recent tweets of a user.
+	 *
+	 * @param id the ID of the user
+	 * @return the tweets in the future
+	 */
+	public CompletableFuture<ResponseList<Status>> getUserTimeline(final long id) {
+		return call(USER_TIMELINE, new Callable<ResponseList<Status>>() {
+			public ResponseList<Status> call() throws TwitterException {
+				return twitter.getUserTimeline(id);
+			}
+		});
+	}
+	
+	/**
+	 * Follows a user.
+	 *
+	 * @param id the ID of the user
+	 * @return the user in the future
+	 */
+	public CompletableFuture<User> createFriendship(final long id) {
+		return call(CREATE_FRIENDSHIP, new Callable<User>() {
+			public User call() throws TwitterException {
+				return twitter.createFriendship(id);
+			}
+		});
+	}
+	
+	/**
+	 * Unfollows a user.
+	 *
+	 * @param id the ID of the user
+	 * @return the user in the future
+	 */
+	public CompletableFuture<User> destroyFriendship(final long id) {
+		return call(DESTROY_FRIENDSHIP, new Callable<User>() {
+			public User call() throws TwitterException {
+				return twitter.destroyFriendship(id);
+			}
+		});
+	}
+	
+	/**
+	 * Retweets a tweet.
+	 *
+	 * @param id the ID of the tweet
+	 * @return the retweet in the future
+	 */
+	public CompletableFuture<Status> retweetStatus(final long id) {
+		return call(RETWEET_STATUS, new Callable<Status>() {
+			public Status call() throws TwitterException {
+				return twitter.retweetStatus(id);
+			}
+		});
+	}
+	
+	/**
+	 * Deletes a direct message.
+	 *
+	 * @param id the ID of the direct message
+	 * @return the deleted direct message in the future
+	 */
+	public CompletableFuture<DirectMessage> destroyDirectMessage(final long id) {
+		return call(DESTROY_DIRECT_MESSAGE, new Callable<DirectMessage>() {
+			public DirectMessage call() throws TwitterException {
+				return twitter.destroyDirectMessage(id);
+			}
+		});
+	}
+	
+	/**
+	 * Calls an endpoint on one of our threads, respecting its limits.
+	 *
+	 * @param <T> the type of the response
+	 * @param name the name of the endpoint
+	 * @param call the call to Twitter
+	 * @return the response in the future
+	 */
+	protected <T extends TwitterResponse> CompletableFuture<T> call(String name, final Callable<T> call) {
+		Endpoint endpoint = endpoints.get(name);
+		Task<T> task = new Task<T>(call);
+		synchronized (this) {
+			pending++;
+		}
+		synchronized (endpoint) {
+			endpoint.queue.add(task);
+		}
+		dispatch(endpoint);
+		return task.future;
+	}
+	
+	/**
+	 * Hands the waiting calls of an endpoint to the threads, as far as the
+	 * limits allow. If the rate window is used up, the queue is dispatched
+	 * again after the reset.
+	 *
+	 * @param endpoint the endpoint
+	 */
+	protected void dispatch(final Endpoint endpoint) {
+		synchronized (endpoint) {
+			long wait = endpoint.blockedUntil - System.currentTimeMillis();
+			if (wait > 0) {
+				if (!endpoint.scheduled && !endpoint.queue.isEmpty()) {
+					endpoint.scheduled = true;
+					log.info("Rate limit of %s exceeded; waiting %s seconds...", endpoint.name, wait / 1000);
+					timer.schedule(new Runnable() {
+						public void run() {
+							synchronized (endpoint) {
+								endpoint.scheduled = false;
+							}
+							dispatch(endpoint);
+						}
+					}, wait, TimeUnit.MILLISECONDS);
+				}
+				return;
+			}
+			while (endpoint.active < endpoint.permits && !endpoint.queue.isEmpty()) {
+				final Task<?> task = endpoint.queue.poll();
+				endpoint.active++;
+				executor.execute(new Runnable() {
+					public void run() {
+						execute(endpoint, task);
+					}
+				});
+			}
+		}
+	}
+	
+	/**
+	 * Makes a call once. If the rate window turns out to be used up, the
+	 * call is put back in front of the queue, until it was retried
+	 * {@link #RETRIES} times. If the error doesn't tell us when the window
+	 * resets, the endpoint waits for the Retry-After header, or for
+	 * {@link #BACK_OFF} seconds, so that the retries aren't used up at once.
+	 *
+	 * @param <T> the type of the response
+	 * @param endpoint the endpoint
+	 * @param task the call
+	 */
+	protected <T extends TwitterResponse> void execute(Endpoint endpoint, Task<T> task) {
+		boolean done = true;
+		try {
+			T response = task.call.call();
+			if (response != null)
+				endpoint.update(response.getRateLimitStatus());
+			task.future.complete(response);
+		}
+		catch (TwitterException e) {
+			endpoint.update(e.getRateLimitStatus());
+			if (e.exceededRateLimitation() && endpoint.blockedUntil <= System.currentTimeMillis())
+				endpoint.block(e.getRetryAfter() > 0 ? e.getRetryAfter() : BACK_OFF);
+			if (e.exceededRateLimitation() && task.retries++ < RETRIES) {
+				done = false;
+				synchronized (endpoint) {
+					endpoint.queue.addFirst(task);
+				}
+			}
+			else {
+				task.future.completeExceptionally(new CompletionException(e));
+			}
+		}
+		catch (Exception e) {
+			task.future.completeExceptionally(new CompletionException(e));
+		}
+		finally {
+			synchronized (endpoint) {
+				endpoint.active--;
+			}
+			if (done) {
+				synchronized (this) {
+					pending--;
+					notifyAll();
+				}
+			}
+			dispatch(endpoint);
+		}
+	}
+	
+	/**
+	 * Gets the TwitterException that caused a call to fail.
+	 *
+	 * @param e the exception thrown by a future
+	 * @return the TwitterException, or null if the call failed for another reason
+	 */
+	public static TwitterException getTwitterException(Throwable e) {
+		while (e != null) {
+			if (e instanceof TwitterException)
+				return (TwitterException) e;
+			e = e.getCause();
+		}
+		return null;
+	}
+	
+	/**
+	 * Stops accepting calls and waits for the pending calls to finish.
+	 */
+	public void shutdown() {
+		try {
+			long end = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+			synchronized (this) {
+				long wait;
+				while (pending > 0 && (wait = end - System.currentTimeMillis()) > 0)
+					wait(wait);
+			}
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		timer.shutdownNow();
+		executor.shutdown();
+	}
+}
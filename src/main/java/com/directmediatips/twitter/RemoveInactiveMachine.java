@@ -15,10 +15,11 @@ package com.directmediatips.twitter;
  */
 
 import java.io.IOException;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Date;
 
+import com.directmediatips.twitter.data.TwitterDao;
+
 import twitter4j.Status;
 import twitter4j.TwitterException;
 import twitter4j.User;
@@ -29,8 +30,7 @@ import twitter4j.User;
 public class RemoveInactiveMachine extends AbstractTwitterMachine {
 
 	/** The Constant SELECT_UNFOLLOW. */
-	public static final String SELECT_UNFOLLOW =
-		"SELECT id FROM %s_accounts WHERE wefollow=1";
+	public static final String SELECT_UNFOLLOW = TwitterDao.SELECT_WE_FOLLOW;
 
 	/** The maximum number of accounts to follow in one go. */
 	protected long inactivity;
@@ -61,11 +61,9 @@ public class RemoveInactiveMachine extends AbstractTwitterMachine {
 	 */
 	@Override
 	public void go() throws SQLException, TwitterException {
-		ResultSet rs = connection.execute(String.format(SELECT_UNFOLLOW, account));
-		long id;
-		while (rs.next()) {
+		for (long id : dao.getWeFollow(account)) {
 			try {
-				id = rs.getLong(1);
+				acquire(RateAwareTwitter.SHOW_USER);
 				User user = twitter.showUser(id);
 				Status status = user.getStatus();
 				if (status != null) {
@@ -73,7 +71,7 @@ public class RemoveInactiveMachine extends AbstractTwitterMachine {
 					Date now = new Date();
 					if (now.getTime() - date.getTime() > inactivity) {
 						twitter.destroyFriendship(id);
-						System.out.println(String.format("Unfriending %s: inactive account", user.getScreenName()));
+						log.info("Unfriending %s: inactive account", user.getScreenName());
 					}
 				}
 				this.needsSleep(250);
@@ -15,37 +15,47 @@ package com.directmediatips.twitter;
  */
 
 import java.io.IOException;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
+import com.directmediatips.twitter.data.Relationships;
+import com.directmediatips.twitter.data.TwitterDao;
+import com.directmediatips.twitter.sim.PacingPolicy;
+
+import twitter4j.ResponseList;
 import twitter4j.Status;
+import twitter4j.Twitter;
 import twitter4j.TwitterException;
 
 /**
  * Automatically retweets random tweets from selected accounts.
+ * When {@link #main(String[])} gets more than one account, the timeline
+ * of every source account is fetched only once, even if it is selected
+ * by several of our accounts, and the retweets of our accounts are
+ * interleaved.
  */
 public class RetweetMachine extends AbstractTwitterMachine {
 
 	/** SQL to store the IDs that were retweeted for the current account. */
-	public static final String RETWEET_ACCOUNTS =
-			"SELECT id FROM %s_accounts WHERE retweet = 1";
+	public static final String RETWEET_ACCOUNTS = TwitterDao.RETWEET_ACCOUNTS;
+	/** SQL to get the accounts selected for retweets by one of our accounts (combined with UNION ALL). */
+	public static final String RETWEET_SOURCES = TwitterDao.RETWEET_SOURCES;
 	/** SQL to check if a tweet was already retweeted. */
-	public static final String RETWEETED =
-			"SELECT count(*) FROM retweets WHERE account = ? AND tweetid = ?";
+	public static final String RETWEETED = TwitterDao.RETWEETED;
 	/** SQL to store the IDs that were retweeted for the current account. */
-	public static final String RETWEET = "INSERT INTO retweets"
-			+ " VALUES (?, ?);";
+	public static final String RETWEET = TwitterDao.RETWEET;
 
-	/** A prepared statement to check if a tweet was already retweeted. */
-	protected PreparedStatement retweeted;
-	/** A prepared statement to insert a tweeted tweet. */
-	protected PreparedStatement retweet;
-	
 	/** The maximum number of retweets. */
 	protected int maximum;
 	
@@ -64,8 +74,6 @@ public class RetweetMachine extends AbstractTwitterMachine {
 		catch (Exception e) {
 			maximum = 3;
 		}
-		retweeted = connection.prepare(RETWEETED);
-		retweet = connection.prepare(RETWEET);
 	}
 	
 	/**
@@ -91,15 +99,91 @@ public class RetweetMachine extends AbstractTwitterMachine {
 	 * @throws TwitterException the twitter exception
 	 */
 	public void harvest(List<Status> list) throws SQLException, TwitterException {
-		ResultSet rs = connection.execute(String.format(RETWEET_ACCOUNTS, account));
-		while (rs.next()) {
-			List<Status> statuses = twitter.getUserTimeline(rs.getLong("id"));
-			for (Status status : statuses) {
+		// fetch the timelines in the background while we check the tweets in the database
+		List<CompletableFuture<ResponseList<Status>>> timelines = new ArrayList<CompletableFuture<ResponseList<Status>>>();
+		for (long id : dao.getRetweetAccounts(account)) {
+			timelines.add(getAsync().getUserTimeline(id));
+		}
+		for (CompletableFuture<ResponseList<Status>> timeline : timelines) {
+			for (Status status : join(timeline)) {
 				process(list, status);
 			}
 		}
 	}
 	
+	/**
+	 * Harvests tweets for a series of accounts. Every timeline is fetched
+	 * once, and its tweets are offered to all the accounts that selected it.
+	 *
+	 * @param accounts the screen names of our Twitter accounts
+	 * @return the candidate tweets per account
+	 * @throws SQLException the SQL exception
+	 * @throws TwitterException the twitter exception
+	 */
+	public Map<String, List<Status>> harvestShared(List<String> accounts) throws SQLException, TwitterException {
+		Map<String, List<Status>> lists = new LinkedHashMap<String, List<Status>>();
+		StringBuilder sql = new StringBuilder();
+		for (String account : accounts) {
+			lists.put(account, new ArrayList<Status>());
+			if (sql.length() > 0)
+				sql.append(" UNION ALL ");
+			sql.append(Relationships.format(RETWEET_SOURCES, account));
+		}
+		Map<Long, List<String>> subscribers = new LinkedHashMap<Long, List<String>>();
+		ResultSet rs = dao.execute(sql.toString(), Relationships.getParameters(RETWEET_SOURCES, accounts.toArray()));
+		while (rs.next()) {
+			List<String> list = subscribers.get(rs.getLong("id"));
+			if (list == null) {
+				list = new ArrayList<String>();
+				subscribers.put(rs.getLong("id"), list);
+			}
+			list.add(rs.getString("account"));
+		}
+		Map<Long, CompletableFuture<ResponseList<Status>>> timelines =
+			new LinkedHashMap<Long, CompletableFuture<ResponseList<Status>>>();
+		for (Long id : subscribers.keySet()) {
+			timelines.put(id, getAsync().getUserTimeline(id));
+		}
+		int fetches = 0;
+		for (Map.Entry<Long, CompletableFuture<ResponseList<Status>>> timeline : timelines.entrySet()) {
+			List<Status> statuses;
+			try {
+				statuses = join(timeline.getValue());
+				fetches++;
+			}
+			catch (TwitterException e) {
+				showErrorIfNecessary(e);
+				continue;
+			}
+			for (String account : subscribers.get(timeline.getKey())) {
+				for (Status status : statuses) {
+					process(account, lists.get(account), status);
+				}
+			}
+		}
+		log.info("Fetched %s timelines for %s accounts", fetches, accounts.size());
+		return lists;
+	}
+	
+	/**
+	 * Waits for a timeline.
+	 *
+	 * @param timeline the timeline in the future
+	 * @return the timeline
+	 * @throws TwitterException the twitter exception
+	 */
+	protected List<Status> join(CompletableFuture<ResponseList<Status>> timeline) throws TwitterException {
+		try {
+			return timeline.join();
+		}
+		catch (CompletionException e) {
+			TwitterException te = RateAwareTwitter.getTwitterException(e);
+			if (te != null)
+				throw te;
+			throw e;
+		}
+	}
+	
 	/**
 	 * Processes a status update.
 	 *
@@ -108,6 +192,18 @@ public class RetweetMachine extends AbstractTwitterMachine {
 	 * @throws SQLException the SQL exception
 	 */
 	public void process(List<Status> list, Status status) throws SQLException {
+		process(account, list, status);
+	}
+	
+	/**
+	 * Processes a status update for one of our accounts.
+	 *
+	 * @param account the screen name of a Twitter account
+	 * @param list the list
+	 * @param status the Status to update
+	 * @throws SQLException the SQL exception
+	 */
+	public void process(String account, List<Status> list, Status status) throws SQLException {
 		// Don't retweet if it might be a sensitive tweet
 		if (status.isPossiblySensitive()) {
 			return;
@@ -125,7 +221,7 @@ public class RetweetMachine extends AbstractTwitterMachine {
 			return;
 		}
 		// Don't re-retweet
-		if (isRetweeted(status.getId())) {
+		if (isRetweeted(account, status.getId())) {
 			return;
 		}
 		list.add(status);
@@ -139,13 +235,19 @@ public class RetweetMachine extends AbstractTwitterMachine {
 	 * @throws SQLException the SQL exception
 	 */
 	public boolean isRetweeted(long id) throws SQLException {
-		retweeted.setString(1, account);
-		retweeted.setLong(2, id);
-		ResultSet rs = retweeted.executeQuery();
-		if (rs.next()) {
-			return rs.getInt(1) == 1;
-		}
-		return false;
+		return isRetweeted(account, id);
+	}
+	
+	/**
+	 * Checks if a tweet was already retweeted by one of our accounts.
+	 *
+	 * @param account the screen name of a Twitter account
+	 * @param id the ID of the tweet that might be retweeted
+	 * @return true if the tweet was already retweeted
+	 * @throws SQLException the SQL exception
+	 */
+	public boolean isRetweeted(String account, long id) throws SQLException {
+		return dao.isRetweeted(account, id);
 	}
 	
 	/**
@@ -158,22 +260,117 @@ public class RetweetMachine extends AbstractTwitterMachine {
 	public void tweet(List<Status> list) throws SQLException, TwitterException {
 		Collections.shuffle(list);
 		int tweets = 0;
-		String text;
-		System.out.println(String.format("Retweeting %s tweets from %s statuses", maximum, list.size()));
+		PacingPolicy pacing = pacer.get("Retweet", 15, 45);
+		log.info("Retweeting %s tweets from %s statuses", maximum, list.size());
 		for (Status status: list) {
-			text = status.getText();
-			if (text.length() < 2) continue;
-			if (text.charAt(0) == '@' || text.charAt(1) == '@')
-				continue;
-			retweet.setString(1, account);
-			retweet.setLong(2, status.getId());
-			retweet.executeQuery();
-			twitter.retweetStatus(status.getId());
-			System.out.println(String.format("Retweeted: %s", text));
+			try {
+				if (!retweet(twitter, account, status))
+					continue;
+			}
+			catch (TwitterException e) {
+				PacingController.onRefused(pacing, e);
+				throw e;
+			}
+			pacing.onSuccess();
 			if (++tweets == maximum)
 				break;
-			sleepRandom(15, 45);
+			sleep(pacing);
+		}
+	}
+	
+	/**
+	 * Retweets for a series of accounts. The lists are shuffled, and the
+	 * accounts take turns; after every round, we pause as long as the
+	 * slowest pacing of the accounts that retweeted asks for. An account
+	 * that is locked or hits a breaking error is dropped for the rest of
+	 * the run; after any other error, the account pauses before it tries
+	 * its next candidate.
+	 *
+	 * @param lists the candidate tweets per account
+	 * @throws SQLException the SQL exception
+	 */
+	public void tweet(Map<String, List<Status>> lists) throws SQLException {
+		Map<String, Twitter> twitters = new LinkedHashMap<String, Twitter>();
+		Map<String, Integer> maximums = new LinkedHashMap<String, Integer>();
+		Map<String, PacingController> pacers = new LinkedHashMap<String, PacingController>();
+		for (String account : lists.keySet()) {
+			try {
+				Properties properties = loadProperties(account);
+				int max;
+				try {
+					max = Integer.parseInt(properties.getProperty("MaxRetweet"));
+				}
+				catch (Exception e) {
+					max = 3;
+				}
+				if (max == 0) continue;
+				twitters.put(account, account.equals(this.account) ? twitter : createTwitter(account, properties));
+				maximums.put(account, max);
+				pacers.put(account, account.equals(this.account) ? pacer : new PacingController(account, properties));
+				Collections.shuffle(lists.get(account));
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		double pause = 0;
+		for (int round = 0; pause > 0 || round == 0; round++) {
+			pause = 0;
+			for (Iterator<Map.Entry<String, Twitter>> entries = twitters.entrySet().iterator(); entries.hasNext(); ) {
+				Map.Entry<String, Twitter> entry = entries.next();
+				String account = entry.getKey();
+				List<Status> list = lists.get(account);
+				PacingPolicy pacing = pacers.get(account).get("Retweet", 15, 45);
+				if (round >= maximums.get(account))
+					continue;
+				while (!list.isEmpty()) {
+					try {
+						if (retweet(entry.getValue(), account, list.remove(0))) {
+							pacing.onSuccess();
+							pause = Math.max(pause, pacing.pause(RANDOM));
+							break;
+						}
+					}
+					catch (TwitterException e) {
+						PacingController.onRefused(pacing, e);
+						if (PacingController.isLockSignal(e) || isBreakingError(e)) {
+							log.warn("Stopped retweeting for %s: %s", account, e.getMessage());
+							entries.remove();
+							break;
+						}
+						sleep(pacing);
+					}
+				}
+			}
+			if (pause > 0)
+				sleep(pause);
 		}
+		for (PacingController pacer : pacers.values()) {
+			if (pacer != this.pacer)
+				pacer.save();
+		}
+	}
+	
+	/**
+	 * Retweets a tweet for one of our accounts, unless it is a reply.
+	 *
+	 * @param twitter the Twitter instance of the account
+	 * @param account the screen name of a Twitter account
+	 * @param status the tweet
+	 * @return true if the tweet was retweeted
+	 * @throws SQLException the SQL exception
+	 * @throws TwitterException the twitter exception
+	 */
+	protected boolean retweet(Twitter twitter, String account, Status status) throws SQLException, TwitterException {
+		String text = status.getText();
+		if (text.length() < 2)
+			return false;
+		if (text.charAt(0) == '@' || text.charAt(1) == '@')
+			return false;
+		dao.addRetweet(account, status.getId());
+		twitter.retweetStatus(status.getId());
+		log.info("Retweeted for %s: %s", account, text);
+		return true;
 	}
 	
 	/**
@@ -186,11 +383,14 @@ public class RetweetMachine extends AbstractTwitterMachine {
 			System.out.println("An argument is required...");
 			return;
 		}
-		System.out.println(String.format("Running RetweetMachine for %s...", args[0]));
-		AbstractTwitterMachine app = null;
+		System.out.println(String.format("Running RetweetMachine for %s...", String.join(", ", args)));
+		RetweetMachine app = null;
 		try {
 			app = new RetweetMachine(args[0]);
-			app.go();
+			if (args.length == 1)
+				app.go();
+			else
+				app.tweet(app.harvestShared(Arrays.asList(args)));
 		}
 		catch(Exception e) {
 			e.printStackTrace();
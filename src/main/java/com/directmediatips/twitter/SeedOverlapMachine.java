@@ -0,0 +1,118 @@
+package com.directmediatips.twitter;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.directmediatips.twitter.store.MinHashSketch;
+
+import twitter4j.TwitterException;
+
+/**
+ * Reports the estimated overlap between the audiences of the seeds
+ * of an account, without calling Twitter: the estimates are made with
+ * the sketches that {@link FollowMachine} stores with every seed list.
+ * The report shows the seeds in the order {@link FollowMachine} would
+ * harvest them, and the pairs of seeds with the most similar audiences.
+ */
+public class SeedOverlapMachine extends FollowMachine {
+	
+	/** The number of pairs in the report. */
+	public static final int PAIRS = 20;
+	
+	/**
+	 * Creates a SeedOverlapMachine instance.
+	 *
+	 * @param account a Twitter account screen name
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws SQLException the SQL exception
+	 */
+	public SeedOverlapMachine(String account) throws IOException, SQLException {
+		super(account);
+	}
+	
+	/**
+	 * Prints the ranking of the seeds and the most overlapping pairs.
+	 *
+	 * @throws SQLException the SQL exception
+	 * @throws TwitterException the twitter exception
+	 * @see com.directmediatips.twitter.FollowMachine#go()
+	 */
+	@Override
+	public void go() throws SQLException, TwitterException {
+		final Map<String, MinHashSketch> sketches = getSeedSketches();
+		MinHashSketch audience = getAudience();
+		Set<String> skip = new HashSet<String>();
+		System.out.println(String.format("Audience of %s: %s accounts; %s seeds with a sketch",
+			account, audience.size(), sketches.size()));
+		System.out.println(String.format("%-30s %10s %10s %6s", "seed", "accounts", "new", "%"));
+		for (Map.Entry<String, Long> entry : rankSeeds(sketches, audience, skip).entrySet()) {
+			long size = sketches.get(entry.getKey()).size();
+			System.out.println(String.format("%-30s %10s %10s %6.1f%s", entry.getKey(), size, entry.getValue(),
+				size == 0 ? 0 : 100.0 * entry.getValue() / size, skip.contains(entry.getKey()) ? " skip" : ""));
+		}
+		List<String[]> pairs = new ArrayList<String[]>();
+		List<String> keys = new ArrayList<String>(sketches.keySet());
+		for (int i = 0; i < keys.size(); i++) {
+			for (int j = i + 1; j < keys.size(); j++)
+				pairs.add(new String[] { keys.get(i), keys.get(j) });
+		}
+		Collections.sort(pairs, new Comparator<String[]>() {
+			public int compare(String[] a, String[] b) {
+				return Double.compare(similarity(b), similarity(a));
+			}
+			private double similarity(String[] pair) {
+				return sketches.get(pair[0]).similarity(sketches.get(pair[1]));
+			}
+		});
+		System.out.println(String.format("%-30s %-30s %8s %10s", "seed", "seed", "jaccard", "overlap"));
+		for (String[] pair : pairs.subList(0, Math.min(PAIRS, pairs.size()))) {
+			MinHashSketch a = sketches.get(pair[0]);
+			MinHashSketch b = sketches.get(pair[1]);
+			System.out.println(String.format("%-30s %-30s %8.2f %10s", pair[0], pair[1], a.similarity(b), a.overlap(b)));
+		}
+	}
+	
+	/**
+	 * Starts and runs the Twitter machine.
+	 *
+	 * @param args the arguments
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.out.println("An argument is required...");
+			return;
+		}
+		System.out.println(String.format("Running SeedOverlapMachine for %s...", args[0]));
+		AbstractTwitterMachine app = null;
+		try {
+			app = new SeedOverlapMachine(args[0]);
+			app.go();
+		}
+		catch(Exception e) {
+			e.printStackTrace();
+		}
+		if (app != null)
+			app.close();
+	}
+}
@@ -0,0 +1,263 @@
+package com.directmediatips.twitter;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+
+/**
+ * Records the responses of the Twitter API, including the time each call
+ * took, to a compressed cassette file, and plays them back offline. A
+ * machine that runs against a cassette sees exactly the same data, errors
+ * and latency every time, which makes it possible to compare performance
+ * before and after a change. The cassette is configured in the account
+ * properties:
+ * <ul>
+ * <li><code>cassette</code>: <code>record</code> or <code>replay</code>,</li>
+ * <li><code>cassette.file</code>: the cassette (defaults to <code>twitter/cassettes/[account].cassette</code>),</li>
+ * <li><code>cassette.latency</code>: the factor applied to the recorded latency when replaying (defaults to 1),</li>
+ * <li><code>cassette.sleep</code>: the factor applied to the pauses of the machines (defaults to 1).</li>
+ * </ul>
+ * The system properties <code>-Dcassette</code> and <code>-Dcassette.sleep</code>
+ * override the account properties, e.g. to force every account of a dry run
+ * to replay its cassette, so that no call reaches Twitter.
+ */
+public class TwitterCassette implements InvocationHandler {
+	
+	/** The mode to record API calls. */
+	public static final String RECORD = "record";
+	/** The mode to replay API calls. */
+	public static final String REPLAY = "replay";
+	/** The property with the mode of the cassette. */
+	public static final String MODE = "cassette";
+	/** The property with the factor applied to the pauses of the machines. */
+	public static final String SLEEP = "cassette.sleep";
+	/** The default location of a cassette. */
+	public static final String CASSETTE = "twitter/cassettes/%s.cassette";
+	
+	/**
+	 * A single API call.
+	 */
+	public static class Entry implements Serializable {
+		/** Serial version UID. */
+		private static final long serialVersionUID = 1L;
+		/** The method and arguments of the call. */
+		public String key;
+		/** The time the call took, in nanoseconds. */
+		public long nanos;
+		/** The response of the call. */
+		public Object result;
+		/** The exception thrown by the call. */
+		public Throwable error;
+	}
+	
+	/** The real Twitter object, used when recording. */
+	protected Twitter twitter;
+	/** The stream we record to. */
+	protected ObjectOutputStream out;
+	/** The recorded calls, by key, in the order they were made. */
+	protected Map<String, Deque<Entry>> calls;
+	/** The factor applied to the recorded latency. */
+	protected double latency;
+	
+	/**
+	 * Wraps a Twitter object in a cassette if the properties ask for one.
+	 *
+	 * @param twitter the real Twitter object
+	 * @param account the screen name of the account
+	 * @param properties the account properties
+	 * @return a Twitter object that records or replays, or the original object
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static Twitter wrap(Twitter twitter, String account, Properties properties) throws IOException {
+		String mode = System.getProperty(MODE, properties.getProperty(MODE));
+		if (mode == null) return twitter;
+		File file = new File(properties.getProperty("cassette.file", String.format(CASSETTE, account)));
+		TwitterCassette cassette = new TwitterCassette();
+		if (RECORD.equals(mode)) {
+			cassette.record(twitter, file);
+		}
+		else if (REPLAY.equals(mode)) {
+			cassette.replay(file, Double.parseDouble(properties.getProperty("cassette.latency", "1")));
+		}
+		else {
+			throw new IllegalArgumentException(String.format("Unknown cassette mode: %s", mode));
+		}
+		System.out.println(String.format("Cassette %s: %s", mode, file));
+		return (Twitter) Proxy.newProxyInstance(Twitter.class.getClassLoader(),
+			new Class<?>[] { Twitter.class }, cassette);
+	}
+	
+	/**
+	 * Prepares the cassette for recording.
+	 *
+	 * @param twitter the real Twitter object
+	 * @param file the cassette file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void record(Twitter twitter, File file) throws IOException {
+		this.twitter = twitter;
+		if (file.getParentFile() != null)
+			file.getParentFile().mkdirs();
+		// every call is flushed, so that a crash doesn't lose the recording
+		out = new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(file), true));
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				close();
+			}
+		});
+	}
+	
+	/**
+	 * Loads a cassette for replaying.
+	 *
+	 * @param file the cassette file
+	 * @param latency the factor applied to the recorded latency
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void replay(File file, double latency) throws IOException {
+		this.latency = latency;
+		calls = new HashMap<String, Deque<Entry>>();
+		ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(new FileInputStream(file)));
+		try {
+			while (true) {
+				Entry entry = (Entry) in.readObject();
+				Deque<Entry> queue = calls.get(entry.key);
+				if (queue == null) {
+					queue = new ArrayDeque<Entry>();
+					calls.put(entry.key, queue);
+				}
+				queue.add(entry);
+			}
+		}
+		catch (EOFException e) {
+			// a recording that wasn't closed properly ends here
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Records or replays a call.
+	 *
+	 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+	 */
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			if ("equals".equals(method.getName())) return proxy == args[0];
+			if ("hashCode".equals(method.getName())) return System.identityHashCode(proxy);
+			return "TwitterCassette";
+		}
+		// resources such as directMessages() are the Twitter object itself
+		if (method.getReturnType().isAssignableFrom(Twitter.class)) {
+			return proxy;
+		}
+		String key = method.getName() + (args == null ? "[]" : Arrays.deepToString(args));
+		return out == null ? play(key) : record(key, method, args);
+	}
+	
+	/**
+	 * Performs a call on the real Twitter object and records it.
+	 *
+	 * @param key the method and arguments of the call
+	 * @param method the method
+	 * @param args the arguments
+	 * @return the response of the call
+	 * @throws Throwable the exception thrown by the call
+	 */
+	protected Object record(String key, Method method, Object[] args) throws Throwable {
+		Entry entry = new Entry();
+		entry.key = key;
+		long start = System.nanoTime();
+		try {
+			entry.result = method.invoke(twitter, args);
+		}
+		catch (InvocationTargetException e) {
+			entry.error = e.getCause();
+		}
+		entry.nanos = System.nanoTime() - start;
+		synchronized (this) {
+			try {
+				out.writeObject(entry);
+				out.reset();
+				out.flush();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		if (entry.error != null) throw entry.error;
+		return entry.result;
+	}
+	
+	/**
+	 * Plays back a recorded call.
+	 *
+	 * @param key the method and arguments of the call
+	 * @return the recorded response
+	 * @throws Throwable the recorded exception
+	 */
+	protected Object play(String key) throws Throwable {
+		Entry entry;
+		synchronized (this) {
+			Deque<Entry> queue = calls.get(key);
+			entry = queue == null ? null : queue.poll();
+		}
+		if (entry == null)
+			throw new TwitterException(String.format("The cassette has no recording for %s", key));
+		long millis = (long) (entry.nanos * latency / 1000000);
+		if (millis > 0) Thread.sleep(millis);
+		if (entry.error != null) throw entry.error;
+		return entry.result;
+	}
+	
+	/**
+	 * Closes the recording.
+	 */
+	public synchronized void close() {
+		if (out == null) return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
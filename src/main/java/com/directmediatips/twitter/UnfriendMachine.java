@@ -15,9 +15,10 @@ package com.directmediatips.twitter;
  */
 
 import java.io.IOException;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import com.directmediatips.twitter.data.TwitterDao;
+
 import twitter4j.TwitterException;
 
 /**
@@ -27,15 +28,10 @@ import twitter4j.TwitterException;
 public class UnfriendMachine extends AbstractTwitterMachine {
 
 	/** SQL to get follow information. */
-	public static final String SELECT_BANNED =
-		"SELECT a.id FROM accounts a, %s_accounts aa"
-		+ " WHERE a.banned=1 AND aa.wefollow=1 AND a.id = aa.id";
+	public static final String SELECT_BANNED = TwitterDao.SELECT_BANNED;
 	
 	/** The Constant SELECT_UNFOLLOW. */
-	public static final String SELECT_UNFOLLOW =
-		"SELECT id FROM %s_accounts"
-		+ " WHERE wefollow=1 AND theyfollow=0"
-		+ " AND startfollow < DATE_SUB(NOW(), INTERVAL %s DAY)";
+	public static final String SELECT_UNFOLLOW = TwitterDao.SELECT_UNFOLLOW;
 	
 	/** The number of days we wait before unfollowing someone. */
 	protected int waitDays;
@@ -76,11 +72,10 @@ public class UnfriendMachine extends AbstractTwitterMachine {
 	 * @throws SQLException the SQL exception
 	 */
 	public void unfriendBanned() throws SQLException {
-		ResultSet rs = connection.execute(String.format(SELECT_BANNED, account));
-		while (rs.next()) {
+		for (long id : dao.getBannedFriends(account)) {
 			try {
-				twitter.destroyFriendship(rs.getLong("id"));
-				System.out.println(String.format("Unfriended banned account %s", rs.getLong("id")));
+				twitter.destroyFriendship(id);
+				log.info("Unfriended banned account %s", id);
 			} catch (TwitterException e) {
 				showErrorIfNecessary(e);
 			}
@@ -93,11 +88,10 @@ public class UnfriendMachine extends AbstractTwitterMachine {
 	 * @throws SQLException the SQL exception
 	 */
 	public void unfriendUninterested() throws SQLException {
-		ResultSet rs = connection.execute(String.format(SELECT_UNFOLLOW, account, waitDays));
-		while (rs.next()) {
+		for (long id : dao.getUnfollow(account, waitDays)) {
 			try {
-				twitter.destroyFriendship(rs.getLong("id"));
-				System.out.println(String.format("Unfriended account %s because it didn't follow back within %s", rs.getLong("id"), waitDays));
+				twitter.destroyFriendship(id);
+				log.info("Unfriended account %s because it didn't follow back within %s", id, waitDays);
 			} catch (TwitterException e) {
 				showErrorIfNecessary(e);
 			}
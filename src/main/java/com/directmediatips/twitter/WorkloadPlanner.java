@@ -0,0 +1,418 @@
+package com.directmediatips.twitter;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Shares the API budget of one account between the machines that run
+ * for that account. The machines run in separate processes, so the usage
+ * of the current rate window is kept in a ledger file that is locked
+ * while it is read and updated.
+ * <p>
+ * Every machine that is active on an endpoint gets a share of the window
+ * that is proportional to its priority (e.g. keeping the follower lists in
+ * sync matters more than refreshing profiles). A machine that has used up
+ * its share waits for the next window, so that the machines are interleaved
+ * instead of starving each other. Shares that aren't used are released in
+ * the last third of a window to whoever still needs calls. The calls a
+ * machine made count against the budget until the window rolls over, even
+ * if the machine exited or became inactive in the meantime.
+ * <p>
+ * The budget per window and the priorities can be changed in the account
+ * properties, e.g. <code>Budget.users/show=750</code> and
+ * <code>Priority.AccountUpdateMachine=2</code>.
+ */
+public class WorkloadPlanner {
+	
+	/** The ledgers of the accounts. */
+	public static final String LEDGER = "twitter/budget/%s.ledger";
+	/** The length of a rate window in ms. */
+	public static final long WINDOW = 900000l;
+	/** A machine that didn't ask for calls in this number of ms is no longer active. */
+	public static final long ACTIVE = 120000l;
+	/** The maximum number of ms to wait before asking again. */
+	public static final long POLL = 10000l;
+	/** The default budget per window of the endpoints. */
+	public static final String[][] BUDGETS = {
+		{ RateAwareTwitter.SHOW_USER, "750" }, { RateAwareTwitter.LOOKUP_USERS, "750" },
+		{ RateAwareTwitter.FRIENDS_IDS, "15" }, { RateAwareTwitter.FOLLOWERS_IDS, "15" },
+		{ RateAwareTwitter.USER_TIMELINE, "750" }
+	};
+	/** The default priorities of the machines. */
+	public static final String[][] PRIORITIES = {
+		{ "AccountInfoMachine", "8" }, { "HarvestInfoMachine", "4" },
+		{ "AccountUpdateMachine", "2" }, { "RemoveInactiveMachine", "1" }
+	};
+	/** The endpoints each machine draws on. */
+	public static final String[][] NEEDS = {
+		{ "AccountInfoMachine", RateAwareTwitter.FRIENDS_IDS, RateAwareTwitter.FOLLOWERS_IDS, RateAwareTwitter.SHOW_USER },
+		{ "HarvestInfoMachine", RateAwareTwitter.SHOW_USER },
+		{ "AccountUpdateMachine", RateAwareTwitter.SHOW_USER },
+		{ "RemoveInactiveMachine", RateAwareTwitter.SHOW_USER }
+	};
+	
+	/**
+	 * A line in the ledger: the usage of an endpoint by a machine.
+	 */
+	protected static class Usage {
+		/** The endpoint. */
+		protected String endpoint;
+		/** The machine. */
+		protected String machine;
+		/** The priority of the machine. */
+		protected int priority;
+		/** The rate window. */
+		protected long window;
+		/** The number of calls in the window. */
+		protected int used;
+		/** The last time the machine asked for a call. */
+		protected long seen;
+		
+		/**
+		 * Parses a line of the ledger.
+		 *
+		 * @param line a tab-separated line
+		 * @return the usage, or null if the line is truncated or malformed
+		 */
+		protected static Usage parse(String line) {
+			String[] fields = line.split("\t");
+			if (fields.length != 6)
+				return null;
+			Usage usage = new Usage();
+			try {
+				usage.endpoint = fields[0];
+				usage.machine = fields[1];
+				usage.priority = Integer.parseInt(fields[2]);
+				usage.window = Long.parseLong(fields[3]);
+				usage.used = Integer.parseInt(fields[4]);
+				usage.seen = Long.parseLong(fields[5]);
+			}
+			catch (NumberFormatException e) {
+				return null;
+			}
+			return usage;
+		}
+		
+		/**
+		 * Checks if the machine recently asked for calls; only
+		 * active machines get a share of the budget.
+		 *
+		 * @param now the current time in ms
+		 * @return true if the machine is active
+		 */
+		protected boolean isActive(long now) {
+			return now - seen < ACTIVE;
+		}
+		
+		/**
+		 * Formats the usage as a line in the ledger.
+		 *
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return String.format("%s\t%s\t%s\t%s\t%s\t%s\n", endpoint, machine, priority, window, used, seen);
+		}
+	}
+	
+	/** The ledger file. */
+	protected File ledger;
+	/** The name of the machine. */
+	protected String machine;
+	/** The account properties. */
+	protected Properties properties;
+	/** The priority of the machine. */
+	protected int priority;
+	/** The log of the planner. */
+	protected MachineLog log;
+	
+	/**
+	 * Creates a WorkloadPlanner instance.
+	 *
+	 * @param account the screen name of a Twitter account
+	 * @param machine the name of the machine
+	 * @param properties the account properties
+	 */
+	public WorkloadPlanner(String account, String machine, Properties properties) {
+		ledger = new File(String.format(LEDGER, account));
+		ledger.getAbsoluteFile().getParentFile().mkdirs();
+		this.machine = machine;
+		this.properties = properties;
+		log = new MachineLog(String.format("%s %s", getClass().getSimpleName(), account));
+		priority = getPriority(machine, properties);
+	}
+	
+	/**
+	 * Gets the priority of a machine.
+	 *
+	 * @param machine the name of the machine
+	 * @param properties the account properties
+	 * @return the priority
+	 */
+	public static int getPriority(String machine, Properties properties) {
+		String value = properties.getProperty("Priority." + machine);
+		for (String[] priority : PRIORITIES) {
+			if (value == null && priority[0].equals(machine))
+				value = priority[1];
+		}
+		return value == null ? 1 : Math.max(1, Integer.parseInt(value));
+	}
+	
+	/**
+	 * Gets the budget per window of an endpoint.
+	 *
+	 * @param endpoint the endpoint
+	 * @param properties the account properties
+	 * @return the number of calls per window
+	 */
+	public static int getBudget(String endpoint, Properties properties) {
+		String value = properties.getProperty("Budget." + endpoint);
+		for (String[] budget : BUDGETS) {
+			if (value == null && budget[0].equals(endpoint))
+				value = budget[1];
+		}
+		return value == null ? 15 : Integer.parseInt(value);
+	}
+	
+	/**
+	 * Waits until the machine may make a call to an endpoint, and books it.
+	 *
+	 * @param endpoint the endpoint
+	 */
+	public void acquire(String endpoint) {
+		boolean waiting = false;
+		while (true) {
+			long wait;
+			try {
+				wait = tryAcquire(endpoint, System.currentTimeMillis());
+			}
+			catch (IOException e) {
+				// without a ledger, we don't plan
+				e.printStackTrace();
+				return;
+			}
+			if (wait == 0)
+				return;
+			if (!waiting) {
+				log.info("%s used its share of %s; waiting for the next window", machine, endpoint);
+				waiting = true;
+			}
+			try {
+				Thread.sleep(Math.min(wait, POLL));
+			}
+			catch (InterruptedException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Books a call if the share of the machine allows it.
+	 *
+	 * @param endpoint the endpoint
+	 * @param now the current time in ms
+	 * @return 0 if the call was booked, or the ms until the next window
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected long tryAcquire(String endpoint, long now) throws IOException {
+		long window = now / WINDOW;
+		RandomAccessFile file = new RandomAccessFile(ledger, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			FileLock lock = channel.lock();
+			try {
+				List<Usage> usages = read(file, now);
+				Usage own = null;
+				int weights = 0;
+				int total = 0;
+				for (Usage usage : usages) {
+					if (!usage.endpoint.equals(endpoint))
+						continue;
+					if (usage.machine.equals(machine))
+						own = usage;
+					else if (usage.isActive(now))
+						weights += usage.priority;
+					if (usage.window == window)
+						total += usage.used;
+				}
+				if (own == null) {
+					own = new Usage();
+					own.endpoint = endpoint;
+					own.machine = machine;
+					usages.add(own);
+				}
+				if (own.window != window) {
+					own.window = window;
+					own.used = 0;
+				}
+				own.priority = priority;
+				own.seen = now;
+				weights += priority;
+				int budget = getBudget(endpoint, properties);
+				int share = Math.max(1, budget * priority / weights);
+				boolean late = now % WINDOW > 2 * WINDOW / 3;
+				long wait = 0;
+				if (total < budget && (own.used < share || late))
+					own.used++;
+				else
+					wait = (window + 1) * WINDOW - now;
+				write(file, usages);
+				return wait;
+			}
+			finally {
+				lock.release();
+			}
+		}
+		finally {
+			file.close();
+		}
+	}
+	
+	/**
+	 * Marks the machine as inactive, so that its share goes to the others;
+	 * the calls it made keep counting until the window rolls over.
+	 */
+	public void release() {
+		try {
+			RandomAccessFile file = new RandomAccessFile(ledger, "rw");
+			try {
+				FileLock lock = file.getChannel().lock();
+				try {
+					List<Usage> usages = read(file, System.currentTimeMillis());
+					for (Usage usage : usages) {
+						if (usage.machine.equals(machine))
+							usage.seen = 0;
+					}
+					write(file, usages);
+				}
+				finally {
+					lock.release();
+				}
+			}
+			finally {
+				file.close();
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Reads the usages of the machines that are still active, or that made
+	 * calls in the current window. Lines that can't be parsed (e.g. because
+	 * a process died while writing) are skipped.
+	 *
+	 * @param file the ledger
+	 * @param now the current time in ms
+	 * @return a list of usages
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected static List<Usage> read(RandomAccessFile file, long now) throws IOException {
+		List<Usage> usages = new ArrayList<Usage>();
+		byte[] bytes = new byte[(int) file.length()];
+		file.seek(0);
+		file.readFully(bytes);
+		for (String line : new String(bytes, StandardCharsets.UTF_8).split("\n")) {
+			if (line.isEmpty())
+				continue;
+			Usage usage = Usage.parse(line);
+			if (usage != null && (usage.isActive(now) || usage.window == now / WINDOW))
+				usages.add(usage);
+		}
+		return usages;
+	}
+	
+	/**
+	 * Replaces the contents of the ledger.
+	 *
+	 * @param file the ledger
+	 * @param usages the usages
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected static void write(RandomAccessFile file, List<Usage> usages) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (Usage usage : usages) {
+			sb.append(usage);
+		}
+		byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+		file.seek(0);
+		file.write(bytes);
+		file.setLength(bytes.length);
+	}
+	
+	/**
+	 * Shows the machines that are currently active for an account,
+	 * and how the budgets of the endpoints are shared.
+	 *
+	 * @param args the screen name of a Twitter account
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.out.println("An argument is required...");
+			return;
+		}
+		try {
+			Properties properties = AbstractTwitterMachine.loadProperties(args[0]);
+			File ledger = new File(String.format(LEDGER, args[0]));
+			List<Usage> usages = new ArrayList<Usage>();
+			long now = System.currentTimeMillis();
+			if (ledger.exists()) {
+				RandomAccessFile file = new RandomAccessFile(ledger, "r");
+				try {
+					usages = read(file, now);
+				}
+				finally {
+					file.close();
+				}
+			}
+			for (String[] needs : NEEDS) {
+				System.out.println(String.format("%s (priority %s) needs %s", needs[0],
+					getPriority(needs[0], properties), String.join(", ", Arrays.copyOfRange(needs, 1, needs.length))));
+			}
+			for (String[] budget : BUDGETS) {
+				int weights = 0;
+				for (Usage usage : usages) {
+					if (usage.endpoint.equals(budget[0]) && usage.isActive(now))
+						weights += usage.priority;
+				}
+				for (Usage usage : usages) {
+					if (!usage.endpoint.equals(budget[0]))
+						continue;
+					int used = usage.window == now / WINDOW ? usage.used : 0;
+					if (usage.isActive(now))
+						System.out.println(String.format("%s: %s used %s of its share of %s", budget[0], usage.machine,
+							used, getBudget(budget[0], properties) * usage.priority / weights));
+					else
+						System.out.println(String.format("%s: %s used %s (no longer active)", budget[0], usage.machine, used));
+				}
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package com.directmediatips.twitter.bench;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.directmediatips.twitter.FollowBackMachine;
+import com.directmediatips.twitter.FollowMachine;
+import com.directmediatips.twitter.UnfriendMachine;
+import com.directmediatips.twitter.data.EmbeddedDatabase;
+import com.directmediatips.twitter.data.MySqlDatabase;
+import com.directmediatips.twitter.data.Relationships;
+import com.directmediatips.twitter.data.TwitterDao;
+import com.directmediatips.twitter.dm.SelectDataMachine;
+
+/**
+ * Runs the SQL of the Twitter machines against a (synthetic) database
+ * and reports throughput and latency percentiles for every query.
+ * Use {@link SyntheticDataMachine} to create a database of the desired size;
+ * like that machine, the benchmark only runs against a scratch database.
+ * @see SyntheticDataMachine#isScratch()
+ */
+public class DatabaseBenchmarkMachine {
+
+	/** The criteria used to benchmark the selection of data. */
+	public static final String WHERE = "a.followers > 1000 AND a.lang = 'en'";
+	
+	/**
+	 * A query that can be benchmarked.
+	 */
+	public interface Query {
+		/**
+		 * Runs the query once.
+		 *
+		 * @return the number of rows that were read
+		 * @throws SQLException the SQL exception
+		 */
+		int run() throws SQLException;
+	}
+	
+	/** The randomizer with a fixed seed. */
+	protected Random random = new Random(20170101l);
+	/** The number of rows in the synthetic accounts table. */
+	protected int size;
+	/** The data-access object for queries with bind parameters. */
+	protected TwitterDao dao;
+	
+	/**
+	 * Creates a DatabaseBenchmarkMachine instance.
+	 *
+	 * @param size the number of rows in the synthetic accounts table
+	 * @throws IllegalStateException if the database isn't a scratch database
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws SQLException the SQL exception
+	 */
+	public DatabaseBenchmarkMachine(int size) throws IOException, SQLException {
+		this.size = size;
+		SyntheticDataMachine.checkScratch();
+		if (EmbeddedDatabase.isEmbedded()) {
+			dao = new TwitterDao(new EmbeddedDatabase());
+		}
+		else {
+			dao = new TwitterDao(new MySqlDatabase());
+		}
+	}
+	
+	/**
+	 * Benchmarks all the queries.
+	 *
+	 * @param accounts the screen names of our (synthetic) accounts
+	 * @param iterations the number of measured runs per query
+	 * @throws SQLException the SQL exception
+	 */
+	public void go(final String[] accounts, int iterations) throws SQLException {
+		System.out.println(String.format("%-36s %8s %10s %10s %10s %10s %10s",
+			"query", "rows", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+		final String account = accounts[0];
+		benchmark("FollowMachine.SELECT_FRIENDS_TO_FOLLOW", iterations,
+			statement(Relationships.format(FollowMachine.SELECT_FRIENDS_TO_FOLLOW, account),
+				Relationships.getParameters(FollowMachine.SELECT_FRIENDS_TO_FOLLOW, account)));
+		benchmark("FollowMachine.SELECT_FOLLOWERS_TO_FOLLOW", iterations,
+			statement(Relationships.format(FollowMachine.SELECT_FOLLOWERS_TO_FOLLOW, account),
+				Relationships.getParameters(FollowMachine.SELECT_FOLLOWERS_TO_FOLLOW, account)));
+		benchmark("FollowMachine.ACCOUNT_DO_WE_FOLLOW", iterations * 100,
+			lookup(dao.prepare(FollowMachine.ACCOUNT_DO_WE_FOLLOW, account)));
+		benchmark("FollowMachine.ACCOUNT_BANNED", iterations * 100,
+			lookup(dao.prepare(FollowMachine.ACCOUNT_BANNED)));
+		benchmark("UnfriendMachine.SELECT_UNFOLLOW", iterations,
+			new Query() {
+				public int run() throws SQLException {
+					return dao.getUnfollow(account, 20).length;
+				}
+			});
+		benchmark("UnfriendMachine.SELECT_BANNED", iterations,
+			statement(Relationships.format(UnfriendMachine.SELECT_BANNED, account),
+				Relationships.getParameters(UnfriendMachine.SELECT_BANNED, account)));
+		benchmark("FollowBackMachine.FOLLOW_BACK", iterations,
+			statement(Relationships.format(FollowBackMachine.FOLLOW_BACK, account),
+				Relationships.getParameters(FollowBackMachine.FOLLOW_BACK, account)));
+		benchmark("SelectDataMachine.SELECT", iterations, new Query() {
+			public int run() throws SQLException {
+				int rows = 0;
+				for (String a : accounts) {
+					rows += drain(dao.execute(Relationships.format(SelectDataMachine.SELECT, a, WHERE),
+						Relationships.getParameters(SelectDataMachine.SELECT, a)));
+				}
+				return rows;
+			}
+		});
+		StringBuilder members = new StringBuilder();
+		for (int i = 0; i < accounts.length; i++) {
+			if (i > 0) members.append(" UNION ALL ");
+			members.append(Relationships.format(SelectDataMachine.MEMBERS, i, accounts[i]));
+		}
+		benchmark("SelectDataMachine.SELECT_ALL", iterations,
+			statement(String.format(SelectDataMachine.SELECT_ALL, members, WHERE),
+				Relationships.getParameters(SelectDataMachine.MEMBERS, (Object[]) accounts)));
+	}
+	
+	/**
+	 * Creates a query that executes a SQL statement.
+	 *
+	 * @param sql the SQL statement
+	 * @param parameters the values of the bind parameters, if any
+	 * @return a query
+	 */
+	protected Query statement(final String sql, final Object... parameters) {
+		return new Query() {
+			public int run() throws SQLException {
+				return drain(dao.execute(sql, parameters));
+			}
+		};
+	}
+	
+	/**
+	 * Creates a query that looks up a random synthetic account id.
+	 *
+	 * @param lookup a prepared statement with one id parameter
+	 * @return a query
+	 */
+	protected Query lookup(final PreparedStatement lookup) {
+		return new Query() {
+			public int run() throws SQLException {
+				lookup.setLong(1, SyntheticDataMachine.getId(random.nextInt(size)));
+				return drain(lookup.executeQuery());
+			}
+		};
+	}
+	
+	/**
+	 * Reads all the rows of a result set.
+	 *
+	 * @param rs a result set
+	 * @return the number of rows
+	 * @throws SQLException the SQL exception
+	 */
+	protected static int drain(ResultSet rs) throws SQLException {
+		int rows = 0;
+		while (rs.next()) {
+			rs.getObject(1);
+			rows++;
+		}
+		rs.close();
+		return rows;
+	}
+	
+	/**
+	 * Runs a query a number of times, after a warm-up, and reports the results.
+	 *
+	 * @param name the name of the query
+	 * @param iterations the number of measured runs
+	 * @param query the query
+	 * @throws SQLException the SQL exception
+	 */
+	public void benchmark(String name, int iterations, Query query) throws SQLException {
+		for (int i = 0; i < Math.max(1, iterations / 10); i++) {
+			query.run();
+		}
+		long[] nanos = new long[iterations];
+		long rows = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			long t = System.nanoTime();
+			rows += query.run();
+			nanos[i] = System.nanoTime() - t;
+		}
+		long total = System.nanoTime() - start;
+		Arrays.sort(nanos);
+		System.out.println(String.format("%-36s %8s %10.1f %10.3f %10.3f %10.3f %10.3f",
+			name, rows / iterations, iterations * 1e9 / total,
+			percentile(nanos, 50), percentile(nanos, 90), percentile(nanos, 99), nanos[iterations - 1] / 1e6));
+	}
+	
+	/**
+	 * Gets a percentile of sorted latencies.
+	 *
+	 * @param nanos the sorted latencies in nanoseconds
+	 * @param p the percentile
+	 * @return the latency in milliseconds
+	 */
+	protected static double percentile(long[] nanos, int p) {
+		int index = (int) Math.ceil(p / 100.0 * nanos.length) - 1;
+		return nanos[Math.max(0, index)] / 1e6;
+	}
+	
+	/**
+	 * Closes the prepared statements and the database connection.
+	 */
+	public void close() {
+		dao.close();
+	}
+	
+	/**
+	 * Starts and runs the machine.
+	 *
+	 * @param args the number of synthetic accounts, a comma-separated list
+	 * of our accounts, and optionally the number of iterations
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: DatabaseBenchmarkMachine accounts ours[,ours...] [iterations]");
+			return;
+		}
+		System.out.println("Running DatabaseBenchmarkMachine...");
+		DatabaseBenchmarkMachine app = null;
+		try {
+			app = new DatabaseBenchmarkMachine(Integer.parseInt(args[0]));
+			app.go(args[1].split(","), args.length > 2 ? Integer.parseInt(args[2]) : 20);
+		}
+		catch(IllegalStateException e) {
+			System.out.println(e.getMessage());
+		}
+		catch(Exception e) {
+			e.printStackTrace();
+		}
+		if (app != null)
+			app.close();
+	}
+}
@@ -0,0 +1,338 @@
+package com.directmediatips.twitter.bench;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Random;
+
+import com.directmediatips.twitter.MachineLog;
+import com.directmediatips.twitter.RetweetMachine;
+import com.directmediatips.twitter.data.EmbeddedDatabase;
+import com.directmediatips.twitter.data.MySqlDatabase;
+import com.directmediatips.twitter.data.Relationships;
+import com.directmediatips.twitter.data.Schema;
+import com.directmediatips.twitter.data.TwitterDao;
+
+/**
+ * Fills a scratch database with synthetic data at production scale:
+ * an <code>accounts</code> table, and for each of our accounts a
+ * <code>%s_accounts</code> table (or rows in the <code>relationships</code>
+ * table, see {@link Relationships}) and a <code>%s_quotes</code> table, plus the
+ * <code>retweets</code> table. The data is generated with a fixed seed,
+ * so that two databases generated with the same parameters are identical.
+ * <p>
+ * The synthetic ids may be ids of real Twitter accounts, so the machine
+ * refuses to run against a database that the other machines might use:
+ * use <code>-Ddatabase=embedded</code> with a <code>-Ddatabase.url</code>
+ * other than the default one, or confirm that the MySQL connection points
+ * to a scratch database with <code>-Dscratch=true</code>.
+ */
+public class SyntheticDataMachine {
+
+	/** SQL inserting an account. */
+	public static final String INSERT_ACCOUNT = "INSERT INTO accounts"
+			+ " (id, screenname, name, location, lang, description, url,"
+			+ " followers, following, statuses, favorites, protected, banned)"
+			+ " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	/** SQL linking an account to one of our accounts. */
+	public static final String INSERT_LINK = TwitterDao.INSERT_LINK;
+	/** SQL inserting a quote. */
+	public static final String INSERT_QUOTE =
+			"INSERT INTO %s_quotes (quote, author, status) VALUES (?, ?, ?)";
+	
+	/** The system property that confirms that the database is a scratch database. */
+	public static final String SCRATCH = "scratch";
+	
+	/** The number of rows per batch. */
+	public static final int BATCH = 1000;
+	/** The number of milliseconds between two progress reports. */
+	public static final long PROGRESS = 10000l;
+	/** The first synthetic account id. */
+	public static final long FIRST_ID = 100000000l;
+	/** The distance between two synthetic account ids. */
+	public static final long ID_STEP = 7919l;
+	
+	/** Languages with their weight. */
+	protected static final String[] LANGS = { "en", "en", "en", "en", "en", "en", "nl", "fr", "es", "de", "ja", "pt" };
+	/** Locations. */
+	protected static final String[] LOCATIONS = { "", "New York", "London", "Brussels", "Ghent",
+		"Paris", "Amsterdam", "San Francisco", "Berlin", "Madrid", "Tokyo", "Toronto" };
+	/** Words used to compose descriptions and quotes. */
+	protected static final String[] WORDS = { "marketing", "social", "media", "java", "pdf",
+		"entrepreneur", "startup", "coffee", "travel", "music", "developer", "writer", "data" };
+	
+	/** The randomizer with a fixed seed. */
+	protected Random random = new Random(20170101l);
+	/** The data-access object that prepares the statements. */
+	protected TwitterDao dao;
+	/** The log of the machine. */
+	protected MachineLog log = new MachineLog(getClass().getSimpleName());
+	/** The time of the last progress report. */
+	protected long reported = 0;
+	
+	/**
+	 * Creates a SyntheticDataMachine instance.
+	 *
+	 * @throws IllegalStateException if the database isn't a scratch database
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws SQLException the SQL exception
+	 */
+	public SyntheticDataMachine() throws IOException, SQLException {
+		checkScratch();
+		if (EmbeddedDatabase.isEmbedded()) {
+			dao = new TwitterDao(new EmbeddedDatabase());
+		}
+		else {
+			dao = new TwitterDao(new MySqlDatabase());
+		}
+	}
+	
+	/**
+	 * Checks if the database is a scratch database: an embedded database
+	 * that isn't the default one, or a database that was confirmed with
+	 * <code>-Dscratch=true</code>.
+	 *
+	 * @return true if synthetic data may be written to the database
+	 */
+	public static boolean isScratch() {
+		if (Boolean.getBoolean(SCRATCH))
+			return true;
+		String url = System.getProperty(EmbeddedDatabase.URL);
+		return EmbeddedDatabase.isEmbedded() && url != null && !url.equals(EmbeddedDatabase.DEFAULT_URL);
+	}
+	
+	/**
+	 * Refuses to continue if the database isn't a scratch database.
+	 *
+	 * @throws IllegalStateException if the database might be used by the other machines
+	 */
+	public static void checkScratch() {
+		if (!isScratch())
+			throw new IllegalStateException(String.format("Refusing to use a database that isn't a scratch database;"
+				+ " use -D%s=%s -D%s=[scratch url], or -D%s=true", EmbeddedDatabase.DATABASE, EmbeddedDatabase.EMBEDDED,
+				EmbeddedDatabase.URL, SCRATCH));
+	}
+	
+	/**
+	 * Gets the id of a synthetic account.
+	 *
+	 * @param i the number of the account
+	 * @return the id of the account
+	 */
+	public static long getId(int i) {
+		return FIRST_ID + i * ID_STEP;
+	}
+	
+	/**
+	 * Creates the tables and fills them with synthetic data.
+	 *
+	 * @param size the number of rows in the accounts table
+	 * @param accounts the screen names of our (synthetic) accounts
+	 * @param linked the fraction of all accounts that is linked to each of our accounts
+	 * @throws SQLException the SQL exception
+	 */
+	public void generate(int size, String[] accounts, double linked) throws SQLException {
+		dao.execute(Schema.ACCOUNTS);
+		dao.execute(Schema.RETWEETS);
+		try {
+			dao.execute(Schema.RETWEETS_INDEX);
+		}
+		catch (SQLException e) {
+			// the index already exists
+		}
+		generateAccounts(size);
+		for (String account : accounts) {
+			dao.execute(Relationships.format(Schema.ACCOUNT_LINKS, account));
+			dao.execute(String.format(Schema.QUOTES, account));
+			generateLinks(account, size, linked);
+			generateRetweets(account, 1000);
+			generateQuotes(account, 500);
+		}
+	}
+	
+	/**
+	 * Fills the accounts table.
+	 *
+	 * @param size the number of accounts
+	 * @throws SQLException the SQL exception
+	 */
+	protected void generateAccounts(int size) throws SQLException {
+		PreparedStatement insert = dao.prepare(INSERT_ACCOUNT);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < size; i++) {
+			// follower counts follow a power law: most accounts are small
+			int followers = (int) Math.min(50000000, Math.pow(10, 1 + random.nextDouble() * 2.5) / Math.max(0.01, random.nextDouble()));
+			insert.setLong(1, getId(i));
+			insert.setString(2, String.format("user%s", i));
+			insert.setString(3, String.format("User %s", i));
+			insert.setString(4, LOCATIONS[random.nextInt(LOCATIONS.length)]);
+			insert.setString(5, LANGS[random.nextInt(LANGS.length)]);
+			insert.setString(6, words(3 + random.nextInt(12)));
+			insert.setString(7, random.nextInt(3) == 0 ? null : String.format("http://example.com/%s", i));
+			insert.setInt(8, followers);
+			insert.setInt(9, random.nextInt(5000));
+			insert.setInt(10, random.nextInt(50000));
+			insert.setInt(11, random.nextInt(20000));
+			insert.setString(12, random.nextInt(20) == 0 ? "Y" : "N");
+			insert.setInt(13, random.nextInt(100) == 0 ? 1 : 0);
+			insert.addBatch();
+			if ((i + 1) % BATCH == 0) {
+				insert.executeBatch();
+				progress("accounts", i + 1, size, start);
+			}
+		}
+		insert.executeBatch();
+	}
+	
+	/**
+	 * Fills the relationship table of one of our accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param size the number of rows in the accounts table
+	 * @param linked the fraction of all accounts that is linked to our account
+	 * @throws SQLException the SQL exception
+	 */
+	protected void generateLinks(String account, int size, double linked) throws SQLException {
+		PreparedStatement insert = dao.prepare(INSERT_LINK, account);
+		long now = System.currentTimeMillis();
+		int rows = 0;
+		for (int i = 0; i < size; i++) {
+			if (random.nextDouble() >= linked) continue;
+			boolean weFollow = random.nextInt(10) < 4;
+			boolean theyFollow = random.nextInt(10) < 6;
+			Timestamp start = weFollow ? new Timestamp(now - random.nextInt(60) * 86400000l) : null;
+			insert.setLong(1, getId(i));
+			insert.setInt(2, weFollow ? 1 : 0);
+			insert.setInt(3, theyFollow ? 1 : 0);
+			insert.setTimestamp(4, start);
+			insert.setTimestamp(5, theyFollow ? new Timestamp(now) : null);
+			insert.setTimestamp(6, start);
+			insert.setInt(7, random.nextInt(2000) == 0 ? 1 : 0);
+			insert.setInt(8, random.nextInt(2000) == 0 ? 1 : 0);
+			insert.setInt(9, random.nextInt(1000) == 0 ? 1 : 0);
+			insert.addBatch();
+			if (++rows % BATCH == 0) {
+				insert.executeBatch();
+				progress(account + "_accounts", i + 1, size, now);
+			}
+		}
+		insert.executeBatch();
+	}
+	
+	/**
+	 * Fills the retweets table for one of our accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param count the number of retweets
+	 * @throws SQLException the SQL exception
+	 */
+	protected void generateRetweets(String account, int count) throws SQLException {
+		PreparedStatement insert = dao.prepare(RetweetMachine.RETWEET);
+		for (int i = 0; i < count; i++) {
+			insert.setString(1, account);
+			insert.setLong(2, 800000000000000000l + random.nextInt(Integer.MAX_VALUE));
+			insert.addBatch();
+		}
+		insert.executeBatch();
+	}
+	
+	/**
+	 * Fills the quotes table of one of our accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param count the number of quotes
+	 * @throws SQLException the SQL exception
+	 */
+	protected void generateQuotes(String account, int count) throws SQLException {
+		PreparedStatement insert = dao.prepare(INSERT_QUOTE, account);
+		for (int i = 0; i < count; i++) {
+			insert.setString(1, words(5 + random.nextInt(15)));
+			insert.setString(2, String.format("Author %s", random.nextInt(100)));
+			insert.setInt(3, random.nextInt(2));
+			insert.addBatch();
+		}
+		insert.executeBatch();
+	}
+	
+	/**
+	 * Composes a random text.
+	 *
+	 * @param count the number of words
+	 * @return a text
+	 */
+	protected String words(int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0) sb.append(' ');
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Shows the progress of a table, at most once every {@link #PROGRESS}
+	 * milliseconds, regardless of how many rows are skipped.
+	 *
+	 * @param table the name of the table
+	 * @param done the number of accounts that are processed
+	 * @param size the total number of accounts
+	 * @param start the time we started
+	 */
+	protected void progress(String table, int done, int size, long start) {
+		long now = System.currentTimeMillis();
+		if (now - reported < PROGRESS) return;
+		reported = now;
+		long seconds = Math.max(1, (now - start) / 1000);
+		log.info("%s: %s of %s accounts (%s/s)", table, done, size, done / seconds);
+	}
+	
+	/**
+	 * Closes the prepared statements and the database connection.
+	 */
+	public void close() {
+		dao.close();
+	}
+	
+	/**
+	 * Starts and runs the machine.
+	 *
+	 * @param args the number of accounts, a comma-separated list of our
+	 * accounts, and optionally the fraction of linked accounts
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: SyntheticDataMachine accounts ours[,ours...] [linked]");
+			return;
+		}
+		System.out.println(String.format("Running SyntheticDataMachine for %s accounts...", args[0]));
+		SyntheticDataMachine app = null;
+		try {
+			app = new SyntheticDataMachine();
+			app.generate(Integer.parseInt(args[0]), args[1].split(","),
+				args.length > 2 ? Double.parseDouble(args[2]) : 0.3);
+		}
+		catch(IllegalStateException e) {
+			System.out.println(e.getMessage());
+		}
+		catch(Exception e) {
+			e.printStackTrace();
+		}
+		if (app != null)
+			app.close();
+	}
+}
@@ -14,12 +14,15 @@ package com.directmediatips.twitter.data;
  * limitations under the License.
  */
 
+import java.io.File;
 import java.io.IOException;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Arrays;
 
 import com.directmediatips.twitter.AbstractTwitterMachine;
+import com.directmediatips.twitter.RateAwareTwitter;
+import com.directmediatips.twitter.store.ExternalIdSorter;
+import com.directmediatips.twitter.store.IdSnapshot;
 
 import twitter4j.IDs;
 import twitter4j.TwitterException;
@@ -34,62 +37,54 @@ public class AccountInfoMachine extends AbstractTwitterMachine {
 	// insert statements
 	
 	/** SQL inserting a record for an account. */
-	public static final String CREATE_ACCOUNT = "INSERT INTO accounts"
-			+ "(id, screenname, name, location, lang, description, url,"
-			+ "followers, following, statuses, favorites, protected)"
-			+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	public static final String CREATE_ACCOUNT = TwitterDao.CREATE_ACCOUNT;
 	/** SQL linking a record for an account. */
-	public static final String LINK_ACCOUNT =
-			"INSERT INTO %s_accounts (id) VALUES (?)";
+	public static final String LINK_ACCOUNT = TwitterDao.LINK_ACCOUNT;
 	
 	// we follow statements
 	
 	/** SQL Statement that updates the time stamp for every one we follow. */
-	public static final String WE_FOLLOWED_ON =
-			"UPDATE %s_accounts SET wefollowedon = CURRENT_TIMESTAMP WHERE wefollow = 1";
+	public static final String WE_FOLLOWED_ON = TwitterDao.WE_FOLLOWED_ON;
 	/** SQL Statement that pretends that we aren't following any one anymore. */
-	public static final String RESET_WE_FOLLOW = "UPDATE %s_accounts SET wefollow = 0";
+	public static final String RESET_WE_FOLLOW = TwitterDao.RESET_WE_FOLLOW;
 	/** SQL Statement that registers our friends. */
-	public static final String SET_WE_FOLLOW =
-			"UPDATE %s_accounts SET wefollow = 1, wefollowedon = CURRENT_TIMESTAMP WHERE id = ?";
+	public static final String SET_WE_FOLLOW = TwitterDao.SET_WE_FOLLOW;
+	/** SQL Statement that registers an account we no longer follow. */
+	public static final String UNSET_WE_FOLLOW = TwitterDao.UNSET_WE_FOLLOW;
 	/** SQL Statement that updates the date we started following someone. */
-	public static final String SET_STARTFOLLOW =
-			"UPDATE %s_accounts SET startfollow = wefollowedon WHERE startfollow IS NULL";
+	public static final String SET_STARTFOLLOW = TwitterDao.SET_STARTFOLLOW;
 	
 	// they follow statements
 	
 	/** SQL Statement that updates the time stamp for every one who follows us. */
-	public static final String THEY_FOLLOWED_ON =
-			"UPDATE %s_accounts SET theyfollowedon = CURRENT_TIMESTAMP WHERE theyfollow = 1";
+	public static final String THEY_FOLLOWED_ON = TwitterDao.THEY_FOLLOWED_ON;
 	/** SQL Statement that pretends that no one is following us anymore. */
-	public static final String RESET_THEY_FOLLOW = "UPDATE %s_accounts SET theyfollow = 0";
+	public static final String RESET_THEY_FOLLOW = TwitterDao.RESET_THEY_FOLLOW;
 	/** SQL Statement that registers our followers. */
-	public static final String SET_THEY_FOLLOW =
-			"UPDATE %s_accounts SET theyfollow = 1, theyfollowedon = CURRENT_TIMESTAMP WHERE id = ?";
+	public static final String SET_THEY_FOLLOW = TwitterDao.SET_THEY_FOLLOW;
+	/** SQL Statement that registers an account that no longer follows us. */
+	public static final String UNSET_THEY_FOLLOW = TwitterDao.UNSET_THEY_FOLLOW;
+	
+	// snapshots
+	
+	/** Path to the snapshot of our friends or followers. */
+	public static final String SNAPSHOT = "twitter/snapshots/%s.%s";
+	/** Name of the snapshot of our friends. */
+	public static final String FRIENDS = "friends";
+	/** Name of the snapshot of our followers. */
+	public static final String FOLLOWERS = "followers";
+	/** Suffix of the file with the new followers that couldn't be added. */
+	public static final String FAILED = ".failed";
 	
 	// information statements
 	
 	/** SQL checking if an account record exists. */
-	public static final String ACCOUNT_EXISTS =
-		"SELECT count(*) FROM accounts WHERE id = ?";
+	public static final String ACCOUNT_EXISTS = TwitterDao.ACCOUNT_EXISTS;
 	/** SQL checking if an account record is linked. */
-	public static final String ACCOUNT_LINKED =
-		"SELECT count(*) FROM %s_accounts WHERE id = ?";
+	public static final String ACCOUNT_LINKED = TwitterDao.ACCOUNT_LINKED;
 	
-	// Prepared statements
-
-	/** Prepared statement to check if a record exists. */
-	protected PreparedStatement exists;
-    /** Prepared statement to insert a new account record. */
-	protected PreparedStatement insert;
-    /** Prepared statement to check if an account is linked. */
-	protected PreparedStatement linked;
-    /** Prepared statement to link an account. */
-	protected PreparedStatement link;
-	/** Prepared statement to set the wefollow flag. */
-	protected PreparedStatement updateWeFollow;
-	/** Prepared statement to set the theyfollow flag. */
-	protected PreparedStatement updateTheyFollow;
+	/** The number of ids that are sorted in memory before they are spilled to disk. */
+	protected int sortBuffer;
 	
 	/**
 	 * Creates an AccountInfoMachine instance.
@@ -100,12 +95,12 @@ public class AccountInfoMachine extends AbstractTwitterMachine {
 	 */
 	public AccountInfoMachine(String account) throws IOException, SQLException {
 		super(account);
-		exists = connection.prepare(ACCOUNT_EXISTS);
-		insert = connection.prepare(CREATE_ACCOUNT);
-		linked = connection.prepare(String.format(ACCOUNT_LINKED, account));
-		link = connection.prepare(String.format(LINK_ACCOUNT, account));
-		updateWeFollow = connection.prepare(String.format(SET_WE_FOLLOW, account));
-		updateTheyFollow = connection.prepare(String.format(SET_THEY_FOLLOW, account));
+		try {
+			sortBuffer = Integer.parseInt(properties.getProperty("SortBuffer"));
+		}
+		catch (Exception e) {
+			sortBuffer = ExternalIdSorter.BUFFER;
+		}
 	}
 
 	/**
@@ -123,15 +118,235 @@ public class AccountInfoMachine extends AbstractTwitterMachine {
 	
 	/**
 	 * Asks twitter for all the accounts we follow, and updates the
-	 * database accordingly.
+	 * database with the differences since the previous snapshot; only
+	 * the accounts that were added get a new time stamp.
 	 *
 	 * @throws SQLException the SQL exception
 	 * @throws TwitterException the twitter exception
 	 */
 	public void listFriends() throws SQLException, TwitterException {
+		File previous = getSnapshot(FRIENDS);
+		File current;
+		try {
+			current = collect(FRIENDS);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			listAllFriends();
+			return;
+		}
+		// without a previous snapshot that matches the database, everyone we follow is new
+		if (!isInSync(previous, dao.countWeFollow(account)))
+			previous.delete();
+		if (!previous.exists())
+			dao.resetWeFollow(account);
+		try {
+			IdSnapshot.Diff diff = getDiff(previous, current);
+			long[] added = new long[TwitterDao.BATCH];
+			long[] removed = new long[TwitterDao.BATCH];
+			int a = 0, r = 0, totalAdded = 0, totalRemoved = 0;
+			while (diff.next()) {
+				if (diff.isAdded()) {
+					insertAccount(diff.getId());
+					added[a++] = diff.getId();
+					totalAdded++;
+					if (a == added.length) {
+						linkWeFollow(added);
+						a = 0;
+					}
+				}
+				else {
+					removed[r++] = diff.getId();
+					totalRemoved++;
+					if (r == removed.length) {
+						dao.unsetWeFollow(account, removed);
+						r = 0;
+					}
+				}
+			}
+			diff.close();
+			linkWeFollow(Arrays.copyOf(added, a));
+			dao.unsetWeFollow(account, Arrays.copyOf(removed, r));
+			dao.setStartFollow(account);
+			IdSnapshot.replace(current, previous);
+			log.info("We started following %s accounts and stopped following %s accounts.", totalAdded, totalRemoved);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Asks twitter for all the accounts that follow us, and updates the
+	 * database with the differences since the previous snapshot; only
+	 * the accounts that were added get a new time stamp. New followers
+	 * that couldn't be added are left out of the snapshot, so that they
+	 * show up as new followers again on the next run.
+	 *
+	 * @throws SQLException the SQL exception
+	 * @throws TwitterException the twitter exception
+	 */
+	public void listFollowers() throws SQLException, TwitterException {
+		File previous = getSnapshot(FOLLOWERS);
+		File current;
+		try {
+			current = collect(FOLLOWERS);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			listAllFollowers();
+			return;
+		}
+		// without a previous snapshot that matches the database, every follower is new
+		if (!isInSync(previous, dao.countTheyFollow(account)))
+			previous.delete();
+		if (!previous.exists())
+			dao.resetTheyFollow(account);
+		try {
+			IdSnapshot.Diff diff = getDiff(previous, current);
+			long[] added = new long[TwitterDao.BATCH];
+			long[] removed = new long[TwitterDao.BATCH];
+			int a = 0, r = 0, totalAdded = 0, totalRemoved = 0;
+			long id;
+			File failed = new File(current.getPath() + FAILED);
+			IdSnapshot.Writer failures = null;
+			while (diff.next()) {
+				id = diff.getId();
+				if (diff.isAdded()) {
+					try {
+						insertAccount(id);
+						added[a++] = id;
+						totalAdded++;
+						if (a == added.length) {
+							linkTheyFollow(added);
+							a = 0;
+						}
+					}
+					catch(TwitterException e) {
+						log.warn("User %s caused exception: %s (%s).", id, e.getMessage(), e.getStatusCode());
+						showErrorIfNecessary(e);
+						if (failures == null)
+							failures = new IdSnapshot.Writer(failed);
+						failures.add(id);
+					}
+				}
+				else {
+					removed[r++] = id;
+					totalRemoved++;
+					if (r == removed.length) {
+						dao.unsetTheyFollow(account, removed);
+						r = 0;
+					}
+				}
+			}
+			diff.close();
+			linkTheyFollow(Arrays.copyOf(added, a));
+			dao.unsetTheyFollow(account, Arrays.copyOf(removed, r));
+			if (failures == null) {
+				IdSnapshot.replace(current, previous);
+			}
+			else {
+				failures.close();
+				File promoted = new File(current.getPath() + ".promoted");
+				IdSnapshot.subtract(current, failed, promoted);
+				IdSnapshot.replace(promoted, previous);
+				current.delete();
+				failed.delete();
+				log.warn("%s new followers will be retried on the next run.", failures.getCount());
+			}
+			log.info("%s new followers, %s lost followers.", totalAdded, totalRemoved);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Gets the file of a snapshot of our friends or followers.
+	 *
+	 * @param name {@link #FRIENDS} or {@link #FOLLOWERS}
+	 * @return the snapshot file
+	 */
+	public File getSnapshot(String name) {
+		return new File(String.format(SNAPSHOT, account, name));
+	}
+	
+	/**
+	 * Checks if a previous snapshot still describes the database. The
+	 * snapshots are kept per account, not per database: if the database
+	 * was switched or restored, the number of rows with the flag no
+	 * longer matches the number of ids in the snapshot.
+	 *
+	 * @param previous the previous snapshot
+	 * @param rows the number of rows with the wefollow or theyfollow flag
+	 * @return true if the snapshot doesn't exist, or if it matches the database
+	 */
+	protected boolean isInSync(File previous, int rows) {
+		if (!previous.exists())
+			return true;
+		try {
+			long count = IdSnapshot.count(previous);
+			if (count == rows)
+				return true;
+			log.warn("%s has %s ids, but the database has %s; rebuilding.", previous.getName(), count, rows);
+		}
+		catch (IOException e) {
+			log.warn("Can't read %s: %s; rebuilding.", previous.getName(), e.getMessage());
+		}
+		return false;
+	}
+	
+	/**
+	 * Asks twitter for all our friends or followers, and stores their
+	 * ids in a new snapshot next to the previous one. The ids are sorted
+	 * on disk, so that the memory use doesn't depend on the number of ids.
+	 *
+	 * @param name {@link #FRIENDS} or {@link #FOLLOWERS}
+	 * @return the new snapshot file
+	 * @throws TwitterException the twitter exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected File collect(String name) throws TwitterException, IOException {
+		File previous = getSnapshot(name);
+		File current = new File(previous.getPath() + ".new");
+		ExternalIdSorter sorter = new ExternalIdSorter(previous.getAbsoluteFile().getParentFile(),
+			previous.getName(), sortBuffer);
+		IDs ids = null;
+		long cursor = -1L;
+		do {
+			acquire(FRIENDS.equals(name) ? RateAwareTwitter.FRIENDS_IDS : RateAwareTwitter.FOLLOWERS_IDS);
+			ids = FRIENDS.equals(name) ? twitter.getFriendsIDs(cursor) : twitter.getFollowersIDs(cursor);
+			sorter.add(ids.getIDs());
+		} while((cursor = ids.getNextCursor()) != 0);
+		long count = sorter.finish(current);
+		log.info("Collected %s %s", count, name);
+		return current;
+	}
+	
+	/**
+	 * Compares a new snapshot with the previous one. If there is no previous
+	 * snapshot, every id in the new snapshot is reported as an addition.
+	 *
+	 * @param previous the previous snapshot
+	 * @param current the new snapshot
+	 * @return the differences between both snapshots
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected IdSnapshot.Diff getDiff(File previous, File current) throws IOException {
+		return new IdSnapshot.Diff(new IdSnapshot.Reader(previous), new IdSnapshot.Reader(current));
+	}
+	
+	/**
+	 * Asks twitter for all the accounts we follow, and updates the
+	 * database without using snapshots.
+	 *
+	 * @throws SQLException the SQL exception
+	 * @throws TwitterException the twitter exception
+	 */
+	public void listAllFriends() throws SQLException, TwitterException {
     	IDs ids = null;
-    	connection.execute(String.format(WE_FOLLOWED_ON, account));
-    	connection.execute(String.format(RESET_WE_FOLLOW, account));
+    	dao.setWeFollowedOn(account);
+    	dao.resetWeFollow(account);
 		long cursor =-1L;
     	do {
             ids = twitter.getFriendsIDs(cursor);
@@ -141,20 +356,20 @@ public class AccountInfoMachine extends AbstractTwitterMachine {
 				setWeFollow(id);
     		}
         } while((cursor = ids.getNextCursor()) != 0);
-    	connection.execute(String.format(SET_STARTFOLLOW, account));
+    	dao.setStartFollow(account);
 	}
 	
 	/**
 	 * Asks twitter for all the accounts that follow us, and updates the
-	 * database accordingly.
+	 * database without using snapshots.
 	 *
 	 * @throws SQLException the SQL exception
 	 * @throws TwitterException the twitter exception
 	 */
-	public void listFollowers() throws SQLException, TwitterException {
+	public void listAllFollowers() throws SQLException, TwitterException {
     	IDs ids = null;
-    	connection.execute(String.format(THEY_FOLLOWED_ON, account));
-    	connection.execute(String.format(RESET_THEY_FOLLOW, account));
+    	dao.setTheyFollowedOn(account);
+    	dao.resetTheyFollow(account);
 		long cursor =-1L;
     	do {
     		ids = twitter.getFollowersIDs(cursor);
@@ -165,7 +380,7 @@ public class AccountInfoMachine extends AbstractTwitterMachine {
     				setTheyFollow(id);
     			}
     			catch(TwitterException e) {
-    				System.out.println(String.format("User %s caused exception: %s (%s).", id, e.getMessage(), e.getStatusCode()));
+    				log.warn("User %s caused exception: %s (%s).", id, e.getMessage(), e.getStatusCode());
     				showErrorIfNecessary(e);
     			}
     		}
@@ -182,21 +397,10 @@ public class AccountInfoMachine extends AbstractTwitterMachine {
 	 */
 	public void insertAccount(long id) throws SQLException, TwitterException {
 		if (exists(id)) return;
+		acquire(RateAwareTwitter.SHOW_USER);
 		User user = twitter.showUser(id);
-		insert.setLong(1, user.getId());
-		insert.setString(2, user.getScreenName());
-		insert.setString(3, makeASCII(user.getName()));
-		insert.setString(4, makeASCII(user.getLocation()));
-		insert.setString(5, user.getLang());
-		insert.setString(6, makeASCII(user.getDescription()));
-		insert.setString(7, user.getURL());
-		insert.setInt(8, user.getFollowersCount());
-		insert.setInt(9, user.getFriendsCount());
-		insert.setInt(10, user.getStatusesCount());
-		insert.setInt(11, user.getFavouritesCount());
-		insert.setString(12, user.isProtected() ? "Y" : "N");
-		insert.executeUpdate();
-		System.out.println(String.format("Account %s (%s) added.", id, user.getScreenName()));
+		insertUser(user);
+		log.debug("Account %s (%s) added.", id, user.getScreenName());
 		needsSleep(250);
 	}
 	
@@ -208,12 +412,7 @@ public class AccountInfoMachine extends AbstractTwitterMachine {
 	 * @throws SQLException the SQL exception
 	 */
 	public boolean exists(long id) throws SQLException {
-		exists.setLong(1, id);
-		ResultSet rs = exists.executeQuery();
-		if (rs.next()) {
-			return (rs.getInt(1) == 1);
-		}
-		return false;
+		return dao.exists(id);
 	}
 	
 	/**
@@ -224,9 +423,8 @@ public class AccountInfoMachine extends AbstractTwitterMachine {
 	 */
 	public void linkAccount(long id) throws SQLException {
 		if (isLinked(id)) return;
-		link.setLong(1, id);
-		link.executeUpdate();
-		System.out.println(String.format("Account %s linked.", id));
+		dao.link(account, id);
+		log.debug("Account %s linked.", id);
 	}
 	
 	/**
@@ -237,12 +435,7 @@ public class AccountInfoMachine extends AbstractTwitterMachine {
 	 * @throws SQLException the SQL exception
 	 */
 	public boolean isLinked(long id) throws SQLException {
-		linked.setLong(1, id);
-		ResultSet rs = linked.executeQuery();
-		if (rs.next()) {
-			return (rs.getInt(1) == 1);
-		}
-		return false;
+		return dao.isLinked(account, id);
 	}
 	
 	/**
@@ -252,8 +445,18 @@ public class AccountInfoMachine extends AbstractTwitterMachine {
 	 * @throws SQLException the SQL exception
 	 */
 	public void setWeFollow(long id) throws SQLException {
-		updateWeFollow.setLong(1, id);
-		updateWeFollow.executeUpdate();
+		dao.setWeFollow(account, id);
+	}
+	
+	/**
+	 * Links a series of accounts we started following, and sets their wefollow flag.
+	 *
+	 * @param ids the ids of the accounts
+	 * @throws SQLException the SQL exception
+	 */
+	protected void linkWeFollow(long[] ids) throws SQLException {
+		dao.link(account, ids);
+		dao.setWeFollow(account, ids);
 	}
 	
 	/**
@@ -263,8 +466,18 @@ public class AccountInfoMachine extends AbstractTwitterMachine {
 	 * @throws SQLException the SQL exception
 	 */
 	public void setTheyFollow(long id) throws SQLException {
-		updateTheyFollow.setLong(1, id);
-		updateTheyFollow.executeUpdate();
+		dao.setTheyFollow(account, id);
+	}
+	
+	/**
+	 * Links a series of accounts that started following us, and sets their theyfollow flag.
+	 *
+	 * @param ids the ids of the accounts
+	 * @throws SQLException the SQL exception
+	 */
+	protected void linkTheyFollow(long[] ids) throws SQLException {
+		dao.link(account, ids);
+		dao.setTheyFollow(account, ids);
 	}
 	
 	/**
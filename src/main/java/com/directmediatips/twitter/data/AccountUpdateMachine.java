@@ -14,35 +14,33 @@ package com.directmediatips.twitter.data;
  * limitations under the License.
  */
 
+import java.io.File;
 import java.io.IOException;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import com.directmediatips.twitter.AbstractTwitterMachine;
+import com.directmediatips.twitter.RateAwareTwitter;
+import com.directmediatips.twitter.store.MetricsHistory;
 
 import twitter4j.TwitterException;
 import twitter4j.User;
 
 /**
  * Gets all the accounts that weren't banned from the database,
- * and updates their metrics.
+ * and updates their metrics. The metrics are also added to the
+ * {@link MetricsHistory}, so that their evolution isn't lost.
  */
 public class AccountUpdateMachine extends BanBlockedMachine {
 	
 	/**  SQL to get ids from the accounts table. */
-	public static final String GET_ACCOUNTS =
-			"SELECT id FROM accounts";
+	public static final String GET_ACCOUNTS = TwitterDao.GET_ACCOUNTS;
 	
 	/** SQL updating a record in the accounts table. */
-	public static final String UPDATE_ACCOUNT = "UPDATE accounts"
-			+ " SET screenname = ?, name = ?, location = ?, lang = ?,"
-			+ " description = ?, url = ?, followers = ?, following = ?,"
-			+ " statuses = ?, favorites = ?, protected = ?"
-			+ " WHERE id = ? AND banned = 0";
+	public static final String UPDATE_ACCOUNT = TwitterDao.UPDATE_ACCOUNT;
 	
-	/** Prepared statement to update a record. */
-	protected PreparedStatement update;
+	/** The history of the metrics of the accounts. */
+	protected MetricsHistory history;
 	
 	/**
 	 * Creates an AccountUpdateMachine instance.
@@ -53,7 +51,7 @@ public class AccountUpdateMachine extends BanBlockedMachine {
 	 */
 	public AccountUpdateMachine(String account) throws IOException, SQLException {
 		super(account);
-		update = connection.prepare(UPDATE_ACCOUNT);
+		history = new MetricsHistory(new File(MetricsHistory.DIRECTORY));
 	}
 
 	/**
@@ -65,7 +63,7 @@ public class AccountUpdateMachine extends BanBlockedMachine {
 	 */
 	@Override
 	public void go() throws SQLException, TwitterException {
-		ResultSet rs = connection.execute(GET_ACCOUNTS);
+		ResultSet rs = dao.getAccounts();
 		while (rs.next()) {
 			updateAccount(rs.getLong(1));
 		}
@@ -79,33 +77,55 @@ public class AccountUpdateMachine extends BanBlockedMachine {
 	 */
 	public void updateAccount(long id) throws SQLException {
 		try {
+			acquire(RateAwareTwitter.SHOW_USER);
 			User user = twitter.showUser(id);
-			update.setString(1, user.getScreenName());
-			update.setString(2, makeASCII(user.getName()));
-			update.setString(3, makeASCII(user.getLocation()));
-			update.setString(4, user.getLang());
-			update.setString(5, makeASCII(user.getDescription()));
-			update.setString(6, user.getURL());
-			update.setInt(7, user.getFollowersCount());
-			update.setInt(8, user.getFriendsCount());
-			update.setInt(9, user.getStatusesCount());
-			update.setInt(10, user.getFavouritesCount());
-			update.setString(11, user.isProtected() ? "Y" : "N");
-			update.setLong(12, id);
-			update.executeUpdate();
-			System.out.println(String.format("Account %s (%s) updated.", id, user.getScreenName()));
+			updateUser(user);
+			addToHistory(id, user);
+			log.debug("Account %s (%s) updated.", id, user.getScreenName());
 			needsSleep(250);
 		}
 		catch (TwitterException e) {
 			showErrorIfNecessary(e);
 			if (e.getErrorMessage().contains("User not found")) {
-    			ban.setLong(1, id);
-   				ban.executeQuery();
-   				System.out.println(String.format("User %s not found; adding to the ban list", id));
+    			dao.ban(id);
+   				log.info("User %s not found; adding to the ban list", id);
 			}
 		}
 	}
 	
+	/**
+	 * Adds the current metrics of a Twitter profile to the history.
+	 *
+	 * @param id the id of the Twitter profile
+	 * @param user the Twitter profile
+	 */
+	protected void addToHistory(long id, User user) {
+		try {
+			history.add(new MetricsHistory.Point(id, System.currentTimeMillis(),
+				user.getFollowersCount(), user.getFriendsCount(),
+				user.getStatusesCount(), user.getFavouritesCount()));
+		}
+		catch (IOException e) {
+			log.warn("Can't add %s to the history: %s", id, e.getMessage());
+		}
+	}
+	
+	/**
+	 * Writes the pending history, and closes the machine.
+	 *
+	 * @see com.directmediatips.twitter.AbstractTwitterMachine#close()
+	 */
+	@Override
+	public void close() {
+		try {
+			history.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		super.close();
+	}
+	
 	/**
 	 * Starts and runs the Twitter machine.
 	 *
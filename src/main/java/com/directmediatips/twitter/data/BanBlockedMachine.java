@@ -15,7 +15,6 @@ package com.directmediatips.twitter.data;
  */
 
 import java.io.IOException;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
 import com.directmediatips.twitter.AbstractTwitterMachine;
@@ -29,11 +28,7 @@ import twitter4j.TwitterException;
 public class BanBlockedMachine extends AbstractTwitterMachine {
 
 	/** SQL that sets the banned flag for an account. */
-	public static final String BAN = "UPDATE accounts SET banned = 1"
-			+ " WHERE id = ?";
-	
-	/** Prepared statement to ban an account. */
-	protected PreparedStatement ban;
+	public static final String BAN = TwitterDao.BAN;
 	
 	/**
 	 * Creates an BanBlockedMachine instance.
@@ -44,7 +39,6 @@ public class BanBlockedMachine extends AbstractTwitterMachine {
 	 */
 	public BanBlockedMachine(String account) throws IOException, SQLException {
 		super(account);
-		ban = connection.prepare(BAN);
 	}
 
 	/**
@@ -58,10 +52,9 @@ public class BanBlockedMachine extends AbstractTwitterMachine {
 	public void go() throws SQLException, TwitterException {
 		IDs ids = twitter.getBlocksIDs();
 		do {
+    		dao.ban(ids.getIDs());
     		for (long id : ids.getIDs()) {
-    			ban.setLong(1, id);
-   				ban.executeQuery();
-   				System.out.println(String.format("Adding %s to the ban list", id));
+   				log.debug("Adding %s to the ban list", id);
    				twitter.destroyBlock(id);
     		}
     	} while (ids.hasNext());
@@ -0,0 +1,170 @@
+package com.directmediatips.twitter.data;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * An embedded H2 database, running in MySQL compatibility mode, that
+ * replaces the MySQL server for single-node deployments and tests.
+ * Run the machines with <code>-Ddatabase=embedded</code> to use it;
+ * the database is stored in <code>twitter/db</code> unless another JDBC
+ * URL is passed with <code>-Ddatabase.url</code>, for instance
+ * <code>jdbc:h2:mem:twitter;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1</code>
+ * for a throwaway database. Several processes can use the same database
+ * file: the first one serves it to the others.
+ * <p>
+ * The tables are created when the database is opened, and the MySQL
+ * constructs that H2 doesn't understand are translated by
+ * {@link #translate(String)} before a statement is prepared.
+ * @see TwitterDao
+ */
+public class EmbeddedDatabase implements TwitterDao.Preparer {
+	
+	/** The system property that selects the database. */
+	public static final String DATABASE = "database";
+	/** The value of the system property for the embedded database. */
+	public static final String EMBEDDED = "embedded";
+	/** The system property with the JDBC URL of the embedded database. */
+	public static final String URL = "database.url";
+	/** The default JDBC URL of the embedded database. */
+	public static final String DEFAULT_URL =
+			"jdbc:h2:./twitter/db/twitter;MODE=MySQL;DATABASE_TO_LOWER=TRUE;AUTO_SERVER=TRUE";
+	
+	/** The MySQL constructs with their H2 equivalent, in the order they are applied. */
+	protected static final Map<Pattern, String> RULES = new LinkedHashMap<Pattern, String>();
+	
+	static {
+		put("DATE_SUB\\(NOW\\(\\), INTERVAL (\\S+) (\\w+)\\)",
+			"DATEADD('$2', -CAST($1 AS INT), CURRENT_TIMESTAMP)");
+		put("LIMIT (\\d+), (\\d+)", "LIMIT $2 OFFSET $1");
+		put("^CREATE INDEX (?!IF NOT EXISTS )", "CREATE INDEX IF NOT EXISTS ");
+		put(";\\s*$", "");
+	}
+	
+	/**
+	 * Registers a translation.
+	 *
+	 * @param regex the MySQL construct
+	 * @param replacement the H2 construct
+	 */
+	protected static void put(String regex, String replacement) {
+		RULES.put(Pattern.compile(regex), replacement);
+	}
+	
+	/**
+	 * Checks if the embedded database is used.
+	 *
+	 * @return true if the machines use the embedded database
+	 */
+	public static boolean isEmbedded() {
+		return EMBEDDED.equals(System.getProperty(DATABASE));
+	}
+	
+	/**
+	 * Translates a MySQL statement for the database that is used;
+	 * use this method for SQL that doesn't go through {@link #prepare(String)}.
+	 *
+	 * @param sql a MySQL statement
+	 * @return the statement for the current database
+	 */
+	public static String translate(String sql) {
+		if (!isEmbedded())
+			return sql;
+		for (Map.Entry<Pattern, String> rule : RULES.entrySet()) {
+			sql = rule.getKey().matcher(sql).replaceAll(rule.getValue());
+		}
+		return sql;
+	}
+	
+	/** The JDBC connection. */
+	protected Connection connection;
+	
+	/**
+	 * Opens the embedded database, and creates the tables
+	 * that are shared by all our accounts.
+	 *
+	 * @throws SQLException the SQL exception
+	 */
+	public EmbeddedDatabase() throws SQLException {
+		connection = DriverManager.getConnection(System.getProperty(URL, DEFAULT_URL), "sa", "");
+		execute(Schema.ACCOUNTS);
+		execute(Schema.RETWEETS);
+		execute(Schema.RETWEETS_INDEX);
+		if (Relationships.isConsolidated())
+			execute(Schema.RELATIONSHIPS);
+	}
+	
+	/**
+	 * Creates the tables of one of our accounts, if they don't exist yet.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @throws SQLException the SQL exception
+	 */
+	public void createTables(String account) throws SQLException {
+		execute(Relationships.format(Schema.ACCOUNT_LINKS, account));
+		execute(String.format(Schema.QUOTES, account));
+	}
+	
+	/**
+	 * Prepares a statement, after translating it.
+	 *
+	 * @param sql a MySQL statement
+	 * @return the prepared statement
+	 * @throws SQLException the SQL exception
+	 * @see com.directmediatips.twitter.data.TwitterDao.Preparer#prepare(java.lang.String)
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		return connection.prepareStatement(translate(sql));
+	}
+	
+	/**
+	 * Executes a statement, after translating it.
+	 *
+	 * @param sql a MySQL statement
+	 * @return the result set of a query, or null for other statements
+	 * @throws SQLException the SQL exception
+	 */
+	public ResultSet execute(String sql) throws SQLException {
+		Statement statement = connection.createStatement();
+		if (statement.execute(translate(sql))) {
+			statement.closeOnCompletion();
+			return statement.getResultSet();
+		}
+		statement.close();
+		return null;
+	}
+	
+	/**
+	 * Closes the connection; the database is closed when
+	 * its last connection is closed.
+	 */
+	public void close() {
+		try {
+			connection.close();
+		}
+		catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+}
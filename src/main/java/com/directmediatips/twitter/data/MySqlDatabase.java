@@ -0,0 +1,52 @@
+package com.directmediatips.twitter.data;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import com.directmediatips.database.AbstractDatabaseMachine;
+
+/**
+ * The MySQL database of the machines, opened with the connection settings
+ * of dmt-data. The connection is opened when an instance is created, so
+ * the machines only create one when they don't use the {@link EmbeddedDatabase}.
+ * @see TwitterDao
+ */
+public class MySqlDatabase extends AbstractDatabaseMachine implements TwitterDao.Preparer {
+	
+	/**
+	 * Opens the MySQL database.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws SQLException the SQL exception
+	 */
+	public MySqlDatabase() throws IOException, SQLException {
+		super();
+	}
+	
+	/**
+	 * Prepares a statement on the MySQL connection.
+	 *
+	 * @param sql the SQL statement
+	 * @return the prepared statement
+	 * @throws SQLException the SQL exception
+	 * @see com.directmediatips.twitter.data.TwitterDao.Preparer#prepare(java.lang.String)
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		return connection.prepare(sql);
+	}
+}
@@ -0,0 +1,120 @@
+package com.directmediatips.twitter.data;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import com.directmediatips.database.AbstractDatabaseMachine;
+import com.directmediatips.twitter.MachineLog;
+
+/**
+ * Copies the per-account <code>%s_accounts</code> tables into the
+ * consolidated <code>relationships</code> table. The copy can be repeated
+ * safely: relationships that are already in the consolidated table are
+ * left alone, so that the copy never overwrites what the machines wrote
+ * after the switch. The per-account tables are left untouched, so that
+ * the machines can switch back to the old layout.
+ * @see Relationships
+ */
+public class RelationshipMigrationMachine extends AbstractDatabaseMachine {
+	
+	/** SQL to copy the relationships of one of our accounts that aren't consolidated yet. */
+	public static final String COPY = "INSERT IGNORE INTO relationships"
+			+ " (account, id, wefollow, theyfollow, wefollowedon, theyfollowedon, startfollow,"
+			+ " followfriends, followfollowers, retweet)"
+			+ " SELECT '%1$s', id, wefollow, theyfollow, wefollowedon, theyfollowedon, startfollow,"
+			+ " followfriends, followfollowers, retweet FROM %1$s_accounts";
+	/** SQL to count the relationships in a per-account table. */
+	public static final String COUNT_TABLE = "SELECT count(*) FROM %s_accounts";
+	/** SQL to count the relationships of an account in the consolidated table. */
+	public static final String COUNT_CONSOLIDATED = "SELECT count(*) FROM relationships WHERE account = '%s'";
+	
+	/** The log of the machine. */
+	protected MachineLog log = new MachineLog(getClass().getSimpleName());
+	
+	/**
+	 * Creates a RelationshipMigrationMachine instance.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws SQLException the SQL exception
+	 */
+	public RelationshipMigrationMachine() throws IOException, SQLException {
+		super();
+	}
+	
+	/**
+	 * Creates the consolidated table and copies the relationships of our accounts.
+	 *
+	 * @param accounts the screen names of our Twitter accounts
+	 * @return true if all the relationships were copied
+	 * @throws SQLException the SQL exception
+	 */
+	public boolean migrate(String[] accounts) throws SQLException {
+		connection.execute(Schema.RELATIONSHIPS);
+		boolean ok = true;
+		for (String account : accounts) {
+			long start = System.currentTimeMillis();
+			connection.execute(String.format(COPY, account));
+			int before = count(String.format(COUNT_TABLE, account));
+			int after = count(String.format(COUNT_CONSOLIDATED, account));
+			log.info("%s: copied %s of %s relationships in %s ms",
+				account, after, before, System.currentTimeMillis() - start);
+			// the machines may have added relationships since the switch
+			ok &= after >= before;
+		}
+		return ok;
+	}
+	
+	/**
+	 * Executes a count query.
+	 *
+	 * @param sql the query
+	 * @return the count
+	 * @throws SQLException the SQL exception
+	 */
+	protected int count(String sql) throws SQLException {
+		ResultSet rs = connection.execute(sql);
+		return rs.next() ? rs.getInt(1) : 0;
+	}
+	
+	/**
+	 * Starts and runs the migration.
+	 *
+	 * @param args the screen names of our Twitter accounts
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.out.println("An argument is required...");
+			return;
+		}
+		System.out.println(String.format("Running RelationshipMigrationMachine for %s...", String.join(", ", args)));
+		RelationshipMigrationMachine app = null;
+		try {
+			app = new RelationshipMigrationMachine();
+			if (app.migrate(args))
+				System.out.println(String.format("Done; run the machines with -D%s=%s",
+					Relationships.LAYOUT, Relationships.CONSOLIDATED));
+			else
+				System.out.println("Some relationships weren't copied; keep using the per-account tables.");
+		}
+		catch(Exception e) {
+			e.printStackTrace();
+		}
+		if (app != null)
+			app.close();
+	}
+}
@@ -0,0 +1,205 @@
+package com.directmediatips.twitter.data;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chooses between the two layouts of the relationships of our accounts.
+ * By default, every account has its own <code>%s_accounts</code> table.
+ * In the consolidated layout (<code>-Drelationships=consolidated</code>),
+ * all relationships are stored in a single <code>relationships</code>
+ * table, keyed by account and id, with indexes for the hot queries.
+ * <p>
+ * Every SQL statement that uses the relationships has a consolidated
+ * version here, with the parameters in the same order, so that the
+ * machines can use {@link #format(String, Object...)} instead of
+ * <code>String.format()</code> and work against either layout. In the
+ * consolidated layout, the account isn't part of the SQL: it is an extra
+ * bind parameter at the end (see {@link #getAccountParameter(String)}),
+ * so that a statement is prepared once for all our accounts.
+ * @see RelationshipMigrationMachine
+ */
+public class Relationships {
+	
+	/** The system property that selects the layout. */
+	public static final String LAYOUT = "relationships";
+	/** The value of the system property for the consolidated layout. */
+	public static final String CONSOLIDATED = "consolidated";
+	
+	/** The consolidated version of each statement. */
+	protected static final Map<String, String> STATEMENTS = new HashMap<String, String>();
+	/** The index of the account parameter of each consolidated statement. */
+	protected static final Map<String, Integer> ACCOUNT_PARAMETERS = new HashMap<String, Integer>();
+	
+	static {
+		put(Schema.ACCOUNT_LINKS, Schema.RELATIONSHIPS);
+		put(TwitterDao.LINK_ACCOUNT,
+			"INSERT IGNORE INTO relationships (id, account) VALUES (?, ?)");
+		put(TwitterDao.WE_FOLLOWED_ON,
+			"UPDATE relationships SET wefollowedon = CURRENT_TIMESTAMP WHERE wefollow = 1 AND account = ?");
+		put(TwitterDao.RESET_WE_FOLLOW,
+			"UPDATE relationships SET wefollow = 0 WHERE account = ?");
+		put(TwitterDao.SET_WE_FOLLOW,
+			"UPDATE relationships SET wefollow = 1, wefollowedon = CURRENT_TIMESTAMP WHERE id = ? AND account = ?");
+		put(TwitterDao.SET_REQUESTED,
+			"UPDATE relationships SET wefollowedon = CURRENT_TIMESTAMP WHERE id = ? AND account = ?");
+		put(TwitterDao.UNSET_WE_FOLLOW,
+			"UPDATE relationships SET wefollow = 0 WHERE id = ? AND account = ?");
+		put(TwitterDao.SET_STARTFOLLOW,
+			"UPDATE relationships SET startfollow = wefollowedon WHERE startfollow IS NULL AND account = ?");
+		put(TwitterDao.THEY_FOLLOWED_ON,
+			"UPDATE relationships SET theyfollowedon = CURRENT_TIMESTAMP WHERE theyfollow = 1 AND account = ?");
+		put(TwitterDao.RESET_THEY_FOLLOW,
+			"UPDATE relationships SET theyfollow = 0 WHERE account = ?");
+		put(TwitterDao.SET_THEY_FOLLOW,
+			"UPDATE relationships SET theyfollow = 1, theyfollowedon = CURRENT_TIMESTAMP WHERE id = ? AND account = ?");
+		put(TwitterDao.UNSET_THEY_FOLLOW,
+			"UPDATE relationships SET theyfollow = 0 WHERE id = ? AND account = ?");
+		put(TwitterDao.ACCOUNT_LINKED,
+			"SELECT count(*) FROM relationships WHERE id = ? AND account = ?");
+		put(TwitterDao.SELECT_FRIENDS_TO_FOLLOW,
+			"SELECT id FROM relationships WHERE followfriends = 1 AND account = ?");
+		put(TwitterDao.SELECT_FOLLOWERS_TO_FOLLOW,
+			"SELECT id FROM relationships WHERE followfollowers = 1 AND account = ?");
+		put(TwitterDao.ACCOUNT_DO_WE_FOLLOW,
+			"SELECT wefollow FROM relationships WHERE id = ? AND account = ?");
+		put(TwitterDao.FOLLOW_BACK, "SELECT aa.id, a.screenname"
+			+ " FROM relationships aa, accounts a "
+			+ " WHERE aa.theyfollow = 1 AND aa.wefollow = 0"
+			+ " AND aa.wefollowedon IS NULL AND aa.id = a.id"
+			+ " AND a.banned = 0 AND a.protected = 'N' AND aa.account = ?");
+		put(TwitterDao.SELECT_BANNED, "SELECT a.id FROM accounts a, relationships aa"
+			+ " WHERE aa.wefollow = 1 AND a.banned = 1 AND a.id = aa.id AND aa.account = ?");
+		put(TwitterDao.SELECT_UNFOLLOW, "SELECT id FROM relationships"
+			+ " WHERE wefollow = 1 AND theyfollow = 0"
+			+ " AND startfollow < DATE_SUB(NOW(), INTERVAL ? DAY) AND account = ?");
+		put(TwitterDao.SELECT_WE_FOLLOW,
+			"SELECT id FROM relationships WHERE wefollow = 1 AND account = ?");
+		put(TwitterDao.RETWEET_ACCOUNTS,
+			"SELECT id FROM relationships WHERE retweet = 1 AND account = ?");
+		put(TwitterDao.RETWEET_SOURCES,
+			"SELECT id, account FROM relationships WHERE retweet = 1 AND account = ?");
+		put(TwitterDao.SELECT_HARVEST, "SELECT a.id, a.screenname,"
+			+ " aa.followfriends, aa.followFollowers, aa.retweet"
+			+ " FROM accounts a, relationships aa WHERE a.id = aa.id"
+			+ " AND (aa.followFriends > 0 OR aa.followFollowers > 0 OR aa.retweet > 0) AND aa.account = ?");
+		put(TwitterDao.UPDATE_HARVEST, "UPDATE relationships SET"
+			+ " followfriends = ?, followfollowers = ?, retweet = ?"
+			+ " WHERE id = ? AND account = ?");
+		put(TwitterDao.INSERT_HARVEST, "INSERT INTO relationships"
+			+ " (id, followfriends, followfollowers, retweet, account)"
+			+ " VALUES (?, ?, ?, ?, ?)");
+		put(TwitterDao.COUNT_WE_FOLLOW,
+			"SELECT count(*) FROM relationships WHERE wefollow = 1 AND account = ?");
+		put(TwitterDao.COUNT_THEY_FOLLOW,
+			"SELECT count(*) FROM relationships WHERE theyfollow = 1 AND account = ?");
+		put(TwitterDao.SELECT_FOLLOWER_IDS,
+			"SELECT id FROM relationships WHERE theyfollow = 1 AND account = ?");
+		put(TwitterDao.SELECT_FOLLOWERS, "SELECT a.id, a.screenname FROM accounts a, relationships aa"
+			+ " WHERE aa.theyfollow = 1 AND a.id = aa.id AND aa.account = ? AND (%2$s)");
+		put(TwitterDao.SELECT_MEMBERS, "SELECT aa.id, aa.wefollow, aa.theyfollow, aa.wefollowedon,"
+			+ " aa.theyfollowedon, aa.startfollow, aa.followfriends, aa.followfollowers, aa.retweet,"
+			+ " %s AS account FROM relationships aa WHERE aa.theyfollow = 1 AND aa.account = ?");
+		put(TwitterDao.INSERT_LINK, "INSERT INTO relationships"
+			+ " (id, wefollow, theyfollow, wefollowedon, theyfollowedon, startfollow,"
+			+ " followfriends, followfollowers, retweet, account)"
+			+ " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+	}
+	
+	/**
+	 * Registers the consolidated version of a statement.
+	 *
+	 * @param statement a statement using a <code>%s_accounts</code> table
+	 * @param consolidated the same statement using the <code>relationships</code> table
+	 */
+	protected static void put(String statement, String consolidated) {
+		if (STATEMENTS.put(statement, consolidated) != null)
+			throw new IllegalStateException(String.format("Duplicate statement: %s", statement));
+		int parameters = consolidated.replaceAll("[^?]", "").length();
+		if (parameters > 0)
+			ACCOUNT_PARAMETERS.put(statement, parameters);
+	}
+	
+	/**
+	 * Checks if the consolidated layout is used.
+	 *
+	 * @return true if all relationships are stored in a single table
+	 */
+	public static boolean isConsolidated() {
+		return CONSOLIDATED.equals(System.getProperty(LAYOUT));
+	}
+	
+	/**
+	 * Gets the version of a statement that matches the layout.
+	 *
+	 * @param statement a statement, usually using a <code>%s_accounts</code> table
+	 * @return the statement for the current layout
+	 */
+	public static String get(String statement) {
+		if (!isConsolidated())
+			return statement;
+		String consolidated = STATEMENTS.get(statement);
+		if (consolidated == null && !statement.contains("_accounts"))
+			return statement;
+		if (consolidated == null)
+			throw new IllegalArgumentException(String.format("No consolidated version of: %s", statement));
+		return consolidated;
+	}
+	
+	/**
+	 * Gets the index of the bind parameter that takes the screen name of
+	 * our account. In the consolidated layout, the account is always the
+	 * last parameter of a statement, so that the other parameters keep
+	 * the same index in both layouts.
+	 *
+	 * @param statement a statement, usually using a <code>%s_accounts</code> table
+	 * @return the index of the account parameter, or 0 if the statement
+	 * doesn't take the account as a parameter in the current layout
+	 */
+	public static int getAccountParameter(String statement) {
+		if (!isConsolidated())
+			return 0;
+		Integer index = ACCOUNT_PARAMETERS.get(statement);
+		return index == null ? 0 : index;
+	}
+	
+	/**
+	 * Gets the values of the bind parameters of a statement whose only
+	 * parameter is the account, combined for a series of our accounts
+	 * (e.g. with UNION ALL).
+	 *
+	 * @param statement a statement using a <code>%s_accounts</code> table
+	 * @param accounts the screen names of our accounts, in the order of the combined statements
+	 * @return the parameters for the current layout; empty if the account is part of the table name
+	 */
+	public static Object[] getParameters(String statement, Object... accounts) {
+		return getAccountParameter(statement) > 0 ? accounts : new Object[0];
+	}
+	
+	/**
+	 * Formats a statement for the current layout; use this method
+	 * instead of <code>String.format()</code> for every statement
+	 * that uses the relationships of our accounts.
+	 *
+	 * @param statement a statement using a <code>%s_accounts</code> table
+	 * @param args the arguments, usually the screen name of one of our accounts
+	 * @return the formatted statement for the current layout
+	 */
+	public static String format(String statement, Object... args) {
+		return String.format(get(statement), args);
+	}
+}
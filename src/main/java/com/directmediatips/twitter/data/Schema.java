@@ -0,0 +1,60 @@
+package com.directmediatips.twitter.data;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The SQL to create the tables used by the Twitter machines.
+ * The per-account tables are templates that need the screen
+ * name of one of our accounts.
+ */
+public class Schema {
+
+	/** SQL creating the table with the information about all accounts. */
+	public static final String ACCOUNTS = "CREATE TABLE IF NOT EXISTS accounts ("
+			+ " id BIGINT NOT NULL PRIMARY KEY, screenname VARCHAR(64), name VARCHAR(128),"
+			+ " location VARCHAR(128), lang VARCHAR(16), description VARCHAR(512), url VARCHAR(255),"
+			+ " followers INT DEFAULT 0, following INT DEFAULT 0, statuses INT DEFAULT 0,"
+			+ " favorites INT DEFAULT 0, protected CHAR(1) DEFAULT 'N', banned INT DEFAULT 0)";
+	/** SQL creating the table with the relationships of one of our accounts. */
+	public static final String ACCOUNT_LINKS = "CREATE TABLE IF NOT EXISTS %s_accounts ("
+			+ " id BIGINT NOT NULL PRIMARY KEY, wefollow INT DEFAULT 0, theyfollow INT DEFAULT 0,"
+			+ " wefollowedon TIMESTAMP NULL, theyfollowedon TIMESTAMP NULL, startfollow TIMESTAMP NULL,"
+			+ " followfriends INT DEFAULT 0, followfollowers INT DEFAULT 0, retweet INT DEFAULT 0)";
+	/**
+	 * SQL creating the table with the relationships of all our accounts,
+	 * replacing the per-account tables in the consolidated layout.
+	 * The indexes match the queries of the follow back, unfollow and
+	 * unfriend machines.
+	 * @see Relationships
+	 */
+	public static final String RELATIONSHIPS = "CREATE TABLE IF NOT EXISTS relationships ("
+			+ " account VARCHAR(64) NOT NULL, id BIGINT NOT NULL, wefollow INT DEFAULT 0, theyfollow INT DEFAULT 0,"
+			+ " wefollowedon TIMESTAMP NULL, theyfollowedon TIMESTAMP NULL, startfollow TIMESTAMP NULL,"
+			+ " followfriends INT DEFAULT 0, followfollowers INT DEFAULT 0, retweet INT DEFAULT 0,"
+			+ " PRIMARY KEY (account, id),"
+			+ " INDEX relationships_follow_back (account, theyfollow, wefollow, wefollowedon),"
+			+ " INDEX relationships_unfollow (account, wefollow, theyfollow, startfollow),"
+			+ " INDEX relationships_id (id))";
+	/** SQL creating the table with the tweets that were retweeted. */
+	public static final String RETWEETS = "CREATE TABLE IF NOT EXISTS retweets ("
+			+ " account VARCHAR(64) NOT NULL, tweetid BIGINT NOT NULL)";
+	/** SQL creating the index on the retweets table. */
+	public static final String RETWEETS_INDEX =
+			"CREATE INDEX retweets_account ON retweets (account, tweetid)";
+	/** SQL creating the table with the quotes of one of our accounts. */
+	public static final String QUOTES = "CREATE TABLE IF NOT EXISTS %s_quotes ("
+			+ " id INT NOT NULL AUTO_INCREMENT PRIMARY KEY, quote VARCHAR(512),"
+			+ " author VARCHAR(128), status INT DEFAULT 0)";
+}
@@ -0,0 +1,1123 @@
+package com.directmediatips.twitter.data;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The data-access layer of the Twitter machines. This class owns the SQL
+ * of the machines (the machines keep their constants as aliases), and it
+ * keeps every statement it prepares, so that a long-running process
+ * prepares each statement only once per account. Values are passed as
+ * bind parameters, and every write has a batch variant.
+ * <p>
+ * The statements that use the relationships of our accounts are
+ * formatted with {@link Relationships}, so the layer works with either
+ * layout of the database. The statements are prepared by a {@link Preparer},
+ * either on a {@link MySqlDatabase}, or on an {@link EmbeddedDatabase}.
+ */
+public class TwitterDao {
+	
+	/**
+	 * Prepares a statement on the database connection of a machine.
+	 */
+	public interface Preparer {
+		
+		/**
+		 * Prepares a statement.
+		 *
+		 * @param sql the SQL statement
+		 * @return the prepared statement
+		 * @throws SQLException the SQL exception
+		 */
+		PreparedStatement prepare(String sql) throws SQLException;
+		
+		/**
+		 * Closes the database connection.
+		 */
+		void close();
+	}
+	
+	/** The maximum number of statements in a batch. */
+	public static final int BATCH = 500;
+	/** The fetch size that makes MySQL Connector/J stream a result set row by row. */
+	public static final int STREAMING = Integer.MIN_VALUE;
+	/** The fetch size of streamed result sets on the embedded database. */
+	public static final int FETCH_SIZE = 1000;
+	
+	// accounts
+	
+	/** SQL to get ids from the accounts table. */
+	public static final String GET_ACCOUNTS =
+			"SELECT id FROM accounts";
+	/** SQL to check if a record exists. */
+	public static final String ACCOUNT_EXISTS =
+			"SELECT count(*) FROM accounts WHERE id = ?";
+	/** SQL checking if an account is banned. */
+	public static final String ACCOUNT_BANNED =
+			"SELECT banned FROM accounts WHERE id = ?";
+	/** SQL to insert a new account record. */
+	public static final String CREATE_ACCOUNT = "INSERT INTO accounts"
+			+ "(id, screenname, name, location, lang, description, url,"
+			+ "followers, following, statuses, favorites, protected)"
+			+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	/** SQL updating a record in the accounts table. */
+	public static final String UPDATE_ACCOUNT = "UPDATE accounts"
+			+ " SET screenname = ?, name = ?, location = ?, lang = ?,"
+			+ " description = ?, url = ?, followers = ?, following = ?,"
+			+ " statuses = ?, favorites = ?, protected = ?"
+			+ " WHERE id = ? AND banned = 0";
+	/** SQL that sets the banned flag for an account. */
+	public static final String BAN = "UPDATE accounts SET banned = 1"
+			+ " WHERE id = ?";
+	/** SQL that sets the protected flag for an account. */
+	public static final String SET_PROTECTED = "UPDATE accounts SET protected = 'Y'"
+			+ " WHERE id = ?";
+	
+	// relationships
+	
+	/** SQL to link an account to one of our accounts, unless it is linked already. */
+	public static final String LINK_ACCOUNT =
+			"INSERT IGNORE INTO %s_accounts (id) VALUES (?)";
+	/** SQL to link an account to one of our accounts with all its relationship columns. */
+	public static final String INSERT_LINK = "INSERT INTO %s_accounts"
+			+ " (id, wefollow, theyfollow, wefollowedon, theyfollowedon, startfollow,"
+			+ " followfriends, followfollowers, retweet)"
+			+ " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	/** SQL to check if an account is linked to one of our accounts. */
+	public static final String ACCOUNT_LINKED =
+			"SELECT count(*) FROM %s_accounts WHERE id = ?";
+	/** SQL to set the date we started following accounts. */
+	public static final String WE_FOLLOWED_ON =
+			"UPDATE %s_accounts SET wefollowedon = CURRENT_TIMESTAMP WHERE wefollow = 1";
+	/** SQL to reset the wefollow flag of all accounts. */
+	public static final String RESET_WE_FOLLOW = "UPDATE %s_accounts SET wefollow = 0";
+	/** SQL to set the wefollow flag of an account. */
+	public static final String SET_WE_FOLLOW =
+			"UPDATE %s_accounts SET wefollow = 1, wefollowedon = CURRENT_TIMESTAMP WHERE id = ?";
+	/** SQL to register a pending follow request without setting the wefollow flag. */
+	public static final String SET_REQUESTED =
+			"UPDATE %s_accounts SET wefollowedon = CURRENT_TIMESTAMP WHERE id = ?";
+	/** SQL to reset the wefollow flag of a single account. */
+	public static final String UNSET_WE_FOLLOW =
+			"UPDATE %s_accounts SET wefollow = 0 WHERE id = ?";
+	/** SQL to set the date we started following accounts (if not set yet). */
+	public static final String SET_STARTFOLLOW =
+			"UPDATE %s_accounts SET startfollow = wefollowedon WHERE startfollow IS NULL";
+	/** SQL to set the date accounts started following us. */
+	public static final String THEY_FOLLOWED_ON =
+			"UPDATE %s_accounts SET theyfollowedon = CURRENT_TIMESTAMP WHERE theyfollow = 1";
+	/** SQL to reset the theyfollow flag of all accounts. */
+	public static final String RESET_THEY_FOLLOW = "UPDATE %s_accounts SET theyfollow = 0";
+	/** SQL to set the theyfollow flag of an account. */
+	public static final String SET_THEY_FOLLOW =
+			"UPDATE %s_accounts SET theyfollow = 1, theyfollowedon = CURRENT_TIMESTAMP WHERE id = ?";
+	/** SQL to reset the theyfollow flag of a single account. */
+	public static final String UNSET_THEY_FOLLOW =
+			"UPDATE %s_accounts SET theyfollow = 0 WHERE id = ?";
+	/** SQL to check if we follow an account. */
+	public static final String ACCOUNT_DO_WE_FOLLOW =
+			"SELECT wefollow FROM %s_accounts WHERE id = ?";
+	/** SQL to get the accounts whose friends we want to follow. */
+	public static final String SELECT_FRIENDS_TO_FOLLOW =
+			"SELECT id FROM %s_accounts WHERE followfriends = 1";
+	/** SQL to get the accounts whose followers we want to follow. */
+	public static final String SELECT_FOLLOWERS_TO_FOLLOW =
+			"SELECT id FROM %s_accounts WHERE followfollowers = 1";
+	/** SQL to find out who follows us that we didn't follow back yet. */
+	public static final String FOLLOW_BACK = "SELECT aa.id, a.screenname"
+			+ " FROM %s_accounts aa, accounts a "
+			+ " WHERE aa.theyfollow = 1 AND aa.wefollow = 0"
+			+ " AND aa.wefollowedon IS NULL AND aa.id = a.id"
+			+ " AND a.banned = 0 AND a.protected = 'N'";
+	/** SQL to get the banned accounts we follow. */
+	public static final String SELECT_BANNED =
+			"SELECT a.id FROM accounts a, %s_accounts aa"
+			+ " WHERE a.banned=1 AND aa.wefollow=1 AND a.id = aa.id";
+	/** SQL to get the accounts that didn't follow back in time. */
+	public static final String SELECT_UNFOLLOW =
+			"SELECT id FROM %s_accounts"
+			+ " WHERE wefollow=1 AND theyfollow=0"
+			+ " AND startfollow < DATE_SUB(NOW(), INTERVAL ? DAY)";
+	/** SQL to get the accounts we follow. */
+	public static final String SELECT_WE_FOLLOW =
+			"SELECT id FROM %s_accounts WHERE wefollow=1";
+	/** SQL to count the accounts we follow. */
+	public static final String COUNT_WE_FOLLOW =
+			"SELECT count(*) FROM %s_accounts WHERE wefollow = 1";
+	/** SQL to count the accounts that follow us. */
+	public static final String COUNT_THEY_FOLLOW =
+			"SELECT count(*) FROM %s_accounts WHERE theyfollow = 1";
+	/** SQL to get the accounts selected for retweets. */
+	public static final String RETWEET_ACCOUNTS =
+			"SELECT id FROM %s_accounts WHERE retweet = 1";
+	/** SQL to get the accounts selected for retweets by one of our accounts (combined with UNION ALL). */
+	public static final String RETWEET_SOURCES =
+			"SELECT id, '%1$s' AS account FROM %1$s_accounts WHERE retweet = 1";
+	/** SQL to get the harvest info as stored in the database. */
+	public static final String SELECT_HARVEST = "SELECT a.id, a.screenname,"
+			+ " aa.followfriends, aa.followFollowers, aa.retweet"
+			+ " FROM accounts a, %s_accounts aa WHERE a.id = aa.id"
+			+ " AND (aa.followFriends > 0 OR aa.followFollowers > 0 OR aa.retweet > 0)";
+	/** SQL to update harvest info for a specific account. */
+	public static final String UPDATE_HARVEST = "UPDATE %s_accounts SET"
+			+ " followfriends = ?, followfollowers = ?, retweet = ?"
+			+ " WHERE id = ?";
+	/** SQL to insert harvest info for a specific account. */
+	public static final String INSERT_HARVEST = "INSERT INTO %s_accounts"
+			+ " (id, followfriends, followfollowers, retweet)"
+			+ " VALUES (?, ?, ?, ?)";
+	/** SQL to get the ids of the followers of one of our accounts. */
+	public static final String SELECT_FOLLOWER_IDS =
+			"SELECT id FROM %s_accounts WHERE theyfollow = 1";
+	/** Template to get the followers of one of our accounts that match criteria. */
+	public static final String SELECT_FOLLOWERS =
+			"SELECT a.id, a.screenname FROM accounts a, %s_accounts aa WHERE aa.theyfollow = 1 AND a.id = aa.id AND (%s)";
+	/** Template for the followers of one of our accounts, tagged with the index of that account. */
+	public static final String SELECT_MEMBERS =
+			"SELECT aa.*, %s AS account FROM %s_accounts aa WHERE aa.theyfollow = 1";
+	/** Template to get the followers of all our accounts that match criteria at once. */
+	public static final String SELECT_ALL_FOLLOWERS =
+			"SELECT a.id, a.screenname, aa.account FROM accounts a, (%s) aa WHERE a.id = aa.id AND (%s)";
+	/** Template to get the followers of all our accounts that match criteria, evaluated once per follower. */
+	public static final String SELECT_DISTINCT_FOLLOWERS =
+			"SELECT a.id, a.screenname, m.accounts FROM accounts a,"
+			+ " (SELECT id, GROUP_CONCAT(account) AS accounts FROM (%s) u GROUP BY id) m"
+			+ " WHERE a.id = m.id AND (%s)";
+	
+	// retweets
+	
+	/** SQL to check if a tweet was already retweeted. */
+	public static final String RETWEETED =
+			"SELECT count(*) FROM retweets WHERE account = ? AND tweetid = ?";
+	/** SQL to store the IDs that were retweeted for an account. */
+	public static final String RETWEET = "INSERT INTO retweets"
+			+ " VALUES (?, ?);";
+	
+	// quotes
+	
+	/** SQL to reset the status of all the quotes. */
+	public static final String RESET_QUOTES = "UPDATE %s_quotes SET status = 0";
+	/** SQL to get the upcoming quotes of an account (combined with UNION ALL). */
+	public static final String UPCOMING_QUOTES = "(SELECT '%1$s' AS account, id, quote, author"
+			+ " FROM %1$s_quotes WHERE status = 0 ORDER BY id LIMIT %2$s)";
+	/** SQL to claim a quote, unless somebody else claimed it first. */
+	public static final String CLAIM_QUOTE = "UPDATE %s_quotes SET status = 1 WHERE id = ? AND status = 0";
+	/** SQL to lock the next available quote, so that it can be claimed. */
+	public static final String NEXT_QUOTE = "SELECT id FROM %s_quotes"
+			+ " WHERE status = 0 ORDER BY id LIMIT 1 FOR UPDATE";
+	/** SQL to get a quote. */
+	public static final String SELECT_QUOTE = "SELECT id, quote, author FROM %s_quotes WHERE id = ?";
+	/** SQL to give back a quote that couldn't be tweeted. */
+	public static final String RELEASE_QUOTE = "UPDATE %s_quotes SET status = 0 WHERE id = ?";
+	
+	/** Prepares the statements. */
+	protected Preparer preparer;
+	/** The prepared statements, by SQL. */
+	protected Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+	
+	/**
+	 * Creates a TwitterDao instance.
+	 *
+	 * @param preparer prepares statements on the database connection
+	 */
+	public TwitterDao(Preparer preparer) {
+		this.preparer = preparer;
+	}
+	
+	/**
+	 * Gets a prepared statement, preparing it the first time it is used.
+	 * If the layout of the relationships asks for it, the screen name of
+	 * our account is bound to its parameter.
+	 *
+	 * @param statement one of the statements of this class, or a statement
+	 * without arguments that is used as is
+	 * @param args the arguments of the template, usually the screen name of one of our accounts
+	 * @return the prepared statement
+	 * @throws SQLException the SQL exception
+	 */
+	public PreparedStatement prepare(String statement, Object... args) throws SQLException {
+		String sql = args.length == 0 ? statement : Relationships.format(statement, args);
+		PreparedStatement ps = statements.get(sql);
+		if (ps == null) {
+			ps = preparer.prepare(sql);
+			statements.put(sql, ps);
+		}
+		int account = Relationships.getAccountParameter(statement);
+		if (account > 0 && args.length > 0)
+			ps.setString(account, String.valueOf(args[0]));
+		return ps;
+	}
+	
+	/**
+	 * Executes a statement that is used only once, such as a query
+	 * that combines the statements of several accounts.
+	 *
+	 * @param sql the SQL statement
+	 * @param parameters the values of the bind parameters, if any
+	 * @return the result set of a query, or null for other statements
+	 * @throws SQLException the SQL exception
+	 * @see Relationships#getParameters(String, Object...)
+	 */
+	public ResultSet execute(String sql, Object... parameters) throws SQLException {
+		PreparedStatement ps = preparer.prepare(sql);
+		bind(ps, parameters);
+		if (ps.execute()) {
+			ps.closeOnCompletion();
+			return ps.getResultSet();
+		}
+		ps.close();
+		return null;
+	}
+	
+	/**
+	 * Executes a query that is used only once, and streams its result set
+	 * instead of loading it in memory. On MySQL, no other statement can be
+	 * executed on the connection until the result set is read or closed.
+	 *
+	 * @param sql the SQL query
+	 * @param parameters the values of the bind parameters, if any
+	 * @return the result set; the statement is closed with it
+	 * @throws SQLException the SQL exception
+	 * @see Relationships#getParameters(String, Object...)
+	 */
+	public ResultSet stream(String sql, Object... parameters) throws SQLException {
+		PreparedStatement ps = preparer.prepare(sql);
+		bind(ps, parameters);
+		ps.setFetchSize(preparer instanceof EmbeddedDatabase ? FETCH_SIZE : STREAMING);
+		ps.closeOnCompletion();
+		return ps.executeQuery();
+	}
+	
+	/**
+	 * Closes all the prepared statements, and the database.
+	 */
+	public void close() {
+		for (PreparedStatement ps : statements.values()) {
+			try {
+				ps.close();
+			}
+			catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+		statements.clear();
+		preparer.close();
+	}
+	
+	// helpers
+	
+	/**
+	 * Sets the bind parameters of a statement.
+	 *
+	 * @param ps the prepared statement
+	 * @param parameters the values of the parameters
+	 * @throws SQLException the SQL exception
+	 */
+	protected static void bind(PreparedStatement ps, Object... parameters) throws SQLException {
+		for (int i = 0; i < parameters.length; i++) {
+			ps.setObject(i + 1, parameters[i]);
+		}
+	}
+	
+	/**
+	 * Gets the values of the first column of a query.
+	 *
+	 * @param ps a prepared query with all its parameters set
+	 * @return an array of ids
+	 * @throws SQLException the SQL exception
+	 */
+	protected static long[] getIds(PreparedStatement ps) throws SQLException {
+		ResultSet rs = ps.executeQuery();
+		long[] ids = new long[64];
+		int size = 0;
+		while (rs.next()) {
+			if (size == ids.length)
+				ids = Arrays.copyOf(ids, size * 2);
+			ids[size++] = rs.getLong(1);
+		}
+		rs.close();
+		return Arrays.copyOf(ids, size);
+	}
+	
+	/**
+	 * Gets a single number from a query.
+	 *
+	 * @param ps a prepared query with all its parameters set
+	 * @return the number, or 0 if there is no result
+	 * @throws SQLException the SQL exception
+	 */
+	protected static int getInt(PreparedStatement ps) throws SQLException {
+		ResultSet rs = ps.executeQuery();
+		try {
+			return rs.next() ? rs.getInt(1) : 0;
+		}
+		finally {
+			rs.close();
+		}
+	}
+	
+	/**
+	 * Executes a statement that takes a single id, for a series of ids.
+	 *
+	 * @param ps the prepared statement
+	 * @param ids the ids
+	 * @return the number of updated rows
+	 * @throws SQLException the SQL exception
+	 */
+	protected static int executeBatch(PreparedStatement ps, long[] ids) throws SQLException {
+		int updated = 0;
+		for (int i = 0; i < ids.length; i++) {
+			ps.setLong(1, ids[i]);
+			ps.addBatch();
+			if ((i + 1) % BATCH == 0 || i == ids.length - 1) {
+				for (int count : ps.executeBatch()) {
+					if (count > 0) updated += count;
+				}
+			}
+		}
+		return updated;
+	}
+	
+	/**
+	 * Executes a statement that takes a single id.
+	 *
+	 * @param ps the prepared statement
+	 * @param id the id
+	 * @return the number of updated rows
+	 * @throws SQLException the SQL exception
+	 */
+	protected static int executeUpdate(PreparedStatement ps, long id) throws SQLException {
+		ps.setLong(1, id);
+		return ps.executeUpdate();
+	}
+	
+	// accounts
+	
+	/**
+	 * Gets the ids of all the accounts.
+	 *
+	 * @return a result set with the ids
+	 * @throws SQLException the SQL exception
+	 */
+	public ResultSet getAccounts() throws SQLException {
+		return prepare(GET_ACCOUNTS).executeQuery();
+	}
+	
+	/**
+	 * Checks if an account with a specific id exists.
+	 *
+	 * @param id a Twitter id
+	 * @return true if an account with that id exists
+	 * @throws SQLException the SQL exception
+	 */
+	public boolean exists(long id) throws SQLException {
+		PreparedStatement ps = prepare(ACCOUNT_EXISTS);
+		ps.setLong(1, id);
+		return getInt(ps) == 1;
+	}
+	
+	/**
+	 * Checks if an account is banned.
+	 *
+	 * @param id a Twitter id
+	 * @return true if an account with that id is banned
+	 * @throws SQLException the SQL exception
+	 */
+	public boolean isBanned(long id) throws SQLException {
+		PreparedStatement ps = prepare(ACCOUNT_BANNED);
+		ps.setLong(1, id);
+		return getInt(ps) == 1;
+	}
+	
+	/**
+	 * Inserts a new account.
+	 *
+	 * @param id a Twitter id
+	 * @param screenname the screen name
+	 * @param name the name
+	 * @param location the location
+	 * @param lang the language
+	 * @param description the description
+	 * @param url the URL
+	 * @param followers the number of followers
+	 * @param following the number of accounts the account follows
+	 * @param statuses the number of statuses
+	 * @param favorites the number of favorites
+	 * @param isProtected true if the account is protected
+	 * @throws SQLException the SQL exception
+	 */
+	public void insertAccount(long id, String screenname, String name, String location, String lang,
+			String description, String url, int followers, int following, int statuses, int favorites,
+			boolean isProtected) throws SQLException {
+		PreparedStatement ps = prepare(CREATE_ACCOUNT);
+		ps.setLong(1, id);
+		ps.setString(2, screenname);
+		ps.setString(3, name);
+		ps.setString(4, location);
+		ps.setString(5, lang);
+		ps.setString(6, description);
+		ps.setString(7, url);
+		ps.setInt(8, followers);
+		ps.setInt(9, following);
+		ps.setInt(10, statuses);
+		ps.setInt(11, favorites);
+		ps.setString(12, isProtected ? "Y" : "N");
+		ps.executeUpdate();
+	}
+	
+	/**
+	 * Updates an account, unless it is banned.
+	 *
+	 * @param id a Twitter id
+	 * @param screenname the screen name
+	 * @param name the name
+	 * @param location the location
+	 * @param lang the language
+	 * @param description the description
+	 * @param url the URL
+	 * @param followers the number of followers
+	 * @param following the number of accounts the account follows
+	 * @param statuses the number of statuses
+	 * @param favorites the number of favorites
+	 * @param isProtected true if the account is protected
+	 * @return the number of updated rows
+	 * @throws SQLException the SQL exception
+	 */
+	public int updateAccount(long id, String screenname, String name, String location, String lang,
+			String description, String url, int followers, int following, int statuses, int favorites,
+			boolean isProtected) throws SQLException {
+		PreparedStatement ps = prepare(UPDATE_ACCOUNT);
+		ps.setString(1, screenname);
+		ps.setString(2, name);
+		ps.setString(3, location);
+		ps.setString(4, lang);
+		ps.setString(5, description);
+		ps.setString(6, url);
+		ps.setInt(7, followers);
+		ps.setInt(8, following);
+		ps.setInt(9, statuses);
+		ps.setInt(10, favorites);
+		ps.setString(11, isProtected ? "Y" : "N");
+		ps.setLong(12, id);
+		return ps.executeUpdate();
+	}
+	
+	/**
+	 * Bans an account.
+	 *
+	 * @param id a Twitter id
+	 * @throws SQLException the SQL exception
+	 */
+	public void ban(long id) throws SQLException {
+		executeUpdate(prepare(BAN), id);
+	}
+	
+	/**
+	 * Bans a series of accounts.
+	 *
+	 * @param ids Twitter ids
+	 * @throws SQLException the SQL exception
+	 */
+	public void ban(long[] ids) throws SQLException {
+		executeBatch(prepare(BAN), ids);
+	}
+	
+	/**
+	 * Marks a series of accounts as protected.
+	 *
+	 * @param ids Twitter ids
+	 * @throws SQLException the SQL exception
+	 */
+	public void setProtected(long[] ids) throws SQLException {
+		executeBatch(prepare(SET_PROTECTED), ids);
+	}
+	
+	// relationships
+	
+	/**
+	 * Checks if an account is linked to one of our accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param id a Twitter id
+	 * @return true if the account is linked
+	 * @throws SQLException the SQL exception
+	 */
+	public boolean isLinked(String account, long id) throws SQLException {
+		PreparedStatement ps = prepare(ACCOUNT_LINKED, account);
+		ps.setLong(1, id);
+		return getInt(ps) == 1;
+	}
+	
+	/**
+	 * Links an account to one of our accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param id a Twitter id
+	 * @throws SQLException the SQL exception
+	 */
+	public void link(String account, long id) throws SQLException {
+		executeUpdate(prepare(LINK_ACCOUNT, account), id);
+	}
+	
+	/**
+	 * Links a series of accounts to one of our accounts; the accounts
+	 * that are already linked are skipped by the database.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param ids Twitter ids
+	 * @return the number of accounts that were linked
+	 * @throws SQLException the SQL exception
+	 */
+	public int link(String account, long[] ids) throws SQLException {
+		return executeBatch(prepare(LINK_ACCOUNT, account), ids);
+	}
+	
+	/**
+	 * Checks if one of our accounts follows an account.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param id a Twitter id
+	 * @return true if we follow the account
+	 * @throws SQLException the SQL exception
+	 */
+	public boolean doWeFollow(String account, long id) throws SQLException {
+		PreparedStatement ps = prepare(ACCOUNT_DO_WE_FOLLOW, account);
+		ps.setLong(1, id);
+		return getInt(ps) == 1;
+	}
+	
+	/**
+	 * Sets the wefollow flag of an account.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param id a Twitter id
+	 * @throws SQLException the SQL exception
+	 */
+	public void setWeFollow(String account, long id) throws SQLException {
+		executeUpdate(prepare(SET_WE_FOLLOW, account), id);
+	}
+	
+	/**
+	 * Sets the wefollow flag of a series of accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param ids Twitter ids
+	 * @throws SQLException the SQL exception
+	 */
+	public void setWeFollow(String account, long[] ids) throws SQLException {
+		executeBatch(prepare(SET_WE_FOLLOW, account), ids);
+	}
+	
+	/**
+	 * Resets the wefollow flag of an account.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param id a Twitter id
+	 * @throws SQLException the SQL exception
+	 */
+	public void unsetWeFollow(String account, long id) throws SQLException {
+		executeUpdate(prepare(UNSET_WE_FOLLOW, account), id);
+	}
+	
+	/**
+	 * Resets the wefollow flag of a series of accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param ids Twitter ids
+	 * @throws SQLException the SQL exception
+	 */
+	public void unsetWeFollow(String account, long[] ids) throws SQLException {
+		executeBatch(prepare(UNSET_WE_FOLLOW, account), ids);
+	}
+	
+	/**
+	 * Registers that we requested to follow a series of accounts,
+	 * so that they aren't selected to follow back again.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param ids Twitter ids
+	 * @throws SQLException the SQL exception
+	 */
+	public void setRequested(String account, long[] ids) throws SQLException {
+		executeBatch(prepare(SET_REQUESTED, account), ids);
+	}
+	
+	/**
+	 * Sets the theyfollow flag of an account.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param id a Twitter id
+	 * @throws SQLException the SQL exception
+	 */
+	public void setTheyFollow(String account, long id) throws SQLException {
+		executeUpdate(prepare(SET_THEY_FOLLOW, account), id);
+	}
+	
+	/**
+	 * Sets the theyfollow flag of a series of accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param ids Twitter ids
+	 * @throws SQLException the SQL exception
+	 */
+	public void setTheyFollow(String account, long[] ids) throws SQLException {
+		executeBatch(prepare(SET_THEY_FOLLOW, account), ids);
+	}
+	
+	/**
+	 * Resets the theyfollow flag of an account.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param id a Twitter id
+	 * @throws SQLException the SQL exception
+	 */
+	public void unsetTheyFollow(String account, long id) throws SQLException {
+		executeUpdate(prepare(UNSET_THEY_FOLLOW, account), id);
+	}
+	
+	/**
+	 * Resets the theyfollow flag of a series of accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param ids Twitter ids
+	 * @throws SQLException the SQL exception
+	 */
+	public void unsetTheyFollow(String account, long[] ids) throws SQLException {
+		executeBatch(prepare(UNSET_THEY_FOLLOW, account), ids);
+	}
+	
+	/**
+	 * Sets the date we started following the accounts we follow.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @throws SQLException the SQL exception
+	 */
+	public void setWeFollowedOn(String account) throws SQLException {
+		prepare(WE_FOLLOWED_ON, account).executeUpdate();
+	}
+	
+	/**
+	 * Resets the wefollow flag of all accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @throws SQLException the SQL exception
+	 */
+	public void resetWeFollow(String account) throws SQLException {
+		prepare(RESET_WE_FOLLOW, account).executeUpdate();
+	}
+	
+	/**
+	 * Sets the start date of the accounts we started following.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @throws SQLException the SQL exception
+	 */
+	public void setStartFollow(String account) throws SQLException {
+		prepare(SET_STARTFOLLOW, account).executeUpdate();
+	}
+	
+	/**
+	 * Sets the date the accounts that follow us started following us.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @throws SQLException the SQL exception
+	 */
+	public void setTheyFollowedOn(String account) throws SQLException {
+		prepare(THEY_FOLLOWED_ON, account).executeUpdate();
+	}
+	
+	/**
+	 * Resets the theyfollow flag of all accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @throws SQLException the SQL exception
+	 */
+	public void resetTheyFollow(String account) throws SQLException {
+		prepare(RESET_THEY_FOLLOW, account).executeUpdate();
+	}
+	
+	/**
+	 * Gets the accounts whose friends we want to follow.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @return an array of ids
+	 * @throws SQLException the SQL exception
+	 */
+	public long[] getFriendsToFollow(String account) throws SQLException {
+		return getIds(prepare(SELECT_FRIENDS_TO_FOLLOW, account));
+	}
+	
+	/**
+	 * Gets the accounts whose followers we want to follow.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @return an array of ids
+	 * @throws SQLException the SQL exception
+	 */
+	public long[] getFollowersToFollow(String account) throws SQLException {
+		return getIds(prepare(SELECT_FOLLOWERS_TO_FOLLOW, account));
+	}
+	
+	/**
+	 * Gets the accounts that follow us, but that we don't follow back yet.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @return the screen names by id
+	 * @throws SQLException the SQL exception
+	 */
+	public Map<Long, String> getFollowBack(String account) throws SQLException {
+		Map<Long, String> accounts = new LinkedHashMap<Long, String>();
+		ResultSet rs = prepare(FOLLOW_BACK, account).executeQuery();
+		while (rs.next()) {
+			accounts.put(rs.getLong("id"), rs.getString("screenname"));
+		}
+		rs.close();
+		return accounts;
+	}
+	
+	/**
+	 * Gets the banned accounts we follow.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @return an array of ids
+	 * @throws SQLException the SQL exception
+	 */
+	public long[] getBannedFriends(String account) throws SQLException {
+		return getIds(prepare(SELECT_BANNED, account));
+	}
+	
+	/**
+	 * Gets the accounts that didn't follow us back in time.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param days the number of days we wait for an account to follow back
+	 * @return an array of ids
+	 * @throws SQLException the SQL exception
+	 */
+	public long[] getUnfollow(String account, int days) throws SQLException {
+		PreparedStatement ps = prepare(SELECT_UNFOLLOW, account);
+		ps.setInt(1, days);
+		return getIds(ps);
+	}
+	
+	/**
+	 * Gets the accounts we follow.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @return an array of ids
+	 * @throws SQLException the SQL exception
+	 */
+	public long[] getWeFollow(String account) throws SQLException {
+		return getIds(prepare(SELECT_WE_FOLLOW, account));
+	}
+	
+	/**
+	 * Counts the accounts we follow.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @return the number of accounts with the wefollow flag
+	 * @throws SQLException the SQL exception
+	 */
+	public int countWeFollow(String account) throws SQLException {
+		return getInt(prepare(COUNT_WE_FOLLOW, account));
+	}
+	
+	/**
+	 * Counts the accounts that follow us.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @return the number of accounts with the theyfollow flag
+	 * @throws SQLException the SQL exception
+	 */
+	public int countTheyFollow(String account) throws SQLException {
+		return getInt(prepare(COUNT_THEY_FOLLOW, account));
+	}
+	
+	/**
+	 * Gets the accounts that follow us.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @return an array of ids
+	 * @throws SQLException the SQL exception
+	 */
+	public long[] getFollowerIds(String account) throws SQLException {
+		return getIds(prepare(SELECT_FOLLOWER_IDS, account));
+	}
+	
+	/**
+	 * Gets the accounts that were selected for retweets.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @return an array of ids
+	 * @throws SQLException the SQL exception
+	 */
+	public long[] getRetweetAccounts(String account) throws SQLException {
+		return getIds(prepare(RETWEET_ACCOUNTS, account));
+	}
+	
+	/**
+	 * Gets the harvest info of one of our accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @return a result set with id, screen name and the three harvest flags
+	 * @throws SQLException the SQL exception
+	 */
+	public ResultSet getHarvest(String account) throws SQLException {
+		return prepare(SELECT_HARVEST, account).executeQuery();
+	}
+	
+	/**
+	 * Updates the harvest info of an account.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param id a Twitter id
+	 * @param followFriends the followfriends flag
+	 * @param followFollowers the followfollowers flag
+	 * @param retweet the retweet flag
+	 * @return the number of updated rows
+	 * @throws SQLException the SQL exception
+	 */
+	public int updateHarvest(String account, long id, int followFriends, int followFollowers, int retweet) throws SQLException {
+		PreparedStatement ps = prepare(UPDATE_HARVEST, account);
+		ps.setInt(1, followFriends);
+		ps.setInt(2, followFollowers);
+		ps.setInt(3, retweet);
+		ps.setLong(4, id);
+		return ps.executeUpdate();
+	}
+	
+	/**
+	 * Inserts the harvest info of an account.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param id a Twitter id
+	 * @param followFriends the followfriends flag
+	 * @param followFollowers the followfollowers flag
+	 * @param retweet the retweet flag
+	 * @throws SQLException the SQL exception
+	 */
+	public void insertHarvest(String account, long id, int followFriends, int followFollowers, int retweet) throws SQLException {
+		PreparedStatement ps = prepare(INSERT_HARVEST, account);
+		ps.setLong(1, id);
+		ps.setInt(2, followFriends);
+		ps.setInt(3, followFollowers);
+		ps.setInt(4, retweet);
+		ps.executeUpdate();
+	}
+	
+	/**
+	 * Updates the harvest info of a series of accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param ids Twitter ids
+	 * @param followFriends the followfriends flag of every id
+	 * @param followFollowers the followfollowers flag of every id
+	 * @param retweet the retweet flag of every id
+	 * @return the number of updated rows for every id; a negative number
+	 * if the driver doesn't know the count
+	 * @throws SQLException the SQL exception
+	 */
+	public int[] updateHarvest(String account, long[] ids, int[] followFriends, int[] followFollowers, int[] retweet) throws SQLException {
+		PreparedStatement ps = prepare(UPDATE_HARVEST, account);
+		int[] counts = new int[ids.length];
+		int done = 0;
+		for (int i = 0; i < ids.length; i++) {
+			ps.setInt(1, followFriends[i]);
+			ps.setInt(2, followFollowers[i]);
+			ps.setInt(3, retweet[i]);
+			ps.setLong(4, ids[i]);
+			ps.addBatch();
+			if ((i + 1) % BATCH == 0 || i == ids.length - 1) {
+				for (int count : ps.executeBatch()) {
+					counts[done++] = count;
+				}
+			}
+		}
+		return counts;
+	}
+	
+	/**
+	 * Inserts the harvest info of a series of accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param ids Twitter ids
+	 * @param followFriends the followfriends flag of every id
+	 * @param followFollowers the followfollowers flag of every id
+	 * @param retweet the retweet flag of every id
+	 * @throws SQLException the SQL exception
+	 */
+	public void insertHarvest(String account, long[] ids, int[] followFriends, int[] followFollowers, int[] retweet) throws SQLException {
+		PreparedStatement ps = prepare(INSERT_HARVEST, account);
+		for (int i = 0; i < ids.length; i++) {
+			ps.setLong(1, ids[i]);
+			ps.setInt(2, followFriends[i]);
+			ps.setInt(3, followFollowers[i]);
+			ps.setInt(4, retweet[i]);
+			ps.addBatch();
+			if ((i + 1) % BATCH == 0 || i == ids.length - 1)
+				ps.executeBatch();
+		}
+	}
+	
+	/**
+	 * Gets the followers of one of our accounts that match criteria.
+	 * The criteria are part of the SQL, so the statement isn't kept.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param where the criteria
+	 * @return a result set with id and screen name
+	 * @throws SQLException the SQL exception
+	 */
+	public ResultSet getFollowers(String account, String where) throws SQLException {
+		return execute(Relationships.format(SELECT_FOLLOWERS, account, where),
+			Relationships.getParameters(SELECT_FOLLOWERS, account));
+	}
+	
+	// retweets
+	
+	/**
+	 * Checks if a tweet was already retweeted by one of our accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param id the ID of the tweet
+	 * @return true if the tweet was already retweeted
+	 * @throws SQLException the SQL exception
+	 */
+	public boolean isRetweeted(String account, long id) throws SQLException {
+		PreparedStatement ps = prepare(RETWEETED);
+		ps.setString(1, account);
+		ps.setLong(2, id);
+		return getInt(ps) == 1;
+	}
+	
+	/**
+	 * Stores a tweet that was retweeted by one of our accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param id the ID of the tweet
+	 * @throws SQLException the SQL exception
+	 */
+	public void addRetweet(String account, long id) throws SQLException {
+		PreparedStatement ps = prepare(RETWEET);
+		ps.setString(1, account);
+		ps.setLong(2, id);
+		ps.executeUpdate();
+	}
+	
+	/**
+	 * Stores a series of tweets that were retweeted by one of our accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param ids the IDs of the tweets
+	 * @throws SQLException the SQL exception
+	 */
+	public void addRetweets(String account, long[] ids) throws SQLException {
+		PreparedStatement ps = prepare(RETWEET);
+		for (int i = 0; i < ids.length; i++) {
+			ps.setString(1, account);
+			ps.setLong(2, ids[i]);
+			ps.addBatch();
+			if ((i + 1) % BATCH == 0 || i == ids.length - 1)
+				ps.executeBatch();
+		}
+	}
+	
+	// quotes
+	
+	/**
+	 * Resets the status of all the quotes of one of our accounts.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @throws SQLException the SQL exception
+	 */
+	public void resetQuotes(String account) throws SQLException {
+		prepare(RESET_QUOTES, account).executeUpdate();
+	}
+	
+	/**
+	 * Claims a quote, unless somebody else claimed it first.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param id the id of the quote
+	 * @return true if the quote was claimed
+	 * @throws SQLException the SQL exception
+	 */
+	public boolean claimQuote(String account, int id) throws SQLException {
+		return executeUpdate(prepare(CLAIM_QUOTE, account), id) > 0;
+	}
+	
+	/**
+	 * Claims the next available quote of one of our accounts. The quote
+	 * is locked with SELECT ... FOR UPDATE and claimed in the same
+	 * transaction, so that no other run can claim it in between.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @return the id of the claimed quote, or 0 if no quote was available
+	 * @throws SQLException the SQL exception
+	 */
+	public int claimNextQuote(String account) throws SQLException {
+		PreparedStatement next = prepare(NEXT_QUOTE, account);
+		Connection connection = next.getConnection();
+		boolean autoCommit = connection.getAutoCommit();
+		connection.setAutoCommit(false);
+		try {
+			int id = getInt(next);
+			if (id > 0 && !claimQuote(account, id))
+				id = 0;
+			connection.commit();
+			return id;
+		}
+		catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		}
+		finally {
+			connection.setAutoCommit(autoCommit);
+		}
+	}
+	
+	/**
+	 * Gets a quote.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param id the id of the quote
+	 * @return a result set with the id, quote and author of the quote
+	 * @throws SQLException the SQL exception
+	 */
+	public ResultSet getQuote(String account, int id) throws SQLException {
+		PreparedStatement ps = prepare(SELECT_QUOTE, account);
+		ps.setInt(1, id);
+		return ps.executeQuery();
+	}
+	
+	/**
+	 * Gives back a quote that couldn't be tweeted.
+	 *
+	 * @param account the screen name of one of our accounts
+	 * @param id the id of the quote
+	 * @throws SQLException the SQL exception
+	 */
+	public void releaseQuote(String account, int id) throws SQLException {
+		executeUpdate(prepare(RELEASE_QUOTE, account), id);
+	}
+}
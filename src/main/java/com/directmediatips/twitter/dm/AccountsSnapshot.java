@@ -0,0 +1,277 @@
+package com.directmediatips.twitter.dm;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.directmediatips.twitter.data.TwitterDao;
+
+/**
+ * An in-memory, column-oriented copy of the <code>accounts</code> table.
+ * Counts are stored in primitive arrays, and string columns with few
+ * distinct values are dictionary encoded. Rows are sorted by id, so that
+ * the followers of our accounts can be stored as bitsets over the rows.
+ */
+public class AccountsSnapshot {
+
+	/** SQL to load the accounts table. */
+	public static final String LOAD = "SELECT id, screenname, followers, following,"
+			+ " statuses, favorites, banned, lang, location, protected"
+			+ " FROM accounts ORDER BY id";
+	/** SQL to get the followers of one of our accounts. */
+	public static final String MEMBERS = TwitterDao.SELECT_FOLLOWER_IDS;
+	
+	/** The names of the numeric columns. */
+	public static final String[] NUMBERS =
+		{ "followers", "following", "statuses", "favorites", "banned" };
+	/** The names of the dictionary encoded columns. */
+	public static final String[] STRINGS =
+		{ "lang", "location", "protected" };
+	
+	/**
+	 * A dictionary encoded string column.
+	 */
+	public static class Dictionary {
+		/** The distinct values. */
+		public final List<String> values = new ArrayList<String>();
+		/** The codes of the distinct values. */
+		protected final Map<String, Integer> codes = new HashMap<String, Integer>();
+		/** The code for every row. */
+		public int[] rows;
+		
+		/**
+		 * Gets the code for a value, adding the value if it's new.
+		 *
+		 * @param value a value
+		 * @return the code of the value
+		 */
+		protected int encode(String value) {
+			if (value == null) return -1;
+			Integer code = codes.get(value);
+			if (code == null) {
+				code = values.size();
+				values.add(value);
+				codes.put(value, code);
+			}
+			return code;
+		}
+	}
+	
+	/** The number of rows. */
+	protected int size = 0;
+	/** The account ids, in ascending order. */
+	protected long[] ids = new long[1024];
+	/** The screen names. */
+	protected String[] screennames = new String[1024];
+	/** The numeric columns, in the order of {@link #NUMBERS}. */
+	protected int[][] numbers = new int[NUMBERS.length][1024];
+	/** The rows for which the numeric columns are NULL, in the order of {@link #NUMBERS}. */
+	protected BitSet[] nulls = new BitSet[NUMBERS.length];
+	/** The dictionary encoded columns, in the order of {@link #STRINGS}. */
+	protected Dictionary[] strings = new Dictionary[STRINGS.length];
+	
+	/**
+	 * Loads the accounts table into memory.
+	 *
+	 * @param rs the result of the {@link #LOAD} query
+	 * @throws SQLException the SQL exception
+	 */
+	public AccountsSnapshot(ResultSet rs) throws SQLException {
+		for (int i = 0; i < nulls.length; i++) {
+			nulls[i] = new BitSet();
+		}
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = new Dictionary();
+			strings[i].rows = new int[1024];
+		}
+		while (rs.next()) {
+			if (size == ids.length) grow();
+			ids[size] = rs.getLong(1);
+			screennames[size] = rs.getString(2);
+			for (int i = 0; i < numbers.length; i++) {
+				numbers[i][size] = rs.getInt(3 + i);
+				if (rs.wasNull()) nulls[i].set(size);
+			}
+			for (int i = 0; i < strings.length; i++) {
+				strings[i].rows[size] = strings[i].encode(rs.getString(3 + numbers.length + i));
+			}
+			size++;
+		}
+		rs.close();
+	}
+	
+	/**
+	 * Doubles the capacity of all the columns.
+	 */
+	protected void grow() {
+		int capacity = ids.length * 2;
+		ids = Arrays.copyOf(ids, capacity);
+		screennames = Arrays.copyOf(screennames, capacity);
+		for (int i = 0; i < numbers.length; i++) {
+			numbers[i] = Arrays.copyOf(numbers[i], capacity);
+		}
+		for (int i = 0; i < strings.length; i++) {
+			strings[i].rows = Arrays.copyOf(strings[i].rows, capacity);
+		}
+	}
+	
+	/**
+	 * Gets the number of accounts in the snapshot.
+	 *
+	 * @return the number of rows
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Gets the id of an account.
+	 *
+	 * @param row a row number
+	 * @return the id of the account in that row
+	 */
+	public long getId(int row) {
+		return ids[row];
+	}
+	
+	/**
+	 * Gets the screen name of an account.
+	 *
+	 * @param row a row number
+	 * @return the screen name of the account in that row
+	 */
+	public String getScreenName(int row) {
+		return screennames[row];
+	}
+	
+	/**
+	 * Gets a numeric column.
+	 *
+	 * @param name the name of a column
+	 * @return the values of that column, or null if the column isn't available
+	 */
+	public int[] getNumbers(String name) {
+		for (int i = 0; i < NUMBERS.length; i++) {
+			if (NUMBERS[i].equalsIgnoreCase(name)) return numbers[i];
+		}
+		return null;
+	}
+	
+	/**
+	 * Gets the rows for which a numeric column is NULL.
+	 *
+	 * @param name the name of a column
+	 * @return a bitset with a bit for every NULL value, or null if the column isn't available
+	 */
+	public BitSet getNulls(String name) {
+		for (int i = 0; i < NUMBERS.length; i++) {
+			if (NUMBERS[i].equalsIgnoreCase(name)) return nulls[i];
+		}
+		return null;
+	}
+	
+	/**
+	 * Gets a dictionary encoded column.
+	 *
+	 * @param name the name of a column
+	 * @return the dictionary of that column, or null if the column isn't available
+	 */
+	public Dictionary getStrings(String name) {
+		for (int i = 0; i < STRINGS.length; i++) {
+			if (STRINGS[i].equalsIgnoreCase(name)) return strings[i];
+		}
+		return null;
+	}
+	
+	/**
+	 * Gets the row of an account.
+	 *
+	 * @param id an account id
+	 * @return the row of that account, or a negative number if it isn't in the snapshot
+	 */
+	public int getRow(long id) {
+		return Arrays.binarySearch(ids, 0, size, id);
+	}
+	
+	/**
+	 * Gets the followers of one of our accounts as a bitset over the rows.
+	 *
+	 * @param rs the result of the {@link #MEMBERS} query for one of our accounts
+	 * @return a bitset with a bit for every row of a follower
+	 * @throws SQLException the SQL exception
+	 */
+	public BitSet getMembers(ResultSet rs) throws SQLException {
+		BitSet members = new BitSet(size);
+		int row;
+		while (rs.next()) {
+			row = getRow(rs.getLong(1));
+			if (row >= 0) members.set(row);
+		}
+		rs.close();
+		return members;
+	}
+	
+	/**
+	 * Evaluates a predicate for all the rows, using all available cores.
+	 *
+	 * @param predicate the predicate
+	 * @return a bitset with a bit for every row that matches the predicate
+	 * @throws InterruptedException if the selection was interrupted
+	 */
+	public BitSet select(final SnapshotCriteria.Predicate predicate) throws InterruptedException {
+		int cores = Runtime.getRuntime().availableProcessors();
+		int chunk = Math.max(1, (size + cores - 1) / cores);
+		ExecutorService executor = Executors.newFixedThreadPool(cores);
+		List<Future<BitSet>> parts = new ArrayList<Future<BitSet>>();
+		for (int start = 0; start < size; start += chunk) {
+			final int from = start;
+			final int to = Math.min(size, start + chunk);
+			parts.add(executor.submit(new Callable<BitSet>() {
+				public BitSet call() {
+					BitSet part = new BitSet(to);
+					for (int row = from; row < to; row++) {
+						if (predicate.test(AccountsSnapshot.this, row)) part.set(row);
+					}
+					return part;
+				}
+			}));
+		}
+		executor.shutdown();
+		BitSet result = new BitSet(size);
+		try {
+			for (Future<BitSet> part : parts) {
+				result.or(part.get());
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			throw e;
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+		return result;
+	}
+}
@@ -0,0 +1,112 @@
+package com.directmediatips.twitter.dm;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.List;
+
+import com.directmediatips.twitter.dm.DirectMessageMachine.Recipient;
+
+import twitter4j.Twitter;
+
+/**
+ * A dispatch lane for one of our sender accounts. Every lane walks the
+ * shared list of recipients, claims the next recipient its sender account
+ * is allowed to message, and paces itself independently of the other lanes.
+ * A recipient is only claimed while the message is being sent, not while
+ * the lane pauses; recipients claimed by another lane are skipped.
+ */
+public class DirectMessageLane implements Runnable {
+
+	/** The machine that sends the actual messages. */
+	protected DirectMessageMachine machine;
+	/** The message that needs to be sent. */
+	protected String message;
+	/** The index of the sender account of this lane. */
+	protected int sender;
+	/** A list containing a <code>Twitter</code> object for every sender account. */
+	protected List<Twitter> twitter;
+	/** An array keeping track of the messages that have been sent. */
+	protected int[] dms;
+	/** The recipients that are shared by all the lanes. */
+	protected List<Recipient> recipients;
+	
+	/**
+	 * Creates a DirectMessageLane instance.
+	 *
+	 * @param machine the machine that sends the messages
+	 * @param message the message
+	 * @param sender the index of the sender account of this lane
+	 * @param twitter a list containing <code>Twitter</code> objects
+	 * @param dms an array keeping track of the messages that have been sent
+	 * @param recipients the recipients shared by all the lanes
+	 */
+	public DirectMessageLane(DirectMessageMachine machine, String message, int sender,
+			List<Twitter> twitter, int[] dms, List<Recipient> recipients) {
+		this.machine = machine;
+		this.message = message;
+		this.sender = sender;
+		this.twitter = twitter;
+		this.dms = dms;
+		this.recipients = recipients;
+	}
+
+	/**
+	 * Keeps on claiming and messaging recipients until there are no more
+	 * recipients for this sender, until the daily limit is reached,
+	 * or until the lane is interrupted.
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		// everything before the cursor is of no use to this lane anymore
+		int cursor = 0;
+		while (dms[sender] <= DirectMessageMachine.MAX_DMS && !Thread.currentThread().isInterrupted()) {
+			int seen = machine.getReleases();
+			Recipient next = null;
+			boolean waiting = false;
+			for (int i = cursor; i < recipients.size(); i++) {
+				Recipient recipient = recipients.get(i);
+				if (recipient.isSent() || !recipient.canSend(sender) || recipient.hasTried(sender)) {
+					if (i == cursor) cursor++;
+					continue;
+				}
+				if (recipient.claim()) {
+					next = recipient;
+					break;
+				}
+				// another lane is working on this recipient; it may fail, so we'll look again later
+				waiting = true;
+			}
+			if (next == null) {
+				if (!waiting) break;
+				// only recipients claimed by other lanes are left
+				try {
+					machine.awaitRelease(seen);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				continue;
+			}
+			machine.log.debug("Lane %s: trying to send message to %s", sender, next.account.screenname);
+			boolean sent = machine.sendDM(message, next.id, sender, twitter, dms);
+			next.release(sender, sent);
+			machine.released();
+			if (sent)
+				machine.pause(sender);
+		}
+	}
+}
@@ -14,32 +14,166 @@ package com.directmediatips.twitter.dm;
  * limitations under the License.
  */
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.directmediatips.google.sheets.twitter.TwitterRichData;
 import com.directmediatips.google.sheets.twitter.TwitterRichData.Account;
+import com.directmediatips.twitter.AbstractTwitterMachine;
+import com.directmediatips.twitter.MachineLog;
+import com.directmediatips.twitter.PacingController;
+import com.directmediatips.twitter.sim.PacingPolicy;
 
 import twitter4j.Twitter;
 import twitter4j.TwitterException;
-import twitter4j.TwitterFactory;
-import twitter4j.conf.ConfigurationBuilder;
 
 /**
  * Gets account info from Google sheets and sends DMs accordingly.
+ * Every sender account gets its own paced lane, so that recipients are
+ * assigned to whichever eligible sender account is available.
  */
 public class DirectMessageMachine {
 
+	/** We can only send 250 messages a day per sender account. */
+	public static final int MAX_DMS = 250;
+
+	/**
+	 * A recipient of a direct message, shared by the dispatch lanes
+	 * of all our sender accounts.
+	 */
+	public static class Recipient {
+		/** The id of the recipient. */
+		public final long id;
+		/** The account data of the recipient. */
+		public final Account account;
+		/** The index of the sender account that messaged the recipient. */
+		protected volatile int sender = -1;
+		/** The date on which the message was sent. */
+		protected volatile Date sentOn;
+		/** Is true while a lane is trying to send a message. */
+		protected final AtomicBoolean busy = new AtomicBoolean();
+		/** Is true if the row of the recipient changed since the last update of the spreadsheet. */
+		protected volatile boolean dirty;
+		/** The indexes of the sender accounts that tried to send a message. */
+		protected final Set<Integer> tried = Collections.synchronizedSet(new HashSet<Integer>());
+		
+		/**
+		 * Creates a Recipient instance.
+		 *
+		 * @param id the id of the recipient
+		 * @param account the account data of the recipient
+		 */
+		public Recipient(long id, Account account) {
+			this.id = id;
+			this.account = account;
+		}
+		
+		/**
+		 * Checks if a sender account is allowed to message this recipient.
+		 *
+		 * @param from the index of a sender account
+		 * @return true if the sender account can send a message
+		 */
+		public boolean canSend(int from) {
+			return account.accounts.contains(from);
+		}
+		
+		/**
+		 * Checks if a sender account already tried to message this recipient.
+		 *
+		 * @param from the index of a sender account
+		 * @return true if the sender account already tried
+		 */
+		public boolean hasTried(int from) {
+			return tried.contains(from);
+		}
+		
+		/**
+		 * Checks if a message was sent to this recipient.
+		 *
+		 * @return true if a message was sent
+		 */
+		public boolean isSent() {
+			return sentOn != null;
+		}
+		
+		/**
+		 * Restores the state of a recipient that was messaged in a previous run.
+		 *
+		 * @param from the index of the sender account, or -1 if the sender is no longer in use
+		 * @param date the date on which the message was sent
+		 */
+		public void restore(int from, Date date) {
+			sender = from;
+			sentOn = date;
+			// the previous run may have crashed before it updated the spreadsheet
+			dirty = true;
+		}
+		
+		/**
+		 * Claims the recipient for a lane.
+		 *
+		 * @return true if no other lane is working on this recipient
+		 */
+		public boolean claim() {
+			return !isSent() && busy.compareAndSet(false, true);
+		}
+		
+		/**
+		 * Releases the recipient after a lane tried to send a message.
+		 *
+		 * @param from the index of the sender account
+		 * @param sent true if the message was sent
+		 */
+		public void release(int from, boolean sent) {
+			tried.add(from);
+			if (sent) {
+				sender = from;
+				sentOn = new Date();
+			}
+			dirty = true;
+			busy.set(false);
+		}
+	}
+	
+	/** The number of messages after which the spreadsheet is updated. */
+	public static final int FLUSH = 25;
+	
     /**  Randomizer. */
 	protected Random rand = new Random();
 	
+	/** The journal of the messages that are sent. */
+	protected DirectMessageOutbox outbox;
+	/** The screen names of our sender accounts. */
+	protected List<String> senders = new ArrayList<String>();
+	/** The spreadsheet data. */
+	protected TwitterRichData richData;
+	/** The pacing controller of every sender account. */
+	protected List<PacingController> pacers = new ArrayList<PacingController>();
+	/** The pacing of every sender account. */
+	protected List<PacingPolicy> pacings = new ArrayList<PacingPolicy>();
+	/** The log of the machine. */
+	protected MachineLog log = new MachineLog(getClass().getSimpleName());
+	/** The recipients of the current run. */
+	protected List<Recipient> recipients = new ArrayList<Recipient>();
+	/** The number of messages sent since the last update of the spreadsheet. */
+	protected int unflushed = 0;
+	/** The number of times a lane released a recipient. */
+	protected int releases = 0;
+	
 	/**
 	 * Creates an EnrichDataMachine instance.
 	 *
@@ -57,54 +191,149 @@ public class DirectMessageMachine {
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public void go() throws SQLException, IOException {
-		TwitterRichData richData = new TwitterRichData();
+		richData = new TwitterRichData();
 		// gets the message that needs to be sent
 		String message = richData.getDirectMessage();
+		outbox = new DirectMessageOutbox(DirectMessageOutbox.JOURNAL, DirectMessageOutbox.getCampaign(message));
 		// gets our accounts and instantiates a Twitter object for each account
 		List<Object> accounts = richData.getFromAccounts();
 		List<Twitter> twitter = new ArrayList<Twitter>();
 		int count = 0;
+		PacingController pacer;
 		for (Object account : accounts) {
-			twitter.add(getTwitterInstance(account.toString()));
+			Properties properties = AbstractTwitterMachine.loadProperties(account.toString());
+			twitter.add(AbstractTwitterMachine.createTwitter(account.toString(), properties));
+			senders.add(account.toString());
+			pacer = new PacingController(account.toString(), properties);
+			pacers.add(pacer);
+			pacings.add(pacer.get("DM", 45, 45));
 			count++;
 		}
+		// the daily limits survive restarts
 		int dms[] = new int[count];
+		for (int i = 0; i < count; i++) {
+			dms[i] = outbox.getSentToday(senders.get(i));
+		}
 		// Gets accounts that will be sent a message
 		Map<Long, Account> data = richData.getToAccounts();
-		// Constructs a list for the updates
-		List<List<Object>> updated = new ArrayList<List<Object>>();
-		// Loop over the account data
-		List<Object> row;
-		boolean sent = false;
-		Account account;
-		for (Map.Entry<Long, Account> entry : data.entrySet()) {
-			row = new ArrayList<Object>();
-			row.add(entry.getKey().toString());
-			account = entry.getValue();
-			row.add(account.screenname);
-			System.out.println(String.format("Trying to send message to %s", account.screenname));
-			for (int i = 0; i < count; i++) {
-				if (account.accounts.contains(i)) {
-					if (sent || !sendDM(message, entry.getKey(), i, twitter, dms)) {
-						// Not used to send a DM
-						row.add("X");
-					}
-					else {
-						// Used to send a DM
-						row.add(new Date().toString());
-						sent = true;
-					}
-				}
-				else {
-					// Not possible to send a DM
-					row.add(0);
-				}
+		Recipient recipient;
+		DirectMessageOutbox.Entry entry;
+		for (Map.Entry<Long, Account> to : data.entrySet()) {
+			recipient = new Recipient(to.getKey(), to.getValue());
+			// resume from the journal instead of sending the same message twice
+			entry = outbox.get(to.getKey());
+			if (entry != null && entry.isDone()) {
+				recipient.restore(senders.indexOf(entry.sender), entry.date);
 			}
-			sent = false;
-			updated.add(row);
+			recipients.add(recipient);
+		}
+		// Starts one paced lane per sender account
+		ExecutorService lanes = Executors.newFixedThreadPool(Math.max(1, count));
+		for (int i = 0; i < count; i++) {
+			lanes.execute(new DirectMessageLane(this, message, i, twitter, dms, recipients));
+		}
+		lanes.shutdown();
+		try {
+			lanes.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			lanes.shutdownNow();
+		}
+		outbox.close();
+		for (PacingController p : pacers) {
+			p.save();
 		}
 		// Update the data in the spreadsheet
-		richData.update(updated);
+		flush(recipients.size());
+	}
+	
+	/**
+	 * Registers that a message was sent, and updates the spreadsheet
+	 * every {@link #FLUSH} messages.
+	 */
+	protected synchronized void progress() {
+		if (++unflushed < FLUSH) return;
+		try {
+			flush(recipients.size());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Updates the rows of the spreadsheet that changed since the last update.
+	 * The spreadsheet is always updated from the first row, but the rows that
+	 * didn't change are sent as empty rows, which leaves them untouched, and
+	 * nothing is sent after the last row that changed.
+	 *
+	 * @param rows the number of recipients to consider
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected synchronized void flush(int rows) throws IOException {
+		unflushed = 0;
+		int last = 0;
+		for (int i = 0; i < rows; i++) {
+			if (recipients.get(i).dirty) last = i + 1;
+		}
+		if (last == 0) return;
+		List<List<Object>> updated = new ArrayList<List<Object>>();
+		List<Recipient> flushed = new ArrayList<Recipient>();
+		for (int i = 0; i < last; i++) {
+			Recipient recipient = recipients.get(i);
+			if (recipient.dirty) {
+				// cleared before the row is made, so that a concurrent release isn't lost
+				recipient.dirty = false;
+				updated.add(getRow(recipient, senders.size()));
+				flushed.add(recipient);
+			}
+			else {
+				updated.add(new ArrayList<Object>());
+			}
+		}
+		try {
+			richData.update(updated);
+		}
+		catch (IOException e) {
+			for (Recipient recipient : flushed) {
+				recipient.dirty = true;
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Creates the spreadsheet row reflecting what happened to a recipient.
+	 * The cells of sender accounts that didn't try to message the recipient
+	 * yet are left empty (<code>null</code>), so that they stay untouched,
+	 * unless the message was sent.
+	 *
+	 * @param recipient the recipient
+	 * @param count the number of sender accounts
+	 * @return a row for the spreadsheet
+	 */
+	protected List<Object> getRow(Recipient recipient, int count) {
+		List<Object> row = new ArrayList<Object>();
+		row.add(String.valueOf(recipient.id));
+		row.add(recipient.account.screenname);
+		for (int i = 0; i < count; i++) {
+			if (!recipient.canSend(i)) {
+				// Not possible to send a DM
+				row.add(0);
+			}
+			else if (recipient.sender == i) {
+				// Used to send a DM
+				row.add(recipient.sentOn.toString());
+			}
+			else if (recipient.isSent() || recipient.hasTried(i)) {
+				// Not used to send a DM
+				row.add("X");
+			}
+			else {
+				// Not tried yet
+				row.add(null);
+			}
+		}
+		return row;
 	}
 	
 	/**
@@ -117,23 +346,93 @@ public class DirectMessageMachine {
 	 * @param accounts a list containing <code>Twitter</code> objects
 	 * @param count an array keeping track of the messages that have been sent
 	 * @return <code>true</code> if the DM was successfully sent
+	 * @see #pause(int)
 	 */
 	public boolean sendDM(String message, long to, int from, List<Twitter> accounts, int[] count) {
 		// We can only send 250 messages a day
-		if (count[from]++ > 250) return false;
+		if (count[from]++ > MAX_DMS) return false;
+		// Without a journal record, we don't send
+		if (!journal(DirectMessageOutbox.ATTEMPT, from, to)) return false;
+		PacingPolicy pacing = pacings.get(from);
 		// Try to send a DM
 		try {
 			accounts.get(from).sendDirectMessage(to, message);
-			long r = 45000l + rand.nextInt(45000);
-			System.out.println(String.format("Sleep for %s seconds", r / 1000));
-			Thread.sleep(r);
-			return true;
 		} catch (TwitterException e) {
 			e.printStackTrace();
+			PacingController.onRefused(pacing, e);
+			journal(DirectMessageOutbox.FAILED, from, to);
+			return false;
+		}
+		pacing.onSuccess();
+		journal(DirectMessageOutbox.SENT, from, to);
+		progress();
+		return true;
+	}
+	
+	/**
+	 * Pauses a lane after its sender account sent a message,
+	 * as long as the pacing of the sender account asks for.
+	 * If the lane is interrupted, the interrupt flag is restored
+	 * so that the lane can stop.
+	 *
+	 * @param from the index of the sender account
+	 */
+	public void pause(int from) {
+		long r = (long) (1000 * pacings.get(from).pause(rand));
+		log.info("Sleep for %s seconds", r / 1000);
+		try {
+			Thread.sleep(r);
 		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Gets the number of times a lane released a recipient.
+	 *
+	 * @return the number of releases
+	 */
+	public synchronized int getReleases() {
+		return releases;
+	}
+	
+	/**
+	 * Registers that a lane released a recipient, and wakes up
+	 * the lanes that are waiting for a recipient.
+	 */
+	public synchronized void released() {
+		releases++;
+		notifyAll();
+	}
+	
+	/**
+	 * Waits until a lane releases a recipient.
+	 *
+	 * @param seen the number of releases the lane saw before it looked for a recipient
+	 * @throws InterruptedException if the lane is interrupted
+	 */
+	public synchronized void awaitRelease(int seen) throws InterruptedException {
+		while (releases == seen)
+			wait();
+	}
+	
+	/**
+	 * Writes a record to the outbox journal, if there is one.
+	 *
+	 * @param state the state of the message
+	 * @param from the index of the sender account
+	 * @param to the id of the recipient
+	 * @return false if the record couldn't be written
+	 */
+	protected boolean journal(String state, int from, long to) {
+		if (outbox == null) return true;
+		try {
+			outbox.append(state, senders.get(from), to);
+			return true;
+		} catch (IOException e) {
 			e.printStackTrace();
+			return false;
 		}
-		return false;
 	}
 	
 	/**
@@ -144,16 +443,7 @@ public class DirectMessageMachine {
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public Twitter getTwitterInstance(String account) throws IOException {
-		Properties properties = new Properties();
-		properties.load(new FileInputStream(String.format("twitter/%s.properties", account)));
-		ConfigurationBuilder cb = new ConfigurationBuilder();
-		cb.setDebugEnabled("true".equals(properties.getProperty("debug")))
-		  .setOAuthConsumerKey(properties.getProperty("oauth.consumerKey"))
-		  .setOAuthConsumerSecret(properties.getProperty("oauth.consumerSecret"))
-		  .setOAuthAccessToken(properties.getProperty("oauth.accessToken"))
-		  .setOAuthAccessTokenSecret(properties.getProperty("oauth.accessTokenSecret"));
-		TwitterFactory tf = new TwitterFactory(cb.build());
-		return tf.getInstance();
+		return AbstractTwitterMachine.createTwitter(account, AbstractTwitterMachine.loadProperties(account));
 	}
 	
 	/**
@@ -0,0 +1,313 @@
+package com.directmediatips.twitter.dm;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only journal of all the direct messages we tried to send.
+ * Every attempt is written to disk before the message is sent, and its
+ * outcome is written right after, so that a restarted run knows which
+ * recipients were already messaged and how many messages every sender
+ * account has sent today. Every record belongs to a campaign, identified
+ * by a hash of the message, so that the recipients of an earlier message
+ * aren't skipped when a new message is sent; the number of messages of
+ * today counts the records of all the campaigns. When the journal is opened,
+ * it is compacted: only the last record of every recipient of every campaign
+ * is kept, except for the records of today, which are needed to count the
+ * messages of today.
+ */
+public class DirectMessageOutbox {
+	
+	/** The default location of the journal. */
+	public static final String JOURNAL = "twitter/dm-outbox.log";
+	
+	/** State of a message that is about to be sent. */
+	public static final String ATTEMPT = "ATTEMPT";
+	/** State of a message that was sent. */
+	public static final String SENT = "SENT";
+	/** State of a message that couldn't be sent. */
+	public static final String FAILED = "FAILED";
+	
+	/**
+	 * The last known state of a recipient in the journal.
+	 */
+	public static class Entry {
+		/** The date of the record. */
+		public final Date date;
+		/** The state of the message. */
+		public final String state;
+		/** The screen name of the sender account. */
+		public final String sender;
+		
+		/**
+		 * Creates an Entry instance.
+		 *
+		 * @param date the date of the record
+		 * @param state the state of the message
+		 * @param sender the screen name of the sender account
+		 */
+		public Entry(Date date, String state, String sender) {
+			this.date = date;
+			this.state = state;
+			this.sender = sender;
+		}
+		
+		/**
+		 * Checks if the recipient was (or might have been) messaged.
+		 * An attempt without an outcome means that we crashed while sending;
+		 * we'd rather skip such a recipient than send the same message twice.
+		 *
+		 * @return true if the recipient shouldn't be messaged again
+		 */
+		public boolean isDone() {
+			return !FAILED.equals(state);
+		}
+	}
+	
+	/** The format of the dates in the journal. */
+	protected final SimpleDateFormat timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+	/** The format used to compare days. */
+	protected final SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd");
+	
+	/** The stream to which we append the journal records. */
+	protected FileOutputStream out;
+	/** The writer wrapping the stream. */
+	protected Writer writer;
+	/** The campaign of the current run. */
+	protected String campaign;
+	/** The last known state per recipient, per campaign. */
+	protected Map<String, Map<Long, Entry>> campaigns = new HashMap<String, Map<Long, Entry>>();
+	/** The number of messages per sender account for the current day. */
+	protected Map<String, Integer> daily = new HashMap<String, Integer>();
+	/** The day for which we keep the counters. */
+	protected String today;
+	/** The number of records that were replayed. */
+	protected int records;
+	/** The records of today that were replayed, as they were written. */
+	protected List<String> todays = new ArrayList<String>();
+	
+	/**
+	 * Creates a DirectMessageOutbox instance, replaying the existing journal.
+	 *
+	 * @param path the path to the journal
+	 * @param campaign the campaign of the current run, see {@link #getCampaign(String)}
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public DirectMessageOutbox(String path, String campaign) throws IOException {
+		this.campaign = campaign;
+		today = day.format(new Date());
+		File file = new File(path);
+		if (file.exists()) {
+			replay(file);
+			int kept = 0;
+			for (Map<Long, Entry> recipients : campaigns.values())
+				kept += recipients.size();
+			if (records > kept)
+				compact(file);
+		}
+		else if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+		out = new FileOutputStream(file, true);
+		writer = new OutputStreamWriter(out, "UTF-8");
+	}
+	
+	/**
+	 * Gets the campaign of a message.
+	 *
+	 * @param message the message that is sent
+	 * @return a hash of the message
+	 */
+	public static String getCampaign(String message) {
+		return Integer.toHexString(message.hashCode());
+	}
+	
+	/**
+	 * Reads an existing journal.
+	 *
+	 * @param file the journal file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void replay(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] record = line.split("\t");
+				// a crash may have left an incomplete record; records without a campaign are older
+				if (record.length != 4 && record.length != 5) continue;
+				try {
+					Date date = timestamp.parse(record[0]);
+					register(date, record[1], record[2], Long.parseLong(record[3]),
+						record.length == 5 ? record[4] : "");
+					records++;
+					if (today.equals(day.format(date)))
+						todays.add(line);
+				}
+				catch (ParseException e) {
+					continue;
+				}
+				catch (NumberFormatException e) {
+					continue;
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Rewrites the journal with the last record of every recipient of every
+	 * campaign of a previous day, followed by all the records of today.
+	 *
+	 * @param file the journal file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void compact(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		Writer compacted = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+		try {
+			for (Map.Entry<String, Map<Long, Entry>> recipients : campaigns.entrySet()) {
+				for (Map.Entry<Long, Entry> entry : recipients.getValue().entrySet()) {
+					Entry last = entry.getValue();
+					if (today.equals(day.format(last.date))) continue;
+					compacted.write(format(last.date, last.state, last.sender, entry.getKey(), recipients.getKey()));
+				}
+			}
+			for (String line : todays) {
+				compacted.write(line);
+				compacted.write("\n");
+			}
+		}
+		finally {
+			compacted.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		todays.clear();
+	}
+	
+	/**
+	 * Registers a record in memory.
+	 *
+	 * @param date the date of the record
+	 * @param state the state of the message
+	 * @param sender the screen name of the sender account
+	 * @param to the id of the recipient
+	 * @param campaign the campaign of the message
+	 */
+	protected void register(Date date, String state, String sender, long to, String campaign) {
+		Map<Long, Entry> recipients = campaigns.get(campaign);
+		if (recipients == null) {
+			recipients = new HashMap<Long, Entry>();
+			campaigns.put(campaign, recipients);
+		}
+		Entry previous = recipients.put(to, new Entry(date, state, sender));
+		if (!today.equals(day.format(date))) return;
+		// every attempt counts, unless it turns out it failed
+		if (ATTEMPT.equals(state)) {
+			daily.put(sender, getSentToday(sender) + 1);
+		}
+		else if (FAILED.equals(state) && previous != null && ATTEMPT.equals(previous.state)
+				&& today.equals(day.format(previous.date))) {
+			daily.put(sender, getSentToday(sender) - 1);
+		}
+	}
+	
+	/**
+	 * Appends a record to the journal and forces it to disk.
+	 *
+	 * @param state the state of the message
+	 * @param sender the screen name of the sender account
+	 * @param to the id of the recipient
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected synchronized void append(String state, String sender, long to) throws IOException {
+		Date date = new Date();
+		String now = day.format(date);
+		if (!today.equals(now)) {
+			today = now;
+			daily.clear();
+		}
+		writer.write(format(date, state, sender, to, campaign));
+		writer.flush();
+		out.getFD().sync();
+		register(date, state, sender, to, campaign);
+	}
+	
+	/**
+	 * Formats a record of the journal.
+	 *
+	 * @param date the date of the record
+	 * @param state the state of the message
+	 * @param sender the screen name of the sender account
+	 * @param to the id of the recipient
+	 * @param campaign the campaign of the message
+	 * @return a tab-separated line
+	 */
+	protected String format(Date date, String state, String sender, long to, String campaign) {
+		if (campaign.isEmpty())
+			return String.format("%s\t%s\t%s\t%s\n", timestamp.format(date), state, sender, to);
+		return String.format("%s\t%s\t%s\t%s\t%s\n", timestamp.format(date), state, sender, to, campaign);
+	}
+	
+	/**
+	 * Gets the last known state of a recipient in the current campaign.
+	 *
+	 * @param to the id of the recipient
+	 * @return the last entry for the recipient, or null if there is none
+	 */
+	public synchronized Entry get(long to) {
+		Map<Long, Entry> recipients = campaigns.get(campaign);
+		return recipients == null ? null : recipients.get(to);
+	}
+	
+	/**
+	 * Gets the number of messages a sender account sent today.
+	 *
+	 * @param sender the screen name of the sender account
+	 * @return the number of messages that count for today's limit
+	 */
+	public synchronized int getSentToday(String sender) {
+		Integer count = daily.get(sender);
+		return count == null ? 0 : count;
+	}
+	
+	/**
+	 * Closes the journal.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void close() throws IOException {
+		writer.close();
+	}
+}
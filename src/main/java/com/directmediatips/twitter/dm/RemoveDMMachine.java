@@ -16,19 +16,58 @@ package com.directmediatips.twitter.dm;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.directmediatips.twitter.AbstractTwitterMachine;
+import com.directmediatips.twitter.RateAwareTwitter;
 
 import twitter4j.DirectMessage;
+import twitter4j.Paging;
+import twitter4j.RateLimitStatus;
 import twitter4j.ResponseList;
 import twitter4j.TwitterException;
 import twitter4j.api.DirectMessagesResources;
 
 /**
- * Automatically removes all DMs.
+ * Automatically removes all DMs. The machine pages through the complete
+ * history of received and sent DMs, and deletes the messages that match
+ * the filters in the account properties:
+ * <ul>
+ * <li><code>RemoveDMDays</code>: only remove DMs older than this number of days,</li>
+ * <li><code>RemoveDMSender</code>: only remove DMs sent by this screen name,</li>
+ * <li><code>RemoveDMThreads</code>: the number of DMs that are deleted in parallel.</li>
+ * </ul>
+ * The deletions go through {@link RateAwareTwitter}, so they wait for the
+ * next rate window instead of failing. DMs that couldn't be deleted because
+ * of a rate limit or a server error are deleted in a later pass, after all
+ * the pages were read, so that the paging doesn't skip them.
  */
 public class RemoveDMMachine extends AbstractTwitterMachine {
 	
+	/** The number of DMs we ask for in one page. */
+	public static final int PAGE_SIZE = 200;
+	/** The maximum number of passes over the DMs that couldn't be deleted. */
+	public static final int PASSES = 3;
+	
+	/** Only DMs older than this number of milliseconds are removed. */
+	protected long age;
+	/** Only DMs sent by this account are removed (if not null). */
+	protected String sender;
+	
+	/** The number of DMs that were deleted. */
+	protected AtomicInteger deleted = new AtomicInteger();
+	/** The number of DMs that couldn't be deleted. */
+	protected AtomicInteger failed = new AtomicInteger();
+	/** The DMs that need to be deleted in a later pass. */
+	protected List<Long> retry = new ArrayList<Long>();
+	
 	/**
 	 * Creates an UnfriendMachine instance.
 	 *
@@ -38,10 +77,21 @@ public class RemoveDMMachine extends AbstractTwitterMachine {
 	 */
 	public RemoveDMMachine(String account) throws IOException, SQLException {
 		super(account);
+		try {
+			age = 86400000l * Integer.parseInt(properties.getProperty("RemoveDMDays"));
+		}
+		catch (Exception e) {
+			age = 0;
+		}
+		sender = properties.getProperty("RemoveDMSender");
+		String threads = properties.getProperty("RemoveDMThreads");
+		String permits = "async." + RateAwareTwitter.DESTROY_DIRECT_MESSAGE;
+		if (threads != null && properties.getProperty(permits) == null)
+			properties.setProperty(permits, threads);
 	}
 
 	/**
-	 * Starts following accounts.
+	 * Removes all the received and sent DMs that match the filters.
 	 *
 	 * @throws SQLException the SQL exception
 	 * @throws TwitterException the twitter exception
@@ -49,23 +99,104 @@ public class RemoveDMMachine extends AbstractTwitterMachine {
 	 */
 	@Override
 	public void go() throws SQLException, TwitterException {
+		cleanup(false);
+		cleanup(true);
+		for (int pass = 1; pass <= PASSES && !retry.isEmpty(); pass++) {
+			List<Long> ids = new ArrayList<Long>(retry);
+			retry.clear();
+			log.info("Pass %s: removing %s DMs that couldn't be removed before", pass, ids.size());
+			sleepRandom(60, 60);
+			delete(ids);
+		}
+		failed.addAndGet(retry.size());
+		log.info("Removed %s DMs, %s DMs couldn't be removed", deleted.get(), failed.get());
+	}
+	
+	/**
+	 * Pages through received or sent DMs, and removes the ones that match the filters.
+	 *
+	 * @param sent true if we want to remove sent DMs, false for received DMs
+	 * @throws TwitterException the twitter exception
+	 */
+	public void cleanup(boolean sent) throws TwitterException {
 		DirectMessagesResources resources = twitter.directMessages();
-		ResponseList<DirectMessage> list = resources.getDirectMessages();
-		for (DirectMessage dm : list) {
-			System.out.println("From: " + dm.getSenderScreenName());
-			System.out.println("To: "+ dm.getRecipientScreenName());
-			System.out.println(dm.getCreatedAt());
-			System.out.println(dm.getText());
-			System.out.println("-----------------");
+		Paging paging = new Paging(1, PAGE_SIZE);
+		ResponseList<DirectMessage> page;
+		long maxId = Long.MAX_VALUE;
+		int pages = 0;
+		do {
+			page = sent ? resources.getSentDirectMessages(paging) : resources.getDirectMessages(paging);
+			List<Long> ids = new ArrayList<Long>();
+			for (DirectMessage dm : page) {
+				maxId = Math.min(maxId, dm.getId());
+				if (matches(dm))
+					ids.add(dm.getId());
+			}
+			// a page needs to be gone before we ask for the next one
+			delete(ids);
+			log.info("%s page %s: %s messages, %s removed so far",
+				sent ? "Sent" : "Received", ++pages, page.size(), deleted.get());
+			paging = new Paging(1, PAGE_SIZE).maxId(maxId - 1);
+			waitForReset(page.getRateLimitStatus());
+		} while (!page.isEmpty());
+	}
+	
+	/**
+	 * Checks if a DM matches the filters.
+	 *
+	 * @param dm a direct message
+	 * @return true if the DM needs to be removed
+	 */
+	public boolean matches(DirectMessage dm) {
+		if (age > 0 && new Date().getTime() - dm.getCreatedAt().getTime() < age)
+			return false;
+		if (sender != null && !sender.equalsIgnoreCase(dm.getSenderScreenName()))
+			return false;
+		return true;
+	}
+	
+	/**
+	 * Deletes a series of DMs in parallel, and waits until they're gone.
+	 * DMs that couldn't be deleted because of a rate limit or a server error
+	 * are kept for a later pass; other errors concern the DM itself.
+	 *
+	 * @param ids the ids of direct messages
+	 */
+	public void delete(List<Long> ids) {
+		Map<Long, CompletableFuture<DirectMessage>> deletions = new LinkedHashMap<Long, CompletableFuture<DirectMessage>>();
+		for (long id : ids) {
+			deletions.put(id, getAsync().destroyDirectMessage(id));
+		}
+		for (Map.Entry<Long, CompletableFuture<DirectMessage>> deletion : deletions.entrySet()) {
 			try {
-				twitter.destroyDirectMessage(dm.getId());
+				deletion.getValue().join();
+				deleted.incrementAndGet();
 			}
-			catch(TwitterException e) {
-				System.out.println(e.getMessage());
+			catch (CompletionException ce) {
+				TwitterException e = RateAwareTwitter.getTwitterException(ce);
+				if (e != null && (e.exceededRateLimitation() || e.getStatusCode() >= 500)) {
+					retry.add(deletion.getKey());
+				}
+				else {
+					log.warn("DM %s caused exception: %s", deletion.getKey(), ce.getCause().getMessage());
+					failed.incrementAndGet();
+				}
 			}
 		}
 	}
 	
+	/**
+	 * Sleeps until the next rate window if the current one is used up.
+	 *
+	 * @param rls the rate limit status of the latest response
+	 */
+	protected void waitForReset(RateLimitStatus rls) {
+		if (rls != null && rls.getRemaining() == 0) {
+			log.info("Rate Limit Status exceeded");
+			sleepRandom(rls.getSecondsUntilReset(), 20);
+		}
+	}
+	
 	/**
 	 * Starts and runs the Twitter machine.
 	 *
@@ -17,19 +17,43 @@ package com.directmediatips.twitter.dm;
 import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.BitSet;
 import java.util.List;
+import java.util.regex.Pattern;
 
-import com.directmediatips.database.AbstractDatabaseMachine;
 import com.directmediatips.google.sheets.twitter.TwitterRichData;
+import com.directmediatips.twitter.MachineLog;
+import com.directmediatips.twitter.data.EmbeddedDatabase;
+import com.directmediatips.twitter.data.MySqlDatabase;
+import com.directmediatips.twitter.data.Relationships;
+import com.directmediatips.twitter.data.TwitterDao;
 
 /**
  * Loops over different criteria, and matches accounts to those criteria.
  */
-public class SelectDataMachine extends AbstractDatabaseMachine {
+public class SelectDataMachine {
 
 	/** Template for the SQL statement get a list of accounts of interest. */
-	public static final String SELECT =
-			"SELECT a.id, a.screenname FROM accounts a, %s_accounts aa WHERE aa.theyfollow = 1 AND a.id = aa.id AND (%s)";
+	public static final String SELECT = TwitterDao.SELECT_FOLLOWERS;
+	/** Template for the followers of one of our accounts, tagged with the index of that account. */
+	public static final String MEMBERS = TwitterDao.SELECT_MEMBERS;
+	/** Template for the SQL statement that gets the accounts of interest for all our accounts at once. */
+	public static final String SELECT_ALL = TwitterDao.SELECT_ALL_FOLLOWERS;
+	/** Template for the same statement, evaluating the criteria only once per follower. */
+	public static final String SELECT_DISTINCT = TwitterDao.SELECT_DISTINCT_FOLLOWERS;
+	/** Pattern to find a reference to the relationship columns in the criteria, in any case. */
+	protected static final Pattern RELATIONSHIP_COLUMN = Pattern.compile("(?i)\\baa\\.");
+	
+	/** True if we query the database once for every account (the old behavior). */
+	protected boolean perAccount = false;
+	/** True if we evaluate the criteria against an in-memory snapshot of the accounts table. */
+	protected boolean snapshot = false;
+	/** The in-memory snapshot of the accounts table, loaded on first use. */
+	protected AccountsSnapshot accountsSnapshot;
+	/** The data-access object that prepares the statements. */
+	protected TwitterDao dao;
+	/** The log of the machine. */
+	protected MachineLog log = new MachineLog(getClass().getSimpleName());
 	
 	/**
 	 * Creates an SelectDataMachine instance.
@@ -38,7 +62,12 @@ public class SelectDataMachine extends AbstractDatabaseMachine {
 	 * @throws SQLException the SQL exception
 	 */
 	public SelectDataMachine() throws IOException, SQLException {
-		super();
+		if (EmbeddedDatabase.isEmbedded()) {
+			dao = new TwitterDao(new EmbeddedDatabase());
+		}
+		else {
+			dao = new TwitterDao(new MySqlDatabase());
+		}
 	}
 	
 	/**
@@ -46,21 +75,117 @@ public class SelectDataMachine extends AbstractDatabaseMachine {
 	 *
 	 * @throws SQLException the SQL exception
 	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws InterruptedException if the selection was interrupted
 	 */
-	public void go() throws SQLException, IOException {
+	public void go() throws SQLException, IOException, InterruptedException {
 		TwitterRichData richData = new TwitterRichData();
 		String where = richData.getWhereClause();
 		List<Object> accounts = richData.getFromAccounts();
+		if (perAccount)
+			selectPerAccount(richData, where, accounts);
+		else if (!snapshot || !selectFromSnapshot(richData, where, accounts))
+			selectAll(richData, where, accounts);
+		richData.process(accounts.size());
+	}
+	
+	/**
+	 * Matches the criteria against the followers of all our accounts in
+	 * a single query; the results are streamed from the database. The
+	 * followers are grouped first, so that the criteria are evaluated once
+	 * per follower, not once per follower of every account, unless the
+	 * criteria refer to the relationship columns (<code>aa.</code>).
+	 *
+	 * @param richData the object that collects the results
+	 * @param where the criteria
+	 * @param accounts our accounts
+	 * @throws SQLException the SQL exception
+	 */
+	public void selectAll(TwitterRichData richData, String where, List<Object> accounts) throws SQLException {
+		if (accounts.isEmpty()) return;
+		StringBuilder members = new StringBuilder();
+		for (int i = 0; i < accounts.size(); i++) {
+			if (i > 0) members.append(" UNION ALL ");
+			members.append(Relationships.format(MEMBERS, i, accounts.get(i)));
+		}
+		boolean grouped = !RELATIONSHIP_COLUMN.matcher(where).find();
+		ResultSet rs = dao.stream(String.format(grouped ? SELECT_DISTINCT : SELECT_ALL, members, where),
+			Relationships.getParameters(MEMBERS, accounts.toArray()));
+		while (rs.next()) {
+			if (!grouped) {
+				richData.add(rs.getLong(1), rs.getString(2), rs.getInt(3));
+				continue;
+			}
+			for (String account : rs.getString(3).split(",")) {
+				richData.add(rs.getLong(1), rs.getString(2), Integer.parseInt(account.trim()));
+			}
+		}
+		rs.close();
+	}
+	
+	/**
+	 * Matches the criteria against an in-memory snapshot of the accounts
+	 * table. The snapshot is loaded once; the criteria are compiled and
+	 * evaluated on all cores, and the followers of every account are
+	 * combined with the result as bitsets.
+	 *
+	 * @param richData the object that collects the results
+	 * @param where the criteria
+	 * @param accounts our accounts
+	 * @return false if the criteria aren't supported by the snapshot
+	 * @throws SQLException the SQL exception
+	 * @throws InterruptedException if the selection was interrupted
+	 */
+	public boolean selectFromSnapshot(TwitterRichData richData, String where, List<Object> accounts) throws SQLException, InterruptedException {
+		if (accountsSnapshot == null) {
+			accountsSnapshot = new AccountsSnapshot(dao.stream(AccountsSnapshot.LOAD));
+			log.info("Loaded %s accounts", accountsSnapshot.size());
+		}
+		SnapshotCriteria.Predicate predicate;
+		try {
+			predicate = SnapshotCriteria.compile(where, accountsSnapshot);
+		}
+		catch (IllegalArgumentException e) {
+			log.warn("%s; falling back to the database.", e.getMessage());
+			return false;
+		}
+		BitSet selected = accountsSnapshot.select(predicate);
+		BitSet matches;
+		for (int i = 0; i < accounts.size(); i++) {
+			matches = accountsSnapshot.getMembers(dao.stream(Relationships.format(AccountsSnapshot.MEMBERS, accounts.get(i)),
+				Relationships.getParameters(AccountsSnapshot.MEMBERS, accounts.get(i))));
+			matches.and(selected);
+			for (int row = matches.nextSetBit(0); row >= 0; row = matches.nextSetBit(row + 1)) {
+				richData.add(accountsSnapshot.getId(row), accountsSnapshot.getScreenName(row), i);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Matches the criteria against the followers of our accounts, one account at a time.
+	 *
+	 * @param richData the object that collects the results
+	 * @param where the criteria
+	 * @param accounts our accounts
+	 * @throws SQLException the SQL exception
+	 */
+	public void selectPerAccount(TwitterRichData richData, String where, List<Object> accounts) throws SQLException {
 		ResultSet rs;
 		int count = 0;
 		for (Object account : accounts) {
-			rs = connection.execute(String.format(SELECT, account, where));
+			rs = dao.getFollowers(String.valueOf(account), where);
 			while (rs.next()) {
 				richData.add(rs.getLong(1), rs.getString(2), count);	
 			}
 			count++;
 		}
-		richData.process(count);
+	}
+	
+	/**
+	 * Closes the prepared statements and the database connection.
+	 */
+	public void close() {
+		dao.close();
 	}
 	
 	/**
@@ -73,6 +198,8 @@ public class SelectDataMachine extends AbstractDatabaseMachine {
 		SelectDataMachine app = null;
 		try {
 			app = new SelectDataMachine();
+			app.perAccount = args.length > 0 && "perAccount".equals(args[0]);
+			app.snapshot = args.length > 0 && "snapshot".equals(args[0]);
 			app.go();
 		}
 		catch(Exception e) {
@@ -0,0 +1,583 @@
+package com.directmediatips.twitter.dm;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles the criteria of a WHERE clause into a predicate that can be
+ * evaluated against an {@link AccountsSnapshot}. Only a subset of SQL is
+ * supported: comparisons of the numeric columns with numbers, equality,
+ * IN, LIKE and IS NULL on the dictionary encoded columns, combined with
+ * AND, OR, NOT and parentheses. Like in SQL, a comparison with NULL is
+ * neither true nor false, and stays unknown when it's negated. Anything
+ * else results in an {@link IllegalArgumentException}, in which case the
+ * criteria should be sent to the database instead.
+ */
+public class SnapshotCriteria {
+
+	/**
+	 * A compiled criterion.
+	 */
+	public interface Predicate {
+		/**
+		 * Tests a row of a snapshot.
+		 *
+		 * @param snapshot the snapshot
+		 * @param row a row number
+		 * @return true if the row matches
+		 */
+		boolean test(AccountsSnapshot snapshot, int row);
+		
+		/**
+		 * Tests if a criterion is false for a row of a snapshot;
+		 * if neither this method nor {@link #test(AccountsSnapshot, int)}
+		 * returns true, the outcome is unknown (NULL).
+		 *
+		 * @param snapshot the snapshot
+		 * @param row a row number
+		 * @return true if the row doesn't match
+		 */
+		boolean fails(AccountsSnapshot snapshot, int row);
+	}
+	
+	/**
+	 * A comparison of a column that may contain NULL.
+	 */
+	protected abstract static class Comparison implements Predicate {
+		/**
+		 * Checks if the column is NULL for a row.
+		 *
+		 * @param row a row number
+		 * @return true if the value is NULL
+		 */
+		protected abstract boolean isNull(int row);
+		
+		/**
+		 * Compares the value of the column for a row that isn't NULL.
+		 *
+		 * @param row a row number
+		 * @return true if the value matches
+		 */
+		protected abstract boolean matches(int row);
+		
+		/**
+		 * @see com.directmediatips.twitter.dm.SnapshotCriteria.Predicate#test(com.directmediatips.twitter.dm.AccountsSnapshot, int)
+		 */
+		public boolean test(AccountsSnapshot s, int row) {
+			return !isNull(row) && matches(row);
+		}
+		
+		/**
+		 * @see com.directmediatips.twitter.dm.SnapshotCriteria.Predicate#fails(com.directmediatips.twitter.dm.AccountsSnapshot, int)
+		 */
+		public boolean fails(AccountsSnapshot s, int row) {
+			return !isNull(row) && !matches(row);
+		}
+	}
+	
+	/**
+	 * A comparison of a numeric column.
+	 */
+	protected abstract static class NumericComparison extends Comparison {
+		/** The values of the column. */
+		protected final int[] values;
+		/** The rows for which the column is NULL. */
+		protected final BitSet nulls;
+		
+		/**
+		 * Creates a comparison of a numeric column.
+		 *
+		 * @param values the values of the column
+		 * @param nulls the rows for which the column is NULL
+		 */
+		protected NumericComparison(int[] values, BitSet nulls) {
+			this.values = values;
+			this.nulls = nulls;
+		}
+		
+		/**
+		 * @see com.directmediatips.twitter.dm.SnapshotCriteria.Comparison#isNull(int)
+		 */
+		protected boolean isNull(int row) {
+			return nulls.get(row);
+		}
+	}
+	
+	/** Pattern for the tokens of a WHERE clause. */
+	protected static final Pattern TOKENS = Pattern.compile(
+		"\\s*('(?:[^']|'')*'|\"(?:[^\"]|\"\")*\"|<=|>=|<>|!=|[=<>(),]|-?\\d+(?:\\.\\d+)?|[A-Za-z_][A-Za-z_0-9.]*)");
+	
+	/** The snapshot the predicate is compiled for. */
+	protected AccountsSnapshot snapshot;
+	/** The tokens of the WHERE clause. */
+	protected List<String> tokens = new ArrayList<String>();
+	/** The position of the current token. */
+	protected int position = 0;
+	
+	/**
+	 * Compiles a WHERE clause.
+	 *
+	 * @param where the criteria
+	 * @param snapshot the snapshot the criteria will be evaluated against
+	 * @return a predicate
+	 */
+	public static Predicate compile(String where, AccountsSnapshot snapshot) {
+		SnapshotCriteria criteria = new SnapshotCriteria(where, snapshot);
+		Predicate predicate = criteria.or();
+		if (criteria.position < criteria.tokens.size())
+			throw new IllegalArgumentException("Unexpected token: " + criteria.peek());
+		return predicate;
+	}
+	
+	/**
+	 * Creates a SnapshotCriteria instance, and splits the criteria into tokens.
+	 *
+	 * @param where the criteria
+	 * @param snapshot the snapshot
+	 */
+	protected SnapshotCriteria(String where, AccountsSnapshot snapshot) {
+		this.snapshot = snapshot;
+		Matcher m = TOKENS.matcher(where);
+		int end = 0;
+		while (m.find() && m.start() == end) {
+			tokens.add(m.group(1));
+			end = m.end();
+		}
+		if (where.substring(end).trim().length() > 0)
+			throw new IllegalArgumentException("Unsupported criteria: " + where.substring(end));
+	}
+	
+	// parser
+	
+	/**
+	 * Gets the current token without consuming it.
+	 *
+	 * @return the current token, or null at the end
+	 */
+	protected String peek() {
+		return position < tokens.size() ? tokens.get(position) : null;
+	}
+	
+	/**
+	 * Consumes the current token if it matches a keyword or symbol.
+	 *
+	 * @param token the expected token
+	 * @return true if the token was consumed
+	 */
+	protected boolean accept(String token) {
+		if (token.equalsIgnoreCase(peek())) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Consumes the current token.
+	 *
+	 * @return the token
+	 */
+	protected String next() {
+		String token = peek();
+		if (token == null)
+			throw new IllegalArgumentException("Unexpected end of criteria");
+		position++;
+		return token;
+	}
+	
+	/**
+	 * Parses a series of criteria combined with OR.
+	 *
+	 * @return a predicate
+	 */
+	protected Predicate or() {
+		Predicate left = and();
+		while (accept("OR")) {
+			final Predicate a = left;
+			final Predicate b = and();
+			left = new Predicate() {
+				public boolean test(AccountsSnapshot s, int row) {
+					return a.test(s, row) || b.test(s, row);
+				}
+				public boolean fails(AccountsSnapshot s, int row) {
+					return a.fails(s, row) && b.fails(s, row);
+				}
+			};
+		}
+		return left;
+	}
+	
+	/**
+	 * Parses a series of criteria combined with AND.
+	 *
+	 * @return a predicate
+	 */
+	protected Predicate and() {
+		Predicate left = not();
+		while (accept("AND")) {
+			final Predicate a = left;
+			final Predicate b = not();
+			left = new Predicate() {
+				public boolean test(AccountsSnapshot s, int row) {
+					return a.test(s, row) && b.test(s, row);
+				}
+				public boolean fails(AccountsSnapshot s, int row) {
+					return a.fails(s, row) || b.fails(s, row);
+				}
+			};
+		}
+		return left;
+	}
+	
+	/**
+	 * Parses a criterion that may be negated.
+	 *
+	 * @return a predicate
+	 */
+	protected Predicate not() {
+		if (accept("NOT")) {
+			return negate(not());
+		}
+		if (accept("(")) {
+			Predicate predicate = or();
+			if (!accept(")"))
+				throw new IllegalArgumentException("Missing parenthesis");
+			return predicate;
+		}
+		return comparison();
+	}
+	
+	/**
+	 * Parses a single comparison.
+	 *
+	 * @return a predicate
+	 */
+	protected Predicate comparison() {
+		String column = column(next());
+		int[] numbers = snapshot.getNumbers(column);
+		if (numbers != null) {
+			return numeric(numbers, snapshot.getNulls(column));
+		}
+		AccountsSnapshot.Dictionary dictionary = snapshot.getStrings(column);
+		if (dictionary != null) {
+			return string(dictionary);
+		}
+		throw new IllegalArgumentException("Unsupported column: " + column);
+	}
+	
+	/**
+	 * Parses a comparison of a numeric column.
+	 *
+	 * @param values the values of the column
+	 * @param nulls the rows for which the column is NULL
+	 * @return a predicate
+	 */
+	protected Predicate numeric(final int[] values, final BitSet nulls) {
+		if (accept("IS")) {
+			return isNull(nulls);
+		}
+		boolean negated = accept("NOT");
+		if (accept("BETWEEN")) {
+			final long low = number(next());
+			if (!accept("AND"))
+				throw new IllegalArgumentException("Incomplete BETWEEN");
+			final long high = number(next());
+			Predicate between = new NumericComparison(values, nulls) {
+				protected boolean matches(int row) {
+					return values[row] >= low && values[row] <= high;
+				}
+			};
+			return negated ? negate(between) : between;
+		}
+		if (accept("IN")) {
+			List<String> list = list();
+			final long[] in = new long[list.size()];
+			for (int i = 0; i < in.length; i++) {
+				in[i] = number(list.get(i));
+			}
+			Predicate contains = new NumericComparison(values, nulls) {
+				protected boolean matches(int row) {
+					for (long value : in) {
+						if (values[row] == value) return true;
+					}
+					return false;
+				}
+			};
+			return negated ? negate(contains) : contains;
+		}
+		if (negated)
+			throw new IllegalArgumentException("Unsupported use of NOT");
+		final String operator = next();
+		final long value = number(next());
+		if ("=".equals(operator)) {
+			return new NumericComparison(values, nulls) {
+				protected boolean matches(int row) { return values[row] == value; }
+			};
+		}
+		if ("<>".equals(operator) || "!=".equals(operator)) {
+			return new NumericComparison(values, nulls) {
+				protected boolean matches(int row) { return values[row] != value; }
+			};
+		}
+		if ("<".equals(operator)) {
+			return new NumericComparison(values, nulls) {
+				protected boolean matches(int row) { return values[row] < value; }
+			};
+		}
+		if ("<=".equals(operator)) {
+			return new NumericComparison(values, nulls) {
+				protected boolean matches(int row) { return values[row] <= value; }
+			};
+		}
+		if (">".equals(operator)) {
+			return new NumericComparison(values, nulls) {
+				protected boolean matches(int row) { return values[row] > value; }
+			};
+		}
+		if (">=".equals(operator)) {
+			return new NumericComparison(values, nulls) {
+				protected boolean matches(int row) { return values[row] >= value; }
+			};
+		}
+		throw new IllegalArgumentException("Unsupported operator: " + operator);
+	}
+	
+	/**
+	 * Parses the rest of an IS [NOT] NULL criterion of a numeric column;
+	 * unlike a comparison, its outcome is never unknown.
+	 *
+	 * @param nulls the rows for which the column is NULL
+	 * @return a predicate
+	 */
+	protected Predicate isNull(final BitSet nulls) {
+		final boolean negated = accept("NOT");
+		if (!accept("NULL"))
+			throw new IllegalArgumentException("Incomplete IS NULL");
+		return new Predicate() {
+			public boolean test(AccountsSnapshot s, int row) {
+				return nulls.get(row) != negated;
+			}
+			public boolean fails(AccountsSnapshot s, int row) {
+				return nulls.get(row) == negated;
+			}
+		};
+	}
+	
+	/**
+	 * Parses a comparison of a dictionary encoded column. The comparison
+	 * is evaluated once for every distinct value, and the rows only
+	 * need to look up their code in the resulting bitset.
+	 *
+	 * @param dictionary the dictionary of the column
+	 * @return a predicate
+	 */
+	protected Predicate string(final AccountsSnapshot.Dictionary dictionary) {
+		final BitSet codes = new BitSet(dictionary.values.size());
+		if (accept("IS")) {
+			final boolean negated = accept("NOT");
+			if (!accept("NULL"))
+				throw new IllegalArgumentException("Incomplete IS NULL");
+			return new Predicate() {
+				public boolean test(AccountsSnapshot s, int row) {
+					return (dictionary.rows[row] < 0) != negated;
+				}
+				public boolean fails(AccountsSnapshot s, int row) {
+					return (dictionary.rows[row] < 0) == negated;
+				}
+			};
+		}
+		boolean negated = accept("NOT");
+		if (accept("IN")) {
+			for (String literal : list()) {
+				match(dictionary, codes, equal(text(literal)), true);
+			}
+		}
+		else if (accept("LIKE")) {
+			match(dictionary, codes, like(text(next())), false);
+		}
+		else if (!negated && accept("=")) {
+			match(dictionary, codes, equal(text(next())), true);
+		}
+		else if (!negated && (accept("<>") || accept("!="))) {
+			match(dictionary, codes, equal(text(next())), true);
+			negated = true;
+		}
+		else {
+			throw new IllegalArgumentException("Unsupported comparison: " + peek());
+		}
+		final boolean not = negated;
+		return new Comparison() {
+			protected boolean isNull(int row) {
+				return dictionary.rows[row] < 0;
+			}
+			protected boolean matches(int row) {
+				return codes.get(dictionary.rows[row]) != not;
+			}
+		};
+	}
+	
+	/**
+	 * Sets the bits of the dictionary values that match a pattern.
+	 *
+	 * @param dictionary a dictionary
+	 * @param codes the bitset of matching codes
+	 * @param pattern the pattern
+	 * @param padded true if trailing spaces of the values are ignored
+	 */
+	protected void match(AccountsSnapshot.Dictionary dictionary, BitSet codes, Pattern pattern, boolean padded) {
+		for (int code = 0; code < dictionary.values.size(); code++) {
+			String value = dictionary.values.get(code);
+			if (pattern.matcher(padded ? unpad(value) : value).matches())
+				codes.set(code);
+		}
+	}
+	
+	/**
+	 * Parses a list of literals between parentheses.
+	 *
+	 * @return the literals
+	 */
+	protected List<String> list() {
+		if (!accept("("))
+			throw new IllegalArgumentException("Missing parenthesis");
+		List<String> list = new ArrayList<String>();
+		do {
+			list.add(next());
+		} while (accept(","));
+		if (!accept(")"))
+			throw new IllegalArgumentException("Missing parenthesis");
+		return list;
+	}
+	
+	/**
+	 * Creates a predicate that negates another predicate; an unknown
+	 * outcome stays unknown.
+	 *
+	 * @param predicate a predicate
+	 * @return the negated predicate
+	 */
+	protected static Predicate negate(final Predicate predicate) {
+		return new Predicate() {
+			public boolean test(AccountsSnapshot s, int row) {
+				return predicate.fails(s, row);
+			}
+			public boolean fails(AccountsSnapshot s, int row) {
+				return predicate.test(s, row);
+			}
+		};
+	}
+	
+	// literals
+	
+	/**
+	 * Gets the name of a column, without the alias of the accounts table.
+	 *
+	 * @param token a column token
+	 * @return a column name
+	 */
+	protected static String column(String token) {
+		String lower = token.toLowerCase();
+		if (lower.startsWith("a.")) return token.substring(2);
+		if (lower.startsWith("accounts.")) return token.substring(9);
+		if (token.indexOf('.') >= 0)
+			throw new IllegalArgumentException("Unsupported column: " + token);
+		return token;
+	}
+	
+	/**
+	 * Parses a numeric literal.
+	 *
+	 * @param token a token
+	 * @return a number
+	 */
+	protected static long number(String token) {
+		try {
+			return Long.parseLong(token);
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not an integer: " + token);
+		}
+	}
+	
+	/**
+	 * Parses a string literal.
+	 *
+	 * @param token a token
+	 * @return the text between the quotes
+	 */
+	protected static String text(String token) {
+		char quote = token.charAt(0);
+		if (token.length() < 2 || (quote != '\'' && quote != '"'))
+			throw new IllegalArgumentException("Not a string: " + token);
+		String q = String.valueOf(quote);
+		return token.substring(1, token.length() - 1).replace(q + q, q);
+	}
+	
+	/**
+	 * Converts a literal into a pattern for =, &lt;&gt; and IN. Like MySQL,
+	 * these comparisons ignore trailing spaces on both sides; LIKE doesn't.
+	 *
+	 * @param literal the text of a string literal
+	 * @return a case insensitive pattern
+	 */
+	protected static Pattern equal(String literal) {
+		return Pattern.compile(Pattern.quote(unpad(literal)), Pattern.CASE_INSENSITIVE);
+	}
+	
+	/**
+	 * Removes the trailing spaces of a string; other whitespace is kept.
+	 *
+	 * @param s a string
+	 * @return the string without trailing spaces
+	 */
+	protected static String unpad(String s) {
+		int end = s.length();
+		while (end > 0 && s.charAt(end - 1) == ' ')
+			end--;
+		return s.substring(0, end);
+	}
+	
+	/**
+	 * Converts a LIKE pattern into a regular expression.
+	 *
+	 * @param like a LIKE pattern
+	 * @return a case insensitive pattern
+	 */
+	protected static Pattern like(String like) {
+		StringBuilder regex = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (int i = 0; i < like.length(); i++) {
+			char c = like.charAt(i);
+			if (c == '\\' && i + 1 < like.length()) {
+				literal.append(like.charAt(++i));
+			}
+			else if (c == '%' || c == '_') {
+				if (literal.length() > 0) regex.append(Pattern.quote(literal.toString()));
+				literal.setLength(0);
+				regex.append(c == '%' ? ".*" : ".");
+			}
+			else {
+				literal.append(c);
+			}
+		}
+		if (literal.length() > 0) regex.append(Pattern.quote(literal.toString()));
+		return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	}
+}
@@ -15,17 +15,20 @@ package com.directmediatips.twitter.google;
  */
 
 import java.io.IOException;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import com.directmediatips.google.sheets.twitter.TwitterHarvest;
 import com.directmediatips.google.sheets.twitter.TwitterHarvest.Account;
+import com.directmediatips.google.sheets.twitter.TwitterHarvest;
 import com.directmediatips.twitter.AbstractTwitterMachine;
-import com.directmediatips.twitter.data.AccountInfoMachine;
+import com.directmediatips.twitter.RateAwareTwitter;
+import com.directmediatips.twitter.data.TwitterDao;
 
 import twitter4j.TwitterException;
 import twitter4j.User;
@@ -39,26 +42,12 @@ public class HarvestInfoMachine extends AbstractTwitterMachine {
 	protected String account;
 	
 	/** SQL statement to get the harvest info as stored in the database. */
-	public static final String ACCOUNTS = "SELECT a.id, a.screenname,"
-			+ " aa.followfriends, aa.followFollowers, aa.retweet"
-			+ " FROM accounts a, %s_accounts aa WHERE a.id = aa.id"
-			+ " AND (aa.followFriends > 0 OR aa.followFollowers > 0 OR aa.retweet > 0)";
+	public static final String ACCOUNTS = TwitterDao.SELECT_HARVEST;
 	/** SQL statement to update harvest info for a specific account. */
-	public static final String UPDATE = "UPDATE %s_accounts SET"
-			+ " followfriends = ?, followfollowers = ?, retweet = ?"
-			+ " WHERE id = ?";
+	public static final String UPDATE = TwitterDao.UPDATE_HARVEST;
 	/** SQL statement to insert harvest info for a specific account. */
-	public static final String INSERT = "INSERT INTO %s_accounts"
-			+ " (id, followfriends, followfollowers, retweet)"
-			+ " VALUES (?, ?, ?, ?)";
+	public static final String INSERT = TwitterDao.INSERT_HARVEST;
 
-	/** The prepared statement to update harvest info. */
-	protected PreparedStatement update;
-	/** The prepared statement to insert harvest info. */
-	protected PreparedStatement insert;
-	/** The prepared statement to insert an account. */
-	protected PreparedStatement insert_account;
-	
 	/** Keeps track of changes. */
 	protected boolean changed = false;
 	
@@ -72,9 +61,6 @@ public class HarvestInfoMachine extends AbstractTwitterMachine {
 	public HarvestInfoMachine(String account) throws IOException, SQLException {
 		super(account);
 		this.account = account;
-		update = connection.prepare(String.format(UPDATE, account));
-		insert = connection.prepare(String.format(INSERT, account));
-		insert_account = connection.prepare(AccountInfoMachine.CREATE_ACCOUNT);
 	}
 	
 	/**
@@ -91,26 +77,31 @@ public class HarvestInfoMachine extends AbstractTwitterMachine {
 			Map<Long, Account> map = google.getHarvestData();
 			int count = map.size();
 			Account harvest;
+			Map<Long, Account> changes = new LinkedHashMap<Long, Account>();
+			Map<Long, User> users = new HashMap<Long, User>();
 			// Get the data from the database
-			ResultSet rs = connection.execute(String.format(ACCOUNTS, account));
+			ResultSet rs = dao.getHarvest(account);
 			while (rs.next()) {
 				harvest = map.remove(rs.getLong(1));
 				if (harvest == null ||
 				    harvest.isUnchanged(rs.getInt(3), rs.getInt(4), rs.getInt(5)))
 					continue;
 				// Update database if changes are detected
-				update(rs.getLong(1), harvest);
+				changes.put(rs.getLong(1), harvest);
 			}
 			// Check if harvest accounts need to be added
 			for (Account entry : map.values()) {
-				System.out.println(String.format("Looking up %s", entry.screenname));
+				log.info("Looking up %s", entry.screenname);
+				acquire(RateAwareTwitter.SHOW_USER);
 				User user = twitter.showUser(entry.screenname);
-				update(user.getId(), entry);
+				changes.put(user.getId(), entry);
+				users.put(user.getId(), user);
 			}
+			update(changes, users);
 			// If anything was changed, we need to upload the changes
 			if (changed) {
 				// Create a two-dimensional array with the database data
-				rs = connection.execute(String.format(ACCOUNTS, account));
+				rs = dao.getHarvest(account);
 				List<List<Object>> data = new ArrayList<List<Object>>();
 				while (rs.next()) {
 					List<Object> row = new ArrayList<Object>();
@@ -142,41 +133,53 @@ public class HarvestInfoMachine extends AbstractTwitterMachine {
 	}
 	
 	/**
-	 * Updates harvest data in the database.
+	 * Updates harvest data in the database; the harvest info of accounts
+	 * that aren't linked yet is inserted, and so are their accounts.
 	 *
-	 * @param id the account id of the harvest account
-	 * @param harvest the harvest data
+	 * @param changes the harvest data per account id
+	 * @param users the Twitter profiles that were already looked up
 	 * @throws SQLException the SQL exception
 	 */
-	protected void update(long id, Account harvest) throws SQLException {
-		System.out.println(String.format("Updating info for %s (%s)", id, harvest.screenname));
-		update.setInt(1, harvest.followFriends);
-		update.setInt(2, harvest.followFollowers);
-		update.setInt(3, harvest.retweet);
-		update.setLong(4, id);
-		int u = update.executeUpdate();
-		if (u == 0) {
-			System.out.println(String.format("Inserting info for %s (%s)", id, harvest.screenname));
-			insert.setLong(1, id);
-			insert.setInt(2, harvest.followFriends);
-			insert.setInt(3, harvest.followFollowers);
-			insert.setInt(4, harvest.retweet);
-			insert.executeQuery();
+	protected void update(Map<Long, Account> changes, Map<Long, User> users) throws SQLException {
+		if (changes.isEmpty())
+			return;
+		int size = changes.size();
+		long[] ids = new long[size];
+		int[] followFriends = new int[size];
+		int[] followFollowers = new int[size];
+		int[] retweet = new int[size];
+		int i = 0;
+		for (Map.Entry<Long, Account> change : changes.entrySet()) {
+			log.debug("Updating info for %s (%s)", change.getKey(), change.getValue().screenname);
+			ids[i] = change.getKey();
+			followFriends[i] = change.getValue().followFriends;
+			followFollowers[i] = change.getValue().followFollowers;
+			retweet[i++] = change.getValue().retweet;
+		}
+		int[] counts = dao.updateHarvest(account, ids, followFriends, followFollowers, retweet);
+		int n = 0;
+		for (i = 0; i < size; i++) {
+			// a negative count means the row was updated, but the driver doesn't know how many rows
+			if (counts[i] != 0)
+				continue;
+			log.info("Inserting info for %s (%s)", ids[i], changes.get(ids[i]).screenname);
+			ids[n] = ids[i];
+			followFriends[n] = followFriends[i];
+			followFollowers[n] = followFollowers[i];
+			retweet[n++] = retweet[i];
+		}
+		dao.insertHarvest(account, Arrays.copyOf(ids, n), Arrays.copyOf(followFriends, n),
+			Arrays.copyOf(followFollowers, n), Arrays.copyOf(retweet, n));
+		for (i = 0; i < n; i++) {
 			try {
-				User user = twitter.showUser(id);
-				insert_account.setLong(1, user.getId());
-				insert_account.setString(2, user.getScreenName());
-				insert_account.setString(3, makeASCII(user.getName()));
-				insert_account.setString(4, makeASCII(user.getLocation()));
-				insert_account.setString(5, user.getLang());
-				insert_account.setString(6, makeASCII(user.getDescription()));
-				insert_account.setString(7, user.getURL());
-				insert_account.setInt(8, user.getFollowersCount());
-				insert_account.setInt(9, user.getFriendsCount());
-				insert_account.setInt(10, user.getStatusesCount());
-				insert_account.setInt(11, user.getFavouritesCount());
-				insert_account.setString(12, user.isProtected() ? "Y" : "N");
-				insert_account.executeUpdate();
+				if (dao.exists(ids[i]))
+					continue;
+				User user = users.get(ids[i]);
+				if (user == null) {
+					acquire(RateAwareTwitter.SHOW_USER);
+					user = twitter.showUser(ids[i]);
+				}
+				insertUser(user);
 			}
 			catch(SQLException e) {
 				e.printStackTrace();
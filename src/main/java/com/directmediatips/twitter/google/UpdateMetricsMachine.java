@@ -14,8 +14,18 @@ package com.directmediatips.twitter.google;
  * limitations under the License.
  */
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 import com.directmediatips.google.sheets.twitter.TwitterMetrics;
 import com.directmediatips.twitter.AbstractTwitterMachine;
@@ -25,9 +35,19 @@ import twitter4j.User;
 
 /**
  * Updates the Twitter metrics in a Google sheets document.
+ * With more than one argument, the metrics of all the accounts are
+ * updated in a single run: the profiles are fetched with one users
+ * lookup per 100 accounts, using the credentials of the first account.
+ * The IDs of our accounts are cached, so that no credentials call
+ * is needed, and so that a renamed account is still found.
  */
 public class UpdateMetricsMachine extends AbstractTwitterMachine {
 	
+	/** The file with the cached IDs of our accounts by lower case screen name. */
+	public static final String IDS = "twitter/cache/users.properties";
+	/** The maximum number of users per lookup. */
+	public static final int LOOKUP = 100;
+	
 	/**
 	 * Creates an UpdateMetricsMachine instance.
 	 *
@@ -49,23 +69,149 @@ public class UpdateMetricsMachine extends AbstractTwitterMachine {
 	 */
 	@Override
 	public void go() throws SQLException, TwitterException {
-		User user = twitter.showUser(twitter.getId());
-		System.out.println(twitter.getScreenName());
+		publish(Collections.singletonList(account));
+	}
+	
+	/**
+	 * Gets the profiles of a series of accounts, and updates their metrics
+	 * in a Google Sheets document, one row after the other.
+	 *
+	 * @param accounts the screen names of our Twitter accounts
+	 */
+	public void publish(List<String> accounts) {
+		Map<String, User> users = lookup(accounts);
+		int updated = 0;
+		for (String account : accounts) {
+			User user = users.get(account);
+			if (user == null) {
+				log.warn("No profile found for %s", account);
+				continue;
+			}
+			try {
+				TwitterMetrics.UpdateMetrics(
+					user.getScreenName(),
+					user.getStatusesCount(),
+					user.getFriendsCount(),
+					user.getFollowersCount(),
+					user.getFavouritesCount());
+				updated++;
+			}
+			catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+		log.info("Updated the metrics of %s of %s accounts", updated, accounts.size());
+	}
+	
+	/**
+	 * Gets the profiles of a series of accounts. Accounts with a cached ID
+	 * are looked up by ID, the others by screen name; the IDs that weren't
+	 * cached yet are added to the cache. If a lookup fails (e.g. because
+	 * none of the accounts of a batch exists), the accounts of that batch
+	 * are missing from the result, and the other batches are still looked up.
+	 *
+	 * @param accounts the screen names of our Twitter accounts
+	 * @return the profiles by screen name as passed in <code>accounts</code>
+	 */
+	public Map<String, User> lookup(List<String> accounts) {
+		Properties ids = loadIds();
+		Map<Long, String> byId = new HashMap<Long, String>();
+		Map<String, String> byName = new HashMap<String, String>();
+		for (String account : accounts) {
+			String id = ids.getProperty(account.toLowerCase());
+			if (id == null)
+				byName.put(account.toLowerCase(), account);
+			else
+				byId.put(Long.parseLong(id), account);
+		}
+		Map<String, User> users = new HashMap<String, User>();
+		List<Long> idList = new ArrayList<Long>(byId.keySet());
+		for (int start = 0; start < idList.size(); start += LOOKUP) {
+			long[] batch = new long[Math.min(LOOKUP, idList.size() - start)];
+			for (int i = 0; i < batch.length; i++)
+				batch[i] = idList.get(start + i);
+			try {
+				for (User user : twitter.lookupUsers(batch))
+					users.put(byId.get(user.getId()), user);
+			}
+			catch (TwitterException e) {
+				List<String> missing = new ArrayList<String>();
+				for (long id : batch)
+					missing.add(byId.get(id));
+				log.warn("Lookup of %s failed: %s", missing, e.getMessage());
+			}
+		}
+		List<String> nameList = new ArrayList<String>(byName.keySet());
+		for (int start = 0; start < nameList.size(); start += LOOKUP) {
+			String[] batch = nameList.subList(start, Math.min(start + LOOKUP, nameList.size())).toArray(new String[0]);
+			try {
+				for (User user : twitter.lookupUsers(batch)) {
+					String account = byName.get(user.getScreenName().toLowerCase());
+					if (account == null)
+						continue;
+					users.put(account, user);
+					ids.setProperty(account.toLowerCase(), String.valueOf(user.getId()));
+				}
+			}
+			catch (TwitterException e) {
+				log.warn("Lookup of %s failed: %s", Arrays.asList(batch), e.getMessage());
+			}
+		}
+		if (!byName.isEmpty())
+			saveIds(ids);
+		return users;
+	}
+	
+	/**
+	 * Loads the cached IDs of our accounts.
+	 *
+	 * @return the IDs by lower case screen name
+	 */
+	protected static Properties loadIds() {
+		Properties ids = new Properties();
+		File file = new File(IDS);
+		if (file.exists()) {
+			try {
+				FileInputStream in = new FileInputStream(file);
+				try {
+					ids.load(in);
+				}
+				finally {
+					in.close();
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return ids;
+	}
+	
+	/**
+	 * Stores the cached IDs of our accounts.
+	 *
+	 * @param ids the IDs by lower case screen name
+	 */
+	protected static void saveIds(Properties ids) {
+		File file = new File(IDS);
+		file.getParentFile().mkdirs();
 		try {
-			TwitterMetrics.UpdateMetrics(
-				user.getScreenName(),
-				user.getStatusesCount(),
-				user.getFriendsCount(),
-				user.getFollowersCount(),
-				user.getFavouritesCount());
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				ids.store(out, "IDs of our accounts");
+			}
+			finally {
+				out.close();
+			}
 		}
-		catch (IOException ioe) {
-			ioe.printStackTrace();
+		catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 	
 	/**
-	 * Starts and runs the Twitter machine.
+	 * Starts and runs the Twitter machine. With more than one argument,
+	 * the metrics of all the accounts are updated in a single run.
 	 *
 	 * @param args the arguments
 	 */
@@ -74,11 +220,11 @@ public class UpdateMetricsMachine extends AbstractTwitterMachine {
 			System.out.println("An argument is required...");
 			return;
 		}
-		System.out.println(String.format("Running UpdateMetricsMachine for %s...", args[0]));
-		AbstractTwitterMachine app = null;
+		System.out.println(String.format("Running UpdateMetricsMachine for %s...", String.join(", ", args)));
+		UpdateMetricsMachine app = null;
 		try {
 			app = new UpdateMetricsMachine(args[0]);
-			app.go();
+			app.publish(Arrays.asList(args));
 		}
 		catch(Exception e) {
 			e.printStackTrace();
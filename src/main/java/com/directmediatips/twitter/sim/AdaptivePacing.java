@@ -0,0 +1,154 @@
+package com.directmediatips.twitter.sim;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Random;
+
+/**
+ * A pacing that reacts to what Twitter tells us. The pause shrinks by
+ * {@link #SPEED_UP} after every {@link #STREAK} clean actions, down to a
+ * floor; it doubles after a rate limit or a soft error, and it jumps to
+ * the maximum after a lock signal (e.g. "You are unable to follow more
+ * people at this time"). A lock also raises the floor above the pause that
+ * caused it, so that the controller doesn't run into the same limit again,
+ * and it holds the pause for {@link #HOLD} actions before speeding up.
+ * Once the pause is back at a raised floor, every clean streak lowers the
+ * floor by {@link #FLOOR_DECAY}, down to the configured minimum, so that
+ * a single lock doesn't slow down the account forever.
+ */
+public class AdaptivePacing implements PacingPolicy {
+	
+	/** The number of clean actions before we speed up. */
+	public static final int STREAK = 5;
+	/** The factor applied to the pause when we speed up. */
+	public static final double SPEED_UP = 0.9;
+	/** The factor applied to the pause after a rate limit or a soft error. */
+	public static final double BACK_OFF = 2;
+	/** The factor applied to the pause that caused a lock to get the new floor. */
+	public static final double LOCK_MARGIN = 1.5;
+	/** The number of actions after a lock during which we don't speed up. */
+	public static final int HOLD = 50;
+	/** The factor applied to a raised floor after a clean streak at the floor. */
+	public static final double FLOOR_DECAY = 0.95;
+	/** The maximum deviation of a pause from the mean, as a fraction. */
+	public static final double JITTER = 0.25;
+
+	/** The configured shortest mean pause in seconds. */
+	protected double minimum;
+	/** The shortest mean pause in seconds; a lock raises the floor. */
+	protected double floor;
+	/** The longest mean pause in seconds. */
+	protected double maximum;
+	/** The current mean pause in seconds. */
+	protected double mean;
+	/** The number of clean actions since the last change. */
+	protected int streak = 0;
+	/** The number of actions we still wait before speeding up. */
+	protected int hold = 0;
+	
+	/**
+	 * Creates an AdaptivePacing instance.
+	 *
+	 * @param minimum the shortest mean pause in seconds
+	 * @param initial the mean pause we start with, in seconds
+	 * @param maximum the longest mean pause in seconds
+	 */
+	public AdaptivePacing(double minimum, double initial, double maximum) {
+		this(minimum, minimum, initial, maximum);
+	}
+	
+	/**
+	 * Creates an AdaptivePacing instance with a floor that was raised before.
+	 *
+	 * @param minimum the configured shortest mean pause in seconds
+	 * @param floor the current floor in seconds; never below the minimum
+	 * @param initial the mean pause we start with, in seconds
+	 * @param maximum the longest mean pause in seconds
+	 */
+	public AdaptivePacing(double minimum, double floor, double initial, double maximum) {
+		this.minimum = minimum;
+		this.maximum = Math.max(minimum, maximum);
+		this.floor = Math.min(this.maximum, Math.max(minimum, floor));
+		this.mean = Math.min(this.maximum, Math.max(this.floor, initial));
+	}
+	
+	/**
+	 * Gets the current mean pause.
+	 *
+	 * @return the mean pause in seconds
+	 */
+	public double getMean() {
+		return mean;
+	}
+	
+	/**
+	 * Gets the configured minimum; the floor never goes below it.
+	 *
+	 * @return the configured shortest mean pause in seconds
+	 */
+	public double getMinimum() {
+		return minimum;
+	}
+	
+	/**
+	 * Gets the current floor; a lock raises the floor.
+	 *
+	 * @return the shortest mean pause in seconds
+	 */
+	public double getFloor() {
+		return floor;
+	}
+	
+	/**
+	 * @see com.directmediatips.twitter.sim.PacingPolicy#pause(java.util.Random)
+	 */
+	@Override
+	public double pause(Random random) {
+		return Math.max(0, mean * (1 + JITTER * (2 * random.nextDouble() - 1)));
+	}
+
+	/**
+	 * @see com.directmediatips.twitter.sim.PacingPolicy#onSuccess()
+	 */
+	@Override
+	public void onSuccess() {
+		if (hold > 0) {
+			hold--;
+			return;
+		}
+		if (++streak >= STREAK) {
+			streak = 0;
+			if (mean <= floor)
+				floor = Math.max(minimum, floor * FLOOR_DECAY);
+			mean = Math.max(floor, mean * SPEED_UP);
+		}
+	}
+
+	/**
+	 * @see com.directmediatips.twitter.sim.PacingPolicy#onRefused(boolean)
+	 */
+	@Override
+	public void onRefused(boolean lock) {
+		streak = 0;
+		if (lock) {
+			floor = Math.min(maximum, Math.max(floor, mean * LOCK_MARGIN));
+			mean = maximum;
+			hold = HOLD;
+		}
+		else {
+			mean = Math.min(maximum, mean * BACK_OFF);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.directmediatips.twitter.sim;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Random;
+
+/**
+ * The pacing the machines use today: a random pause between a minimum
+ * and a minimum plus some extra seconds, as in
+ * {@link com.directmediatips.twitter.AbstractTwitterMachine#sleepRandom(int, int)},
+ * optionally with a long pause after a number of actions, as in
+ * {@link com.directmediatips.twitter.AbstractTwitterMachine#needsSleep(int)}.
+ */
+public class FixedPacing implements PacingPolicy {
+
+	/** The minimum number of seconds. */
+	protected int minimum;
+	/** The maximum number of extra seconds. */
+	protected int extra;
+	/** The number of actions after which we take a long pause (0 for never). */
+	protected int every;
+	/** The minimum number of seconds of a long pause. */
+	protected int longMinimum;
+	/** The maximum number of extra seconds of a long pause. */
+	protected int longExtra;
+	/** The number of actions since the last long pause. */
+	protected int count = 0;
+	
+	/**
+	 * Creates a FixedPacing instance.
+	 *
+	 * @param minimum the minimum number of seconds
+	 * @param extra the maximum number of extra seconds
+	 * @param every the number of actions after which we take a long pause (0 for never)
+	 * @param longMinimum the minimum number of seconds of a long pause
+	 * @param longExtra the maximum number of extra seconds of a long pause
+	 */
+	public FixedPacing(int minimum, int extra, int every, int longMinimum, int longExtra) {
+		this.minimum = minimum;
+		this.extra = extra;
+		this.every = every;
+		this.longMinimum = longMinimum;
+		this.longExtra = longExtra;
+	}
+	
+	/**
+	 * @see com.directmediatips.twitter.sim.PacingPolicy#pause(java.util.Random)
+	 */
+	@Override
+	public double pause(Random random) {
+		if (every > 0 && count++ > every) {
+			count = 0;
+			return longMinimum + random.nextInt(Math.max(1, longExtra));
+		}
+		return minimum + random.nextInt(Math.max(1, extra));
+	}
+
+	/**
+	 * @see com.directmediatips.twitter.sim.PacingPolicy#onSuccess()
+	 */
+	@Override
+	public void onSuccess() {
+	}
+
+	/**
+	 * @see com.directmediatips.twitter.sim.PacingPolicy#onRefused(boolean)
+	 */
+	@Override
+	public void onRefused(boolean lock) {
+	}
+}
@@ -0,0 +1,43 @@
+package com.directmediatips.twitter.sim;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Random;
+
+/**
+ * Decides how long a machine pauses between two actions.
+ */
+public interface PacingPolicy {
+
+	/**
+	 * Gets the pause before the next action.
+	 *
+	 * @param random the randomizer
+	 * @return the pause in seconds
+	 */
+	double pause(Random random);
+	
+	/**
+	 * Informs the policy that an action succeeded.
+	 */
+	void onSuccess();
+	
+	/**
+	 * Informs the policy that an action was refused.
+	 *
+	 * @param lock true if the account got locked, false for a rate limit or a daily cap
+	 */
+	void onRefused(boolean lock);
+}
@@ -0,0 +1,467 @@
+package com.directmediatips.twitter.sim;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * A discrete-event simulator that replays the schedule of a set of
+ * machines against a model of the Twitter limits: 15-minute rate windows,
+ * daily caps, and account locks that are triggered by bursts of write
+ * actions. It runs days of simulated time in seconds, so that pacing
+ * policies can be compared without putting real accounts at risk.
+ * <p>
+ * The simulation is configured with a properties file:
+ * <ul>
+ * <li><code>days</code>, <code>trials</code>, <code>seed</code>: the length and number of simulations,</li>
+ * <li><code>machines</code>: a comma-separated list, e.g. <code>follow,followback,retweet,dm,accountupdate</code>,</li>
+ * <li><code>[machine].endpoint</code>, <code>.batch</code> (actions per run), <code>.every</code> (seconds between runs),</li>
+ * <li><code>[machine].policy</code> (<code>fixed</code> or <code>adaptive</code>), <code>.min</code>, <code>.extra</code>,
+ * <code>.longEvery</code>, <code>.longMin</code>, <code>.longExtra</code>: the pacing; the adaptive
+ * pacing starts at the mean fixed pause, and stays between <code>.adaptiveMin</code> and
+ * <code>.adaptiveMax</code>,</li>
+ * <li><code>[endpoint].window</code>, <code>.daily</code>, <code>.burst</code>, <code>.lockChance</code>: the limits,</li>
+ * <li><code>lockHours</code>: how long a lock lasts.</li>
+ * </ul>
+ * Every setting has a default that reflects the machines in this library.
+ */
+public class PacingSimulator {
+	
+	/** The length of a rate window in seconds. */
+	public static final int WINDOW = 900;
+	/** The length of a day in seconds. */
+	public static final int DAY = 86400;
+	/** The time an API call takes, in seconds. */
+	public static final double LATENCY = 0.5;
+	
+	/** Default settings of the machines and endpoints. */
+	public static final String[][] DEFAULTS = {
+		// machines: endpoint, batch, every, min, extra
+		{ "follow.endpoint", "friendships/create" }, { "follow.batch", "50" }, { "follow.every", "21600" },
+		{ "follow.min", "45" }, { "follow.extra", "15" },
+		{ "followback.endpoint", "friendships/create" }, { "followback.batch", "100" }, { "followback.every", "86400" },
+		{ "followback.min", "15" }, { "followback.extra", "15" },
+		{ "retweet.endpoint", "statuses/retweet" }, { "retweet.batch", "3" }, { "retweet.every", "3600" },
+		{ "retweet.min", "15" }, { "retweet.extra", "45" },
+		{ "dm.endpoint", "direct_messages/new" }, { "dm.batch", "250" }, { "dm.every", "86400" },
+		{ "dm.min", "45" }, { "dm.extra", "45" },
+		{ "accountupdate.endpoint", "users/show" }, { "accountupdate.batch", "20000" }, { "accountupdate.every", "86400" },
+		{ "accountupdate.min", "0" }, { "accountupdate.extra", "1" },
+		{ "accountupdate.longEvery", "250" }, { "accountupdate.longMin", "300" }, { "accountupdate.longExtra", "30" },
+		{ "removeinactive.endpoint", "users/show" }, { "removeinactive.batch", "5000" }, { "removeinactive.every", "86400" },
+		{ "removeinactive.min", "0" }, { "removeinactive.extra", "1" },
+		{ "removeinactive.longEvery", "250" }, { "removeinactive.longMin", "300" }, { "removeinactive.longExtra", "30" },
+		// endpoints: window, daily, burst, lockChance
+		{ "users/show.window", "900" },
+		{ "friends/ids.window", "15" }, { "followers/ids.window", "15" },
+		{ "statuses/user_timeline.window", "900" },
+		{ "friendships/create.daily", "400" }, { "friendships/create.burst", "30" }, { "friendships/create.lockChance", "0.05" },
+		{ "statuses/retweet.daily", "2400" }, { "statuses/retweet.burst", "60" }, { "statuses/retweet.lockChance", "0.02" },
+		{ "direct_messages/new.daily", "1000" }, { "direct_messages/new.burst", "20" }, { "direct_messages/new.lockChance", "0.05" },
+		// simulation
+		{ "days", "7" }, { "trials", "20" }, { "seed", "1" }, { "lockHours", "12" },
+		{ "machines", "follow,followback,retweet,dm,accountupdate" }
+	};
+	
+	/** The possible outcomes of an action. */
+	public enum Outcome {
+		/** The action succeeded. */
+		OK,
+		/** The rate window is used up. */
+		RATE_LIMITED,
+		/** The daily cap is reached. */
+		CAPPED,
+		/** The account is locked. */
+		LOCKED
+	}
+	
+	/**
+	 * The limits of an API endpoint.
+	 */
+	public static class Endpoint {
+		/** The name of the endpoint. */
+		public String name;
+		/** The number of calls per 15-minute window (0 for unlimited). */
+		public int window;
+		/** The number of calls per day (0 for unlimited). */
+		public int daily;
+		/** The number of calls in 15 minutes that looks suspicious (0 for never). */
+		public int burst;
+		/** The chance that a suspicious call locks the account. */
+		public double lockChance;
+	}
+	
+	/**
+	 * The state Twitter keeps for one of our accounts.
+	 */
+	public static class Account {
+		/** The window and count per endpoint. */
+		protected Map<String, long[]> windows = new HashMap<String, long[]>();
+		/** The day and count per endpoint. */
+		protected Map<String, long[]> days = new HashMap<String, long[]>();
+		/** The times of the recent calls per endpoint. */
+		protected Map<String, ArrayDeque<Double>> recent = new HashMap<String, ArrayDeque<Double>>();
+		/** The time until which the account is locked. */
+		protected double lockedUntil = -1;
+		/** The number of times the account got locked. */
+		protected int locks;
+		
+		/**
+		 * Tries an action.
+		 *
+		 * @param endpoint the endpoint
+		 * @param now the current time
+		 * @param random the randomizer
+		 * @param lockSeconds the duration of a lock
+		 * @return the outcome
+		 */
+		public Outcome attempt(Endpoint endpoint, double now, Random random, double lockSeconds) {
+			if (endpoint.lockChance > 0 && now < lockedUntil)
+				return Outcome.LOCKED;
+			if (endpoint.window > 0 && count(windows, endpoint.name, (long) (now / WINDOW)) >= endpoint.window)
+				return Outcome.RATE_LIMITED;
+			if (endpoint.daily > 0 && count(days, endpoint.name, (long) (now / DAY)) >= endpoint.daily)
+				return Outcome.CAPPED;
+			if (endpoint.burst > 0) {
+				ArrayDeque<Double> calls = recent.get(endpoint.name);
+				if (calls == null) {
+					calls = new ArrayDeque<Double>();
+					recent.put(endpoint.name, calls);
+				}
+				while (!calls.isEmpty() && calls.peekFirst() < now - WINDOW) {
+					calls.pollFirst();
+				}
+				if (calls.size() >= endpoint.burst && random.nextDouble() < endpoint.lockChance) {
+					lockedUntil = now + lockSeconds;
+					locks++;
+					return Outcome.LOCKED;
+				}
+				calls.addLast(now);
+			}
+			count(windows, endpoint.name, (long) (now / WINDOW));
+			count(days, endpoint.name, (long) (now / DAY));
+			windows.get(endpoint.name)[1]++;
+			days.get(endpoint.name)[1]++;
+			return Outcome.OK;
+		}
+		
+		/**
+		 * Gets the number of calls in the current period, starting a new period if necessary.
+		 *
+		 * @param periods the periods per endpoint
+		 * @param name the name of the endpoint
+		 * @param period the current period
+		 * @return the number of calls in the current period
+		 */
+		protected static long count(Map<String, long[]> periods, String name, long period) {
+			long[] state = periods.get(name);
+			if (state == null || state[0] != period) {
+				state = new long[] { period, 0 };
+				periods.put(name, state);
+			}
+			return state[1];
+		}
+	}
+	
+	/**
+	 * The statistics of a machine.
+	 */
+	public static class Stats {
+		/** The number of successful actions. */
+		public long actions;
+		/** The number of times we had to wait for a new rate window. */
+		public long rateLimited;
+		/** The number of times a run stopped because of a daily cap. */
+		public long capped;
+		/** The number of locks. */
+		public long locks;
+		/** The number of simulations in which the account got locked. */
+		public long lockedRuns;
+	}
+	
+	/**
+	 * A machine running for one account.
+	 */
+	protected static class Machine {
+		/** The name of the machine. */
+		protected String name;
+		/** The endpoint the machine uses. */
+		protected Endpoint endpoint;
+		/** The pacing policy. */
+		protected PacingPolicy policy;
+		/** The maximum number of actions per run. */
+		protected int batch;
+		/** The number of seconds between the start of two runs. */
+		protected int every;
+		/** The time the current run started, or -1 if the machine isn't running. */
+		protected double started = -1;
+		/** The number of actions in the current run. */
+		protected int done;
+		/** The number of locks this machine caused. */
+		protected int locks;
+	}
+	
+	/**
+	 * A scheduled action.
+	 */
+	protected static class Event {
+		/** The time of the action. */
+		protected double time;
+		/** The machine that acts. */
+		protected Machine machine;
+		
+		/**
+		 * Creates an Event instance.
+		 *
+		 * @param time the time of the action
+		 * @param machine the machine that acts
+		 */
+		protected Event(double time, Machine machine) {
+			this.time = time;
+			this.machine = machine;
+		}
+	}
+	
+	/** The configuration. */
+	protected Properties properties = new Properties();
+	/** The statistics per machine. */
+	protected Map<String, Stats> stats = new HashMap<String, Stats>();
+	
+	/**
+	 * Creates a PacingSimulator instance.
+	 *
+	 * @param config the configuration, overriding the defaults
+	 */
+	public PacingSimulator(Properties config) {
+		for (String[] setting : DEFAULTS) {
+			properties.setProperty(setting[0], setting[1]);
+		}
+		properties.putAll(config);
+	}
+	
+	/**
+	 * Gets a numeric setting.
+	 *
+	 * @param key the key of the setting
+	 * @param defaultValue the value if the setting is missing
+	 * @return the value
+	 */
+	protected double get(String key, double defaultValue) {
+		String value = properties.getProperty(key);
+		return value == null ? defaultValue : Double.parseDouble(value);
+	}
+	
+	/**
+	 * Creates an endpoint from the settings.
+	 *
+	 * @param name the name of the endpoint
+	 * @return the endpoint
+	 */
+	protected Endpoint getEndpoint(String name) {
+		Endpoint endpoint = new Endpoint();
+		endpoint.name = name;
+		endpoint.window = (int) get(name + ".window", 0);
+		endpoint.daily = (int) get(name + ".daily", 0);
+		endpoint.burst = (int) get(name + ".burst", 0);
+		endpoint.lockChance = get(name + ".lockChance", 0);
+		return endpoint;
+	}
+	
+	/**
+	 * Creates the pacing policy of a machine from the settings.
+	 *
+	 * @param name the name of the machine
+	 * @return a new policy
+	 */
+	protected PacingPolicy getPolicy(String name) {
+		String policy = properties.getProperty(name + ".policy", "fixed");
+		if ("fixed".equals(policy)) {
+			return new FixedPacing((int) get(name + ".min", 0), (int) get(name + ".extra", 1),
+				(int) get(name + ".longEvery", 0), (int) get(name + ".longMin", 0), (int) get(name + ".longExtra", 1));
+		}
+		if ("adaptive".equals(policy)) {
+			double mean = get(name + ".min", 0) + get(name + ".extra", 1) / 2;
+			return new AdaptivePacing(get(name + ".adaptiveMin", mean), mean,
+				get(name + ".adaptiveMax", 10 * mean));
+		}
+		throw new IllegalArgumentException(String.format("Unknown policy: %s", policy));
+	}
+	
+	/**
+	 * Runs all the trials.
+	 */
+	public void run() {
+		Random random = new Random((long) get("seed", 1));
+		int trials = (int) get("trials", 1);
+		for (int trial = 0; trial < trials; trial++) {
+			simulate(random);
+		}
+	}
+	
+	/**
+	 * Simulates all the machines of one account for the configured number of days.
+	 *
+	 * @param random the randomizer
+	 */
+	protected void simulate(Random random) {
+		double end = get("days", 7) * DAY;
+		double lockSeconds = get("lockHours", 12) * 3600;
+		Account account = new Account();
+		PriorityQueue<Event> queue = new PriorityQueue<Event>(16, new Comparator<Event>() {
+			public int compare(Event a, Event b) {
+				return Double.compare(a.time, b.time);
+			}
+		});
+		List<Machine> machines = new ArrayList<Machine>();
+		for (String name : properties.getProperty("machines").split(",")) {
+			name = name.trim();
+			Machine machine = new Machine();
+			machine.name = name;
+			machine.endpoint = getEndpoint(properties.getProperty(name + ".endpoint"));
+			machine.policy = getPolicy(name);
+			machine.batch = (int) get(name + ".batch", 1);
+			machine.every = (int) get(name + ".every", DAY);
+			machines.add(machine);
+			// machines don't all start at the same time
+			queue.add(new Event(random.nextInt(Math.max(1, machine.every)), machine));
+		}
+		Event event;
+		while ((event = queue.poll()) != null && event.time < end) {
+			Machine machine = event.machine;
+			double now = event.time;
+			if (machine.started < 0) {
+				machine.started = now;
+				machine.done = 0;
+			}
+			Stats s = getStats(machine.name);
+			int locks = account.locks;
+			Outcome outcome = account.attempt(machine.endpoint, now, random, lockSeconds);
+			double next;
+			switch (outcome) {
+			case OK:
+				s.actions++;
+				machine.policy.onSuccess();
+				if (++machine.done < machine.batch) {
+					next = now + LATENCY + machine.policy.pause(random);
+					break;
+				}
+				next = stop(machine, now);
+				break;
+			case RATE_LIMITED:
+				// like isPleaseWait: sleep until the reset, plus up to 20 seconds
+				s.rateLimited++;
+				machine.policy.onRefused(false);
+				next = (Math.floor(now / WINDOW) + 1) * WINDOW + random.nextInt(20);
+				break;
+			case CAPPED:
+				s.capped++;
+				machine.policy.onRefused(false);
+				next = stop(machine, now);
+				break;
+			default:
+				if (account.locks > locks) {
+					s.locks++;
+					machine.locks++;
+				}
+				machine.policy.onRefused(true);
+				next = stop(machine, now);
+				break;
+			}
+			queue.add(new Event(next, machine));
+		}
+		for (Machine machine : machines) {
+			if (machine.locks > 0) getStats(machine.name).lockedRuns++;
+		}
+	}
+	
+	/**
+	 * Stops the current run of a machine.
+	 *
+	 * @param machine the machine
+	 * @param now the current time
+	 * @return the time of the next run
+	 */
+	protected double stop(Machine machine, double now) {
+		double next = machine.started + machine.every;
+		machine.started = -1;
+		return Math.max(next, now + LATENCY);
+	}
+	
+	/**
+	 * Gets the statistics of a machine.
+	 *
+	 * @param name the name of the machine
+	 * @return the statistics
+	 */
+	public Stats getStats(String name) {
+		Stats s = stats.get(name);
+		if (s == null) {
+			s = new Stats();
+			stats.put(name, s);
+		}
+		return s;
+	}
+	
+	/**
+	 * Prints a report of the statistics.
+	 */
+	public void report() {
+		double trials = get("trials", 1);
+		double days = get("days", 7);
+		System.out.println(String.format("%-16s %12s %14s %12s %12s %12s",
+			"machine", "actions/h", "rate waits/d", "capped/d", "locks/week", "P(lock)"));
+		for (String name : properties.getProperty("machines").split(",")) {
+			Stats s = getStats(name.trim());
+			System.out.println(String.format("%-16s %12.2f %14.2f %12.2f %12.3f %12.3f", name.trim(),
+				s.actions / trials / days / 24, s.rateLimited / trials / days, s.capped / trials / days,
+				s.locks / trials / days * 7, s.lockedRuns / trials));
+		}
+	}
+	
+	/**
+	 * Runs the simulator.
+	 *
+	 * @param args the path to a properties file (optional)
+	 */
+	public static void main(String[] args) {
+		Properties config = new Properties();
+		try {
+			if (args.length > 0) {
+				FileInputStream in = new FileInputStream(args[0]);
+				config.load(in);
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		PacingSimulator simulator = new PacingSimulator(config);
+		long start = System.currentTimeMillis();
+		simulator.run();
+		simulator.report();
+		System.out.println(String.format("Simulated in %s ms", System.currentTimeMillis() - start));
+	}
+}
@@ -0,0 +1,180 @@
+package com.directmediatips.twitter.store;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts an unbounded number of Twitter ids with a bounded amount of memory.
+ * Ids are collected in a fixed-size buffer; every time the buffer is full,
+ * it is sorted and spilled to disk as a run. When all the ids are added,
+ * the runs are merged in a single streaming pass into an {@link IdSnapshot}.
+ * Accounts with millions of followers only need the buffer and one read
+ * buffer per run in memory.
+ */
+public class ExternalIdSorter {
+	
+	/** The default number of ids kept in memory (8 MB). */
+	public static final int BUFFER = 1 << 20;
+	
+	/** The directory where the runs are written. */
+	protected File directory;
+	/** The prefix of the names of the runs. */
+	protected String prefix;
+	/** The ids that aren't spilled yet. */
+	protected long[] buffer;
+	/** The number of ids in the buffer. */
+	protected int size = 0;
+	/** The runs that were spilled to disk. */
+	protected List<File> runs = new ArrayList<File>();
+	
+	/**
+	 * Creates an ExternalIdSorter instance with the default buffer size.
+	 *
+	 * @param directory the directory where the runs are written
+	 * @param prefix the prefix of the names of the runs
+	 */
+	public ExternalIdSorter(File directory, String prefix) {
+		this(directory, prefix, BUFFER);
+	}
+	
+	/**
+	 * Creates an ExternalIdSorter instance.
+	 *
+	 * @param directory the directory where the runs are written
+	 * @param prefix the prefix of the names of the runs
+	 * @param capacity the number of ids kept in memory
+	 */
+	public ExternalIdSorter(File directory, String prefix, int capacity) {
+		this.directory = directory;
+		this.prefix = prefix;
+		buffer = new long[capacity];
+	}
+	
+	/**
+	 * Adds an id.
+	 *
+	 * @param id a Twitter id
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void add(long id) throws IOException {
+		if (size == buffer.length) spill();
+		buffer[size++] = id;
+	}
+	
+	/**
+	 * Adds a series of ids.
+	 *
+	 * @param ids Twitter ids
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void add(long[] ids) throws IOException {
+		for (long id : ids) {
+			add(id);
+		}
+	}
+	
+	/**
+	 * Sorts the buffer and writes it to disk as a new run.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void spill() throws IOException {
+		File run = new File(directory, String.format("%s.run%s", prefix, runs.size()));
+		runs.add(run);
+		Arrays.sort(buffer, 0, size);
+		IdSnapshot.Writer writer = new IdSnapshot.Writer(run);
+		try {
+			for (int i = 0; i < size; i++) {
+				writer.add(buffer[i]);
+			}
+		}
+		finally {
+			writer.close();
+		}
+		size = 0;
+	}
+	
+	/**
+	 * Writes all the ids, sorted and without duplicates, to a snapshot,
+	 * and removes the runs.
+	 *
+	 * @param target the snapshot file
+	 * @return the number of distinct ids
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public long finish(File target) throws IOException {
+		IdSnapshot.Writer writer = new IdSnapshot.Writer(target);
+		try {
+			if (runs.isEmpty()) {
+				// everything fits in memory
+				Arrays.sort(buffer, 0, size);
+				for (int i = 0; i < size; i++) {
+					writer.add(buffer[i]);
+				}
+			}
+			else {
+				if (size > 0) spill();
+				merge(writer);
+			}
+		}
+		finally {
+			writer.close();
+			for (File run : runs) {
+				run.delete();
+			}
+			runs.clear();
+			size = 0;
+		}
+		return writer.getCount();
+	}
+	
+	/**
+	 * Merges the runs into a writer.
+	 *
+	 * @param writer the writer of the snapshot
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void merge(IdSnapshot.Writer writer) throws IOException {
+		PriorityQueue<IdSnapshot.Reader> heads = new PriorityQueue<IdSnapshot.Reader>(runs.size(),
+			new Comparator<IdSnapshot.Reader>() {
+				public int compare(IdSnapshot.Reader a, IdSnapshot.Reader b) {
+					return Long.compare(a.peek(), b.peek());
+				}
+			});
+		try {
+			for (File run : runs) {
+				IdSnapshot.Reader reader = new IdSnapshot.Reader(run);
+				if (reader.hasNext()) heads.add(reader);
+			}
+			IdSnapshot.Reader head;
+			while ((head = heads.poll()) != null) {
+				writer.add(head.next());
+				if (head.hasNext()) heads.add(head);
+			}
+		}
+		finally {
+			for (IdSnapshot.Reader reader : heads) {
+				reader.close();
+			}
+		}
+	}
+}
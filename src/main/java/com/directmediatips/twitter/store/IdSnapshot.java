@@ -0,0 +1,350 @@
+package com.directmediatips.twitter.store;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * A compact, sorted set of Twitter ids stored in a file. The ids are
+ * written in ascending order as variable-length deltas, so that a set
+ * of millions of ids only takes a few bytes per id, and two snapshots
+ * can be compared in a single streaming pass.
+ */
+public class IdSnapshot {
+	
+	/**
+	 * Writes a snapshot, one id at a time.
+	 */
+	public static class Writer {
+		/** The stream to write to. */
+		protected OutputStream out;
+		/** The previous id. */
+		protected long previous = -1;
+		/** The number of ids that were written. */
+		protected long count = 0;
+		
+		/**
+		 * Creates a Writer instance.
+		 *
+		 * @param file the file to write to
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public Writer(File file) throws IOException {
+			if (file.getParentFile() != null)
+				file.getParentFile().mkdirs();
+			out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+		}
+		
+		/**
+		 * Adds an id; ids need to be added in ascending order, duplicates are ignored.
+		 *
+		 * @param id a Twitter id
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public void add(long id) throws IOException {
+			if (id == previous) return;
+			if (id < previous)
+				throw new IllegalArgumentException(String.format("Id %s isn't sorted", id));
+			VarInt.write(out, previous < 0 ? id : id - previous);
+			previous = id;
+			count++;
+		}
+		
+		/**
+		 * Gets the number of ids that were written.
+		 *
+		 * @return the number of distinct ids
+		 */
+		public long getCount() {
+			return count;
+		}
+		
+		/**
+		 * Closes the snapshot.
+		 *
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Reads a snapshot, one id at a time. A file that doesn't exist
+	 * is read as an empty snapshot.
+	 */
+	public static class Reader {
+		/** The stream to read from. */
+		protected InputStream in;
+		/** The next id, or -1 at the end of the snapshot. */
+		protected long next = -1;
+		
+		/**
+		 * Creates a Reader instance.
+		 *
+		 * @param file the file to read from
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public Reader(File file) throws IOException {
+			if (file.exists()) {
+				in = new BufferedInputStream(new FileInputStream(file), 65536);
+				advance(0);
+			}
+		}
+		
+		/**
+		 * Reads the next delta.
+		 *
+		 * @param base the previous id
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		protected void advance(long base) throws IOException {
+			try {
+				next = base + VarInt.read(in);
+			}
+			catch (EOFException e) {
+				next = -1;
+				close();
+			}
+		}
+		
+		/**
+		 * Checks if there are more ids.
+		 *
+		 * @return true if there is at least one more id
+		 */
+		public boolean hasNext() {
+			return next >= 0;
+		}
+		
+		/**
+		 * Gets the next id without consuming it.
+		 *
+		 * @return the next id
+		 */
+		public long peek() {
+			return next;
+		}
+		
+		/**
+		 * Gets the next id.
+		 *
+		 * @return the next id
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public long next() throws IOException {
+			long id = next;
+			advance(id);
+			return id;
+		}
+		
+		/**
+		 * Closes the snapshot.
+		 *
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public void close() throws IOException {
+			if (in != null) in.close();
+			in = null;
+		}
+	}
+	
+	/**
+	 * Walks two snapshots in parallel and reports the ids that were
+	 * added to and removed from the set.
+	 */
+	public static class Diff {
+		/** The previous snapshot. */
+		protected Reader before;
+		/** The current snapshot. */
+		protected Reader after;
+		/** The id of the current difference. */
+		protected long id;
+		/** True if the current difference is an added id. */
+		protected boolean added;
+		
+		/**
+		 * Creates a Diff instance.
+		 *
+		 * @param before the previous snapshot
+		 * @param after the current snapshot
+		 */
+		public Diff(Reader before, Reader after) {
+			this.before = before;
+			this.after = after;
+		}
+		
+		/**
+		 * Moves to the next difference.
+		 *
+		 * @return false if there are no more differences
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public boolean next() throws IOException {
+			while (before.hasNext() || after.hasNext()) {
+				if (!after.hasNext() || (before.hasNext() && before.peek() < after.peek())) {
+					id = before.next();
+					added = false;
+					return true;
+				}
+				if (!before.hasNext() || after.peek() < before.peek()) {
+					id = after.next();
+					added = true;
+					return true;
+				}
+				before.next();
+				after.next();
+			}
+			return false;
+		}
+		
+		/**
+		 * Gets the id of the current difference.
+		 *
+		 * @return a Twitter id
+		 */
+		public long getId() {
+			return id;
+		}
+		
+		/**
+		 * Checks if the current difference is an id that was added.
+		 *
+		 * @return true if the id is new, false if it was removed
+		 */
+		public boolean isAdded() {
+			return added;
+		}
+		
+		/**
+		 * Closes both snapshots.
+		 *
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public void close() throws IOException {
+			before.close();
+			after.close();
+		}
+	}
+	
+	/**
+	 * Writes an array of ids as a snapshot.
+	 *
+	 * @param file the file to write to
+	 * @param ids the ids, in ascending order
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void write(File file, long[] ids) throws IOException {
+		Writer writer = new Writer(file);
+		try {
+			for (long id : ids) {
+				writer.add(id);
+			}
+		}
+		finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Counts the ids of a snapshot, without keeping them in memory.
+	 *
+	 * @param file the file to read from
+	 * @return the number of ids, 0 if the file doesn't exist
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static long count(File file) throws IOException {
+		Reader reader = new Reader(file);
+		long count = 0;
+		while (reader.hasNext()) {
+			reader.next();
+			count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Reads a snapshot into an array.
+	 *
+	 * @param file the file to read from
+	 * @return the ids, in ascending order
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static long[] read(File file) throws IOException {
+		Reader reader = new Reader(file);
+		long[] ids = new long[1024];
+		int size = 0;
+		while (reader.hasNext()) {
+			if (size == ids.length)
+				ids = Arrays.copyOf(ids, size * 2);
+			ids[size++] = reader.next();
+		}
+		return Arrays.copyOf(ids, size);
+	}
+	
+	/**
+	 * Writes the ids of a snapshot that don't occur in another snapshot.
+	 *
+	 * @param snapshot the snapshot to read from
+	 * @param excluded the snapshot with the ids to leave out
+	 * @param result the file to write to
+	 * @return the number of ids that were written
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static long subtract(File snapshot, File excluded, File result) throws IOException {
+		Reader reader = new Reader(snapshot);
+		Reader exclude = new Reader(excluded);
+		Writer writer = new Writer(result);
+		try {
+			long id;
+			while (reader.hasNext()) {
+				id = reader.next();
+				while (exclude.hasNext() && exclude.peek() < id)
+					exclude.next();
+				if (!exclude.hasNext() || exclude.peek() != id)
+					writer.add(id);
+			}
+		}
+		finally {
+			reader.close();
+			exclude.close();
+			writer.close();
+		}
+		return writer.getCount();
+	}
+	
+	/**
+	 * Replaces a snapshot with a new version.
+	 *
+	 * @param current the file of the new version
+	 * @param target the file of the snapshot that needs to be replaced
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void replace(File current, File target) throws IOException {
+		Files.move(current.toPath(), target.toPath(),
+			StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
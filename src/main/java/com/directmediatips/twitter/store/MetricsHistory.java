@@ -0,0 +1,597 @@
+package com.directmediatips.twitter.store;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only history of the metrics of Twitter accounts. The accounts
+ * are spread over {@link #BUCKETS} log files by id. Every record holds the
+ * id, followed by the time and the metrics as variable-length deltas to the
+ * previous record of the same account, so a record typically takes a dozen
+ * bytes. The first record of an account is a delta to zero.
+ * <p>
+ * Next to every log, an index keeps the last record of every account and
+ * the length of the log it corresponds to, so that appending doesn't
+ * require reading the log. The index also keeps a checkpoint every
+ * {@link #CHECKPOINT} records of an account: an offset in the log and the
+ * point just before it, so that reading the history of an account starts
+ * close to the requested time range instead of at the start of the log.
+ * If a log is longer than its index says (e.g. because another process
+ * appended to it), the tail is replayed as a stream; if the index is
+ * missing, has an older format, or the log is shorter, the index is rebuilt.
+ * Appending is done under a file lock, so concurrent runs are safe.
+ */
+public class MetricsHistory {
+	
+	/** The default directory of the history. */
+	public static final String DIRECTORY = "twitter/history";
+	/** The number of log files. */
+	public static final int BUCKETS = 64;
+	/** The number of pending records after which a bucket is written. */
+	public static final int FLUSH = 1000;
+	/** The extension of a log file. */
+	public static final String LOG = ".log";
+	/** The extension of an index file. */
+	public static final String INDEX = ".idx";
+	/** The number of records of an account between two checkpoints. */
+	public static final int CHECKPOINT = 64;
+	/** The first number of an index file, followed by the version of its format. */
+	protected static final long MAGIC = 0x4D48;
+	/** The version of the format of the index files. */
+	protected static final long VERSION = 2;
+	
+	/**
+	 * The metrics of an account at a specific time.
+	 */
+	public static class Point {
+		/** The id of the account. */
+		public final long id;
+		/** The time in ms (stored with a precision of one second). */
+		public final long time;
+		/** The number of followers. */
+		public final long followers;
+		/** The number of friends. */
+		public final long following;
+		/** The number of statuses. */
+		public final long statuses;
+		/** The number of favorites. */
+		public final long favorites;
+		
+		/**
+		 * Creates a Point instance.
+		 *
+		 * @param id the id of the account
+		 * @param time the time in ms
+		 * @param followers the number of followers
+		 * @param following the number of friends
+		 * @param statuses the number of statuses
+		 * @param favorites the number of favorites
+		 */
+		public Point(long id, long time, long followers, long following, long statuses, long favorites) {
+			this.id = id;
+			this.time = time / 1000 * 1000;
+			this.followers = followers;
+			this.following = following;
+			this.statuses = statuses;
+			this.favorites = favorites;
+		}
+		
+		/**
+		 * Writes the point as a delta to the previous point of the same account.
+		 *
+		 * @param out the stream to write to
+		 * @param previous the previous point, or null if there is none
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		protected void write(OutputStream out, Point previous) throws IOException {
+			VarInt.write(out, id);
+			if (previous == null)
+				previous = new Point(id, 0, 0, 0, 0, 0);
+			VarInt.writeSigned(out, (time - previous.time) / 1000);
+			VarInt.writeSigned(out, followers - previous.followers);
+			VarInt.writeSigned(out, following - previous.following);
+			VarInt.writeSigned(out, statuses - previous.statuses);
+			VarInt.writeSigned(out, favorites - previous.favorites);
+		}
+		
+		/**
+		 * Reads a point that was written by {@link #write(OutputStream, Point)},
+		 * after the id was read with {@link VarInt#read(InputStream)}.
+		 *
+		 * @param in the stream to read from
+		 * @param id the id of the account
+		 * @param previous the previous point of the account, or null if there is none
+		 * @return the point
+		 * @throws EOFException if the stream ends in the middle of the record
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		protected static Point read(InputStream in, long id, Point previous) throws IOException {
+			if (previous == null)
+				previous = new Point(id, 0, 0, 0, 0, 0);
+			Point point = new Point(id,
+				previous.time + VarInt.readSigned(in) * 1000,
+				previous.followers + VarInt.readSigned(in),
+				previous.following + VarInt.readSigned(in),
+				previous.statuses + VarInt.readSigned(in),
+				previous.favorites + VarInt.readSigned(in));
+			return point;
+		}
+	}
+	
+	/**
+	 * The places in a log where reading the history of an account can start.
+	 */
+	protected static class Checkpoints {
+		/** The number of records of the account since the last checkpoint. */
+		protected int count;
+		/** The offsets in the log, in ascending order. */
+		protected List<Long> offsets = new ArrayList<Long>();
+		/** The point of the account just before every offset; null for the first record. */
+		protected List<Point> points = new ArrayList<Point>();
+		
+		/**
+		 * Adds a checkpoint.
+		 *
+		 * @param offset the offset in the log
+		 * @param point the point of the account just before the offset
+		 */
+		protected void add(long offset, Point point) {
+			offsets.add(offset);
+			points.add(point);
+		}
+		
+		/**
+		 * Finds the last checkpoint before a point in time.
+		 *
+		 * @param from the time in ms
+		 * @return the index of the last checkpoint whose point is older than the time
+		 */
+		protected int find(long from) {
+			int found = 0;
+			for (int i = 1; i < points.size() && points.get(i).time < from; i++)
+				found = i;
+			return found;
+		}
+	}
+	
+	/**
+	 * The last point and the checkpoints of every account in a bucket.
+	 */
+	protected static class Index {
+		/** The length of the log that was read into the index. */
+		protected long length;
+		/** The last point of every account. */
+		protected Map<Long, Point> last = new HashMap<Long, Point>();
+		/** The checkpoints of every account. */
+		protected Map<Long, Checkpoints> checkpoints = new HashMap<Long, Checkpoints>();
+		
+		/**
+		 * Adds a record that was read from or written to the log.
+		 *
+		 * @param point the point of the record
+		 * @param start the offset of the record in the log
+		 * @param end the offset right after the record
+		 */
+		protected void add(Point point, long start, long end) {
+			last.put(point.id, point);
+			Checkpoints account = checkpoints.get(point.id);
+			if (account == null) {
+				account = new Checkpoints();
+				account.add(start, null);
+				checkpoints.put(point.id, account);
+			}
+			else if (++account.count == CHECKPOINT) {
+				account.count = 0;
+				account.add(end, point);
+			}
+		}
+	}
+	
+	/**
+	 * An input stream that counts the bytes that were read, so that
+	 * the offset of every record is known while a log is streamed.
+	 */
+	protected static class CountingInputStream extends FilterInputStream {
+		/** The number of bytes that were read. */
+		protected long count = 0;
+		
+		/**
+		 * Creates a CountingInputStream instance.
+		 *
+		 * @param in the stream to read from
+		 */
+		protected CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		/**
+		 * @see java.io.FilterInputStream#read()
+		 */
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0)
+				count++;
+			return b;
+		}
+		
+		/**
+		 * @see java.io.FilterInputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0)
+				count += n;
+			return n;
+		}
+		
+		/**
+		 * @see java.io.FilterInputStream#skip(long)
+		 */
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+	
+	/** The directory of the history. */
+	protected File directory;
+	/** The records that weren't written yet, per bucket. */
+	protected List<List<Point>> pending = new ArrayList<List<Point>>();
+	
+	/**
+	 * Creates a MetricsHistory instance.
+	 *
+	 * @param directory the directory of the history
+	 */
+	public MetricsHistory(File directory) {
+		this.directory = directory;
+		directory.mkdirs();
+		for (int i = 0; i < BUCKETS; i++)
+			pending.add(new ArrayList<Point>());
+	}
+	
+	/**
+	 * Gets the bucket of an account.
+	 *
+	 * @param id the id of the account
+	 * @return the number of the bucket
+	 */
+	protected static int getBucket(long id) {
+		return (int) ((id % BUCKETS + BUCKETS) % BUCKETS);
+	}
+	
+	/**
+	 * Gets the log or index file of a bucket.
+	 *
+	 * @param bucket the number of the bucket
+	 * @param extension {@link #LOG} or {@link #INDEX}
+	 * @return the file
+	 */
+	protected File getFile(int bucket, String extension) {
+		return new File(directory, String.format("metrics-%02d%s", bucket, extension));
+	}
+	
+	/**
+	 * Adds the metrics of an account; the record is written
+	 * when the bucket has {@link #FLUSH} pending records,
+	 * or when the history is flushed or closed.
+	 *
+	 * @param point the metrics of an account at a specific time
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized void add(Point point) throws IOException {
+		int bucket = getBucket(point.id);
+		List<Point> points = pending.get(bucket);
+		points.add(point);
+		if (points.size() >= FLUSH)
+			flush(bucket);
+	}
+	
+	/**
+	 * Writes all the pending records.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized void flush() throws IOException {
+		for (int bucket = 0; bucket < BUCKETS; bucket++)
+			flush(bucket);
+	}
+	
+	/**
+	 * Writes the pending records of a bucket, and updates its index.
+	 *
+	 * @param bucket the number of the bucket
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void flush(int bucket) throws IOException {
+		List<Point> points = pending.get(bucket);
+		if (points.isEmpty())
+			return;
+		RandomAccessFile file = new RandomAccessFile(getFile(bucket, LOG), "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			FileLock lock = channel.lock();
+			try {
+				Index index = catchUp(bucket, channel);
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream(points.size() * 16);
+				for (Point point : points) {
+					long start = index.length + buffer.size();
+					point.write(buffer, index.last.get(point.id));
+					index.add(point, start, index.length + buffer.size());
+				}
+				channel.write(ByteBuffer.wrap(buffer.toByteArray()), index.length);
+				index.length += buffer.size();
+				writeIndex(bucket, index);
+				points.clear();
+			}
+			finally {
+				lock.release();
+			}
+		}
+		finally {
+			file.close();
+		}
+	}
+	
+	/**
+	 * Reads the index of a bucket, and brings it up to date with the log.
+	 * The tail of the log is streamed, so it can be of any size. A record
+	 * that was cut off at the end of the log is removed.
+	 *
+	 * @param bucket the number of the bucket
+	 * @param channel the channel of the log, locked by the caller
+	 * @return the up to date index
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected Index catchUp(int bucket, FileChannel channel) throws IOException {
+		Index index = readIndex(bucket);
+		long size = channel.size();
+		if (index == null || index.length > size)
+			index = new Index();
+		if (index.length == size)
+			return index;
+		channel.position(index.length);
+		// the channel stays open; the caller closes it
+		CountingInputStream in = new CountingInputStream(
+			new BufferedInputStream(Channels.newInputStream(channel), 65536));
+		long complete = index.length;
+		try {
+			while (complete < size) {
+				long id = VarInt.read(in);
+				Point point = Point.read(in, id, index.last.get(id));
+				long end = index.length + in.count;
+				index.add(point, complete, end);
+				complete = end;
+			}
+		}
+		catch (EOFException e) {
+			// the last record was cut off; the complete records are in the index
+			channel.truncate(complete);
+		}
+		index.length = complete;
+		return index;
+	}
+	
+	/**
+	 * Gets the index of a bucket, brought up to date with its log.
+	 *
+	 * @param bucket the number of the bucket
+	 * @return the index
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected Index getIndex(int bucket) throws IOException {
+		File log = getFile(bucket, LOG);
+		if (!log.exists())
+			return new Index();
+		RandomAccessFile file = new RandomAccessFile(log, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			FileLock lock = channel.lock();
+			try {
+				return catchUp(bucket, channel);
+			}
+			finally {
+				lock.release();
+			}
+		}
+		finally {
+			file.close();
+		}
+	}
+	
+	/**
+	 * Gets the last metrics of an account from the index of its bucket,
+	 * without reading the log.
+	 *
+	 * @param id the id of the account
+	 * @return the last point, or null if the account has no history
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized Point last(long id) throws IOException {
+		int bucket = getBucket(id);
+		flush(bucket);
+		return getIndex(bucket).last.get(id);
+	}
+	
+	/**
+	 * Gets the metrics of an account within a time range. The log of the
+	 * bucket of the account is read from the last checkpoint of the account
+	 * before the range, until the end of the range; the records of other
+	 * accounts are skipped without decoding their deltas.
+	 *
+	 * @param id the id of the account
+	 * @param from the start of the range in ms (inclusive)
+	 * @param to the end of the range in ms (inclusive)
+	 * @return the points in chronological order
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized List<Point> get(long id, long from, long to) throws IOException {
+		int bucket = getBucket(id);
+		flush(bucket);
+		List<Point> points = new ArrayList<Point>();
+		Index index = getIndex(bucket);
+		Checkpoints checkpoints = index.checkpoints.get(id);
+		if (checkpoints == null)
+			return points;
+		int checkpoint = checkpoints.find(from);
+		long offset = checkpoints.offsets.get(checkpoint);
+		FileInputStream file = new FileInputStream(getFile(bucket, LOG));
+		file.getChannel().position(offset);
+		CountingInputStream in = new CountingInputStream(new BufferedInputStream(file, 65536));
+		try {
+			Point previous = checkpoints.points.get(checkpoint);
+			// records beyond the index may still be being written
+			while (offset + in.count < index.length) {
+				long next = VarInt.read(in);
+				if (next != id) {
+					for (int i = 0; i < 5; i++)
+						VarInt.read(in);
+					continue;
+				}
+				previous = Point.read(in, id, previous);
+				if (previous.time > to)
+					break;
+				if (previous.time >= from)
+					points.add(previous);
+			}
+		}
+		catch (EOFException e) {
+			// the end of the log, or a record that is still being written
+		}
+		finally {
+			in.close();
+		}
+		return points;
+	}
+	
+	/**
+	 * Writes all the pending records.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void close() throws IOException {
+		flush();
+	}
+	
+	/**
+	 * Reads the index of a bucket.
+	 *
+	 * @param bucket the number of the bucket
+	 * @return the index, or null if there is no valid index
+	 */
+	protected Index readIndex(int bucket) {
+		File file = getFile(bucket, INDEX);
+		if (!file.exists())
+			return null;
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+			try {
+				if (VarInt.read(in) != MAGIC || VarInt.read(in) != VERSION)
+					return null;
+				Index index = new Index();
+				index.length = VarInt.read(in);
+				long count = VarInt.read(in);
+				for (long i = 0; i < count; i++) {
+					// the last point is a delta to zero
+					long id = VarInt.read(in);
+					index.last.put(id, Point.read(in, id, null));
+					Checkpoints checkpoints = new Checkpoints();
+					checkpoints.count = (int) VarInt.read(in);
+					long size = VarInt.read(in);
+					long offset = VarInt.read(in);
+					Point point = null;
+					checkpoints.add(offset, point);
+					for (long j = 1; j < size; j++) {
+						// the offsets and points are deltas to the previous checkpoint
+						offset += VarInt.read(in);
+						VarInt.read(in);
+						point = Point.read(in, id, point);
+						checkpoints.add(offset, point);
+					}
+					index.checkpoints.put(id, checkpoints);
+				}
+				return index;
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Writes the index of a bucket, replacing the previous index in one move.
+	 *
+	 * @param bucket the number of the bucket
+	 * @param index the index
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void writeIndex(int bucket, Index index) throws IOException {
+		File tmp = File.createTempFile("metrics", ".tmp", directory);
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), 65536);
+			try {
+				VarInt.write(out, MAGIC);
+				VarInt.write(out, VERSION);
+				VarInt.write(out, index.length);
+				VarInt.write(out, index.last.size());
+				for (Point last : index.last.values()) {
+					last.write(out, null);
+					Checkpoints checkpoints = index.checkpoints.get(last.id);
+					VarInt.write(out, checkpoints.count);
+					VarInt.write(out, checkpoints.offsets.size());
+					VarInt.write(out, checkpoints.offsets.get(0));
+					for (int i = 1; i < checkpoints.offsets.size(); i++) {
+						VarInt.write(out, checkpoints.offsets.get(i) - checkpoints.offsets.get(i - 1));
+						checkpoints.points.get(i).write(out, checkpoints.points.get(i - 1));
+					}
+				}
+			}
+			finally {
+				out.close();
+			}
+			IdSnapshot.replace(tmp, getFile(bucket, INDEX));
+		}
+		finally {
+			tmp.delete();
+		}
+	}
+}
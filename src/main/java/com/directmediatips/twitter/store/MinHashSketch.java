@@ -0,0 +1,208 @@
+package com.directmediatips.twitter.store;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A MinHash sketch of a set of Twitter IDs. The sketch keeps the minimum
+ * of {@link #K} different hashes of all the IDs, plus the number of IDs.
+ * Two sketches are enough to estimate the Jaccard similarity of two sets
+ * (the fraction of minimums they share), and from that, the overlap of two
+ * audiences, without keeping or fetching the ID lists themselves.
+ * A sketch takes about 1 KB, no matter how many IDs it represents.
+ */
+public class MinHashSketch {
+	
+	/** The number of hashes; the standard error of the similarity is about 1 / sqrt(K). */
+	public static final int K = 128;
+	/** The extension of a stored sketch. */
+	public static final String EXTENSION = ".mh";
+	
+	/** The seeds of the hash functions. */
+	protected static final long[] SEEDS = new long[K];
+	
+	static {
+		long seed = 0x5DEECE66DL;
+		for (int i = 0; i < K; i++) {
+			seed += 0x9E3779B97F4A7C15L;
+			SEEDS[i] = mix(seed);
+		}
+	}
+	
+	/** The minimum value of every hash. */
+	protected final long[] mins = new long[K];
+	/** The (estimated) number of IDs in the set. */
+	protected long size;
+	
+	/**
+	 * Creates a sketch of an empty set.
+	 */
+	public MinHashSketch() {
+		Arrays.fill(mins, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Creates a sketch of a series of IDs.
+	 *
+	 * @param ids distinct IDs, in any order
+	 */
+	public MinHashSketch(long[] ids) {
+		this();
+		for (long id : ids)
+			add(id);
+	}
+	
+	/**
+	 * Scrambles the bits of a value (the finalizer of SplitMix64).
+	 *
+	 * @param z a value
+	 * @return the hash of the value
+	 */
+	protected static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+	
+	/**
+	 * Adds an ID to the set. Adding the same ID twice
+	 * doesn't change the minimums, but it does change the size.
+	 *
+	 * @param id a Twitter ID
+	 */
+	public void add(long id) {
+		for (int i = 0; i < K; i++) {
+			long h = mix(id ^ SEEDS[i]);
+			if (h < mins[i])
+				mins[i] = h;
+		}
+		size++;
+	}
+	
+	/**
+	 * Gets the number of IDs in the set.
+	 *
+	 * @return the (estimated) size of the set
+	 */
+	public long size() {
+		return size;
+	}
+	
+	/**
+	 * Estimates the Jaccard similarity with another set.
+	 *
+	 * @param other the sketch of another set
+	 * @return the size of the intersection divided by the size of the union
+	 */
+	public double similarity(MinHashSketch other) {
+		if (size == 0 || other.size == 0)
+			return 0;
+		int same = 0;
+		for (int i = 0; i < K; i++) {
+			if (mins[i] == other.mins[i])
+				same++;
+		}
+		return (double) same / K;
+	}
+	
+	/**
+	 * Estimates the number of IDs this set shares with another set.
+	 *
+	 * @param other the sketch of another set
+	 * @return the estimated size of the intersection
+	 */
+	public long overlap(MinHashSketch other) {
+		double j = similarity(other);
+		long overlap = Math.round(j / (1 + j) * (size + other.size));
+		return Math.min(overlap, Math.min(size, other.size));
+	}
+	
+	/**
+	 * Estimates the number of IDs of this set that aren't in another set.
+	 *
+	 * @param other the sketch of another set
+	 * @return the estimated number of new IDs
+	 */
+	public long reach(MinHashSketch other) {
+		return size - overlap(other);
+	}
+	
+	/**
+	 * Creates the sketch of the union of this set and another set.
+	 *
+	 * @param other the sketch of another set
+	 * @return the sketch of the union, with an estimated size
+	 */
+	public MinHashSketch union(MinHashSketch other) {
+		MinHashSketch union = new MinHashSketch();
+		for (int i = 0; i < K; i++)
+			union.mins[i] = Math.min(mins[i], other.mins[i]);
+		union.size = size + other.size - overlap(other);
+		return union;
+	}
+	
+	/**
+	 * Writes the sketch to a file.
+	 *
+	 * @param file the file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(K);
+			out.writeLong(size);
+			for (long min : mins)
+				out.writeLong(min);
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Reads a sketch from a file.
+	 *
+	 * @param file the file
+	 * @return the sketch, or null if the file doesn't exist
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static MinHashSketch read(File file) throws IOException {
+		if (!file.exists())
+			return null;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != K)
+				throw new IOException(String.format("%s wasn't created with %s hashes", file, K));
+			MinHashSketch sketch = new MinHashSketch();
+			sketch.size = in.readLong();
+			for (int i = 0; i < K; i++)
+				sketch.mins[i] = in.readLong();
+			return sketch;
+		}
+		finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package com.directmediatips.twitter.store;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * An on-disk cache of the friend and follower ID lists of seed accounts.
+ * Every list is stored as an {@link IdSnapshot}, so the cache is compact,
+ * and it can be shared by all our accounts and by consecutive runs.
+ * A list that is older than the time-to-live is stale and will be
+ * replaced; when the cache grows beyond its maximum size, the lists that
+ * weren't used for the longest time are removed.
+ * Next to every list, a {@link MinHashSketch} is stored; the sketches
+ * are never evicted, so that the overlap between the audiences of the
+ * seeds can be estimated without fetching their lists again.
+ */
+public class SeedIdCache {
+	
+	/** The default directory of the cache. */
+	public static final String DIRECTORY = "twitter/cache/seeds";
+	/** The kind of list with the accounts a seed follows. */
+	public static final String FRIENDS = "friends";
+	/** The kind of list with the followers of a seed. */
+	public static final String FOLLOWERS = "followers";
+	/** The extension of the cached lists. */
+	public static final String EXTENSION = ".ids";
+	
+	/** The directory of the cache. */
+	protected File directory;
+	/** The time-to-live of a list in ms. */
+	protected long ttl;
+	/** The maximum size of the cache in bytes. */
+	protected long maxBytes;
+	
+	/**
+	 * Creates a SeedIdCache instance.
+	 *
+	 * @param directory the directory of the cache
+	 * @param ttl the time-to-live of a list in ms
+	 * @param maxBytes the maximum size of the cache in bytes
+	 */
+	public SeedIdCache(File directory, long ttl, long maxBytes) {
+		this.directory = directory;
+		this.ttl = ttl;
+		this.maxBytes = maxBytes;
+		directory.mkdirs();
+	}
+	
+	/**
+	 * Gets the file of a cached list.
+	 *
+	 * @param kind {@link #FRIENDS} or {@link #FOLLOWERS}
+	 * @param id the ID of the seed account
+	 * @return the file of the list
+	 */
+	protected File getFile(String kind, long id) {
+		return new File(directory, String.format("%s-%s%s", kind, id, EXTENSION));
+	}
+	
+	/**
+	 * Gets the file of the sketch of a list.
+	 *
+	 * @param kind {@link #FRIENDS} or {@link #FOLLOWERS}
+	 * @param id the ID of the seed account
+	 * @return the file of the sketch
+	 */
+	protected File getSketchFile(String kind, long id) {
+		return new File(directory, String.format("%s-%s%s", kind, id, MinHashSketch.EXTENSION));
+	}
+	
+	/**
+	 * Gets the sketch of a list, even if the list itself is stale or evicted.
+	 *
+	 * @param kind {@link #FRIENDS} or {@link #FOLLOWERS}
+	 * @param id the ID of the seed account
+	 * @return the sketch, or null if the list was never stored
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public MinHashSketch getSketch(String kind, long id) throws IOException {
+		return MinHashSketch.read(getSketchFile(kind, id));
+	}
+	
+	/**
+	 * Checks if a list is cached and not stale, i.e. if it can be used
+	 * without fetching it again.
+	 *
+	 * @param kind {@link #FRIENDS} or {@link #FOLLOWERS}
+	 * @param id the ID of the seed account
+	 * @return true if the cached list is fresh
+	 */
+	public boolean isFresh(String kind, long id) {
+		File file = getFile(kind, id);
+		return file.exists() && System.currentTimeMillis() - file.lastModified() <= ttl;
+	}
+	
+	/**
+	 * Gets the time since the sketch of a list was stored.
+	 *
+	 * @param kind {@link #FRIENDS} or {@link #FOLLOWERS}
+	 * @param id the ID of the seed account
+	 * @return the age of the sketch in ms, or Long.MAX_VALUE if there is no sketch
+	 */
+	public long getSketchAge(String kind, long id) {
+		File file = getSketchFile(kind, id);
+		if (!file.exists())
+			return Long.MAX_VALUE;
+		return System.currentTimeMillis() - file.lastModified();
+	}
+	
+	/**
+	 * Gets a list from the cache.
+	 *
+	 * @param kind {@link #FRIENDS} or {@link #FOLLOWERS}
+	 * @param id the ID of the seed account
+	 * @return the IDs in ascending order, or null if the list isn't cached or stale
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public long[] get(String kind, long id) throws IOException {
+		if (!isFresh(kind, id))
+			return null;
+		File file = getFile(kind, id);
+		long[] ids = IdSnapshot.read(file);
+		// remember when the list was used, for the eviction
+		Files.getFileAttributeView(file.toPath(), BasicFileAttributeView.class)
+			.setTimes(null, FileTime.fromMillis(System.currentTimeMillis()), null);
+		return ids;
+	}
+	
+	/**
+	 * Stores a list and its sketch in the cache, and evicts other lists if necessary.
+	 *
+	 * @param kind {@link #FRIENDS} or {@link #FOLLOWERS}
+	 * @param id the ID of the seed account
+	 * @param ids the IDs in any order
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void put(String kind, long id, long[] ids) throws IOException {
+		long[] sorted = ids.clone();
+		Arrays.sort(sorted);
+		File tmp = File.createTempFile(kind, ".tmp", directory);
+		try {
+			IdSnapshot.write(tmp, sorted);
+			IdSnapshot.replace(tmp, getFile(kind, id));
+			new MinHashSketch(sorted).write(tmp);
+			IdSnapshot.replace(tmp, getSketchFile(kind, id));
+		}
+		finally {
+			tmp.delete();
+		}
+		evict();
+	}
+	
+	/**
+	 * Removes stale lists, and the least recently used lists
+	 * until the cache fits its maximum size.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void evict() throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		final long[] accessed = new long[files.length];
+		long now = System.currentTimeMillis();
+		long total = 0;
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			order[i] = i;
+			if (!files[i].getName().endsWith(EXTENSION))
+				continue;
+			if (now - files[i].lastModified() > ttl) {
+				files[i].delete();
+				continue;
+			}
+			BasicFileAttributes attributes = Files.readAttributes(files[i].toPath(), BasicFileAttributes.class);
+			accessed[i] = Math.max(attributes.lastAccessTime().toMillis(), attributes.lastModifiedTime().toMillis());
+			total += attributes.size();
+		}
+		if (total <= maxBytes)
+			return;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(accessed[a], accessed[b]);
+			}
+		});
+		for (int i : order) {
+			if (total <= maxBytes)
+				break;
+			File file = files[i];
+			if (!file.getName().endsWith(EXTENSION) || !file.exists())
+				continue;
+			long size = file.length();
+			if (file.delete())
+				total -= size;
+		}
+	}
+}
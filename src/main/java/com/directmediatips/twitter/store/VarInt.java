@@ -0,0 +1,87 @@
+package com.directmediatips.twitter.store;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads and writes variable-length integers: seven bits per byte,
+ * with the high bit set on every byte but the last one.
+ */
+public class VarInt {
+	
+	/**
+	 * Writes an unsigned variable-length integer.
+	 *
+	 * @param out the stream to write to
+	 * @param value a value that is treated as unsigned
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void write(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+	
+	/**
+	 * Writes a signed variable-length integer using zigzag encoding,
+	 * so that small negative values also take few bytes.
+	 *
+	 * @param out the stream to write to
+	 * @param value a signed value
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void writeSigned(OutputStream out, long value) throws IOException {
+		write(out, (value << 1) ^ (value >> 63));
+	}
+	
+	/**
+	 * Reads an unsigned variable-length integer.
+	 *
+	 * @param in the stream to read from
+	 * @return the value
+	 * @throws EOFException if the stream ends before the first byte
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static long read(InputStream in) throws IOException {
+		long value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.read();
+			if (b < 0) throw new EOFException();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+	
+	/**
+	 * Reads a signed, zigzag encoded variable-length integer.
+	 *
+	 * @param in the stream to read from
+	 * @return the value
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static long readSigned(InputStream in) throws IOException {
+		long value = read(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,169 @@
+package com.directmediatips.twitter.dm;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.BitSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the predicates compiled by {@link SnapshotCriteria} with the
+ * rows MySQL selects for the same WHERE clause on the same data.
+ */
+public class SnapshotCriteriaTest {
+
+	/**
+	 * The rows of the accounts table, in the order of {@link AccountsSnapshot#LOAD}:
+	 * id, screenname, followers, following, statuses, favorites, banned,
+	 * lang, location, protected.
+	 */
+	protected static final Object[][] ACCOUNTS = {
+		{ 1L, "one", 100, 10, 5, 1, 0, "en", "Gent", "0" },
+		{ 2L, "two", null, 20, 5, 1, 0, null, "Gent ", "0" },
+		{ 3L, "three", 500, 30, 5, 1, 0, "nl", null, "1" },
+		{ 4L, "four", 50, null, 5, 1, 0, "EN", "Gentbrugge", "0" },
+		{ 5L, "five", 0, 40, 5, 1, 0, "fr", "Gent\t", "0" }
+	};
+
+	/** The snapshot of the accounts table. */
+	protected AccountsSnapshot snapshot;
+
+	/**
+	 * Loads the accounts into a snapshot.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Before
+	public void load() throws Exception {
+		snapshot = new AccountsSnapshot(resultSet(ACCOUNTS));
+	}
+
+	/**
+	 * A comparison with NULL is unknown, also when it's negated.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testNull() throws Exception {
+		assertRows("followers > 80", 0, 2);
+		assertRows("NOT followers > 80", 3, 4);
+		assertRows("followers IS NULL", 1);
+		assertRows("followers IS NOT NULL", 0, 2, 3, 4);
+		assertRows("lang IS NULL OR followers > 400", 1, 2);
+		assertRows("following < 35 OR followers > 80", 0, 1, 2);
+		assertRows("following < 35 AND followers > 80", 0, 2);
+	}
+
+	/**
+	 * NOT in front of a comparison, and a negated comparison.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testNot() throws Exception {
+		assertRows("lang = 'en'", 0, 3);
+		assertRows("NOT lang = 'en'", 2, 4);
+		assertRows("lang <> 'en'", 2, 4);
+		assertRows("lang NOT IN ('en', 'nl')", 4);
+		assertRows("NOT (lang = 'en' AND followers > 80)", 2, 3, 4);
+		assertRows("NOT NOT followers > 80", 0, 2);
+	}
+
+	/**
+	 * LIKE doesn't ignore trailing spaces; =, &lt;&gt; and IN do.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testLike() throws Exception {
+		assertRows("location LIKE 'gent'", 0);
+		assertRows("location LIKE 'Gent '", 1);
+		assertRows("location LIKE 'Gent_'", 1, 4);
+		assertRows("location LIKE 'Gent%'", 0, 1, 3, 4);
+		assertRows("location NOT LIKE 'Gent%'");
+		assertRows("NOT location LIKE 'gent'", 1, 3, 4);
+		assertRows("location = 'Gent'", 0, 1);
+		assertRows("location = 'Gent   '", 0, 1);
+		assertRows("location IN ('gent ', 'Brussel')", 0, 1);
+		assertRows("location <> 'Gent'", 3, 4);
+	}
+
+	/**
+	 * BETWEEN includes both bounds, and is unknown for NULL.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testBetween() throws Exception {
+		assertRows("followers BETWEEN 50 AND 100", 0, 3);
+		assertRows("followers BETWEEN 0 AND 50", 3, 4);
+		assertRows("followers NOT BETWEEN 50 AND 100", 2, 4);
+		assertRows("NOT followers BETWEEN 50 AND 100", 2, 4);
+		assertRows("followers BETWEEN 50 AND 100 AND lang = 'en'", 0, 3);
+	}
+
+	/**
+	 * Checks the rows that match a WHERE clause.
+	 *
+	 * @param where the criteria
+	 * @param rows the rows MySQL selects
+	 * @throws InterruptedException if the selection was interrupted
+	 */
+	protected void assertRows(String where, int... rows) throws InterruptedException {
+		BitSet expected = new BitSet();
+		for (int row : rows)
+			expected.set(row);
+		assertEquals(where, expected, snapshot.select(SnapshotCriteria.compile(where, snapshot)));
+	}
+
+	/**
+	 * Creates a forward only result set that serves a series of rows.
+	 *
+	 * @param rows the values of the rows
+	 * @return a result set
+	 */
+	protected static ResultSet resultSet(final Object[][] rows) {
+		return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+			new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+				int row = -1;
+				boolean wasNull = false;
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					String name = method.getName();
+					if ("next".equals(name))
+						return ++row < rows.length;
+					if ("close".equals(name))
+						return null;
+					if ("wasNull".equals(name))
+						return wasNull;
+					Object value = rows[row][(Integer) args[0] - 1];
+					wasNull = value == null;
+					if ("getLong".equals(name))
+						return value == null ? 0L : ((Number) value).longValue();
+					if ("getInt".equals(name))
+						return value == null ? 0 : ((Number) value).intValue();
+					if ("getString".equals(name))
+						return value == null ? null : value.toString();
+					throw new UnsupportedOperationException(name);
+				}
+			});
+	}
+}